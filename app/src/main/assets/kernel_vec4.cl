@@ -7,26 +7,34 @@
 #define NEURONS_X_POP 8
 #define CONVERSION_FACTOR 100.0f / 0.05f
 #define CURRENT_THRESHOLD 10.0f
- 
-__kernel __attribute__((vec_type_hint(float4)))
-void simulate_dynamics(__constant float* restrict coeff, __global float* restrict weights, // TODO: Coalesce some of the buffers into one?
-		       __global uchar* restrict input,  __global int* restrict current,
-		       __global ushort* restrict neuronsIndexes, __global float* restrict presynFiringRates,
-		       __global float* restrict postsynFiringRates, __global float* restrict updateWeightsFlags,
-		       __global ushort* restrict synIndexes, __constant uint* restrict globalIdOffset, __global uint* restrict weightsReservoir,
-		       __global uint* restrict numOfExcWeights)
-// TODO: input, presynFiringRates, postsynFiringRates and updateWeightsFlags could be __constant...
-{
-  // Id of the work item
-  uint globalId = get_global_id(0) + globalIdOffset[0];
 
-  // Id of the neuron to which the synapses belong
-  ushort neuronIndex = neuronsIndexes[SYN_X_WI * globalId];
+// The filter pipe of an input is made of SYN_X_WI bytes, which is_active reads as a single uint. The
+// host passes the length of the pipe it uses in MAX_MULTIPLICATIONS.
+#if SYN_X_WI != 4
+#error "is_active reads the filter pipe of an input as a single uint"
+#endif
+#if defined(MAX_MULTIPLICATIONS) && MAX_MULTIPLICATIONS != SYN_X_WI
+#error "The filter pipe of an input must be SYN_X_WI bytes long"
+#endif
 
-  ushort neuronIdxInPop = neuronIndex % NEURONS_X_POP;
+// Layout of the entries of the populations table used by the compact indexes
+#define POP_INFO_SIZE 5
+#define POP_FIRST_SYNAPSE 0
+#define POP_FIRST_NEURON 1
+#define POP_NUM_OF_NEURONS 2
+#define POP_TEMPLATE_OFFSET 3
+#define POP_TEMPLATE_LENGTH 4
+ 
+/* Compute the currents of the synapses of a work item and update their weights. The synapses are those
+   of neuron neuronIndex and are connected to the inputs preFRIndexesVec. */
 
-  // Id of the input synapses
-  ushort4 preFRIndexesVec = vload4(globalId, synIndexes);
+inline void compute_synapses(uint globalId, ushort neuronIndex, ushort4 preFRIndexesVec,
+			     __constant float* restrict coeff, __global float* restrict weights,
+			     __global uchar* restrict input, __global int* restrict current,
+			     __global float* restrict presynFiringRates, __global float* restrict postsynFiringRates,
+			     __global float* restrict updateWeightsFlags, __global uint* restrict weightsReservoir,
+			     __global uint* restrict numOfExcWeights)
+{
   ushort4 synIndexesVec = ((ushort)SYN_X_WI) * preFRIndexesVec;
   
   // Load the synaptic input (the coeffiecients of the filter kernel)
@@ -108,3 +116,185 @@ void simulate_dynamics(__constant float* restrict coeff, __global float* restric
     
   vstore4(weightsVec, globalId, weights);
 }
+
+__kernel __attribute__((vec_type_hint(float4)))
+void simulate_dynamics(__constant float* restrict coeff, __global float* restrict weights, // TODO: Coalesce some of the buffers into one?
+		       __global uchar* restrict input,  __global int* restrict current,
+		       __global ushort* restrict neuronsIndexes, __global float* restrict presynFiringRates,
+		       __global float* restrict postsynFiringRates, __global float* restrict updateWeightsFlags,
+		       __global ushort* restrict synIndexes, __constant uint* restrict globalIdOffset, __global uint* restrict weightsReservoir,
+		       __global uint* restrict numOfExcWeights)
+// TODO: input, presynFiringRates, postsynFiringRates and updateWeightsFlags could be __constant...
+{
+  // Id of the work item
+  uint globalId = get_global_id(0) + globalIdOffset[0];
+
+  // Id of the neuron to which the synapses belong
+  ushort neuronIndex = neuronsIndexes[SYN_X_WI * globalId];
+
+  ushort neuronIdxInPop = neuronIndex % NEURONS_X_POP;
+
+  // Id of the input synapses
+  ushort4 preFRIndexesVec = vload4(globalId, synIndexes);
+
+  compute_synapses(globalId, neuronIndex, preFRIndexesVec, coeff, weights, input, current, presynFiringRates,
+		   postsynFiringRates, updateWeightsFlags, weightsReservoir, numOfExcWeights);
+}
+
+/* Find the neuron and the inputs of the synapses of a work item of the layer, expanding them from the
+   templates of the populations. */
+
+inline ushort4 resolve_compact(uint workItem, uint neuronsOffset, uint firstPop, uint numOfPops,
+			       __global uint* restrict popsTable, __global ushort* restrict templates,
+			       ushort* neuronIndex)
+{
+  // Position of the first synapse of the work item inside the layer
+  uint synapse = SYN_X_WI * workItem;
+
+  // Binary search of the population the synapse belongs to
+  uint lastPop = firstPop + numOfPops - 1;
+  uint low = firstPop, high = lastPop;
+  while (low < high) {
+    uint middle = (low + high + 1) / 2;
+    if (popsTable[POP_INFO_SIZE * middle + POP_FIRST_SYNAPSE] <= synapse)
+      low = middle;
+    else
+      high = middle - 1;
+  }
+
+  __global uint* pop = popsTable + POP_INFO_SIZE * low;
+  uint synapseInPop = synapse - pop[POP_FIRST_SYNAPSE];
+
+  // Id of the neuron to which the synapses belong
+  *neuronIndex = (ushort)(neuronsOffset + pop[POP_FIRST_NEURON] + synapseInPop / pop[POP_TEMPLATE_LENGTH]);
+
+  // Id of the input synapses, taken from the template of the population
+  ushort preFRIndexes[SYN_X_WI];
+  for (uint i = 0; i < SYN_X_WI; i++, synapseInPop++) {
+    // The last synapses of the work item may belong to the following populations
+    while (synapseInPop >= pop[POP_NUM_OF_NEURONS] * pop[POP_TEMPLATE_LENGTH] && low < lastPop) {
+      synapseInPop -= pop[POP_NUM_OF_NEURONS] * pop[POP_TEMPLATE_LENGTH];
+      pop += POP_INFO_SIZE;
+      low++;
+    }
+
+    preFRIndexes[i] = templates[pop[POP_TEMPLATE_OFFSET] + synapseInPop % max(pop[POP_TEMPLATE_LENGTH], 1u)];
+  }
+
+  return vload4(0, preFRIndexes);
+}
+
+/* Same as simulate_dynamics, but the indexes of the synapses and of the neurons are expanded from the
+   templates of the populations rather than being read from per-synapse buffers. */
+
+__kernel __attribute__((vec_type_hint(float4)))
+void simulate_dynamics_compact(__constant float* restrict coeff, __global float* restrict weights,
+			       __global uchar* restrict input,  __global int* restrict current,
+			       __global float* restrict presynFiringRates, __global float* restrict postsynFiringRates,
+			       __global float* restrict updateWeightsFlags, __global uint* restrict weightsReservoir,
+			       __global uint* restrict numOfExcWeights, __global uint* restrict popsTable,
+			       __global ushort* restrict templates, uint synapsesOffset, uint neuronsOffset,
+			       uint firstPop, uint numOfPops)
+{
+  // Id of the work item
+  uint globalId = get_global_id(0) + synapsesOffset / SYN_X_WI;
+
+  ushort neuronIndex;
+  ushort4 preFRIndexesVec = resolve_compact(get_global_id(0), neuronsOffset, firstPop, numOfPops, popsTable,
+					    templates, &neuronIndex);
+
+  compute_synapses(globalId, neuronIndex, preFRIndexesVec, coeff, weights, input, current, presynFiringRates,
+		   postsynFiringRates, updateWeightsFlags, weightsReservoir, numOfExcWeights);
+}
+
+/* Event-driven variants. A first kernel collects the work items of the layer whose synapses have to be
+   computed, a second one is launched over the same range but serves only the work items collected, so
+   that the work items which have nothing to do are packed at the end of the range and exit at once. */
+
+/* Whether the synapses of a work item have to be computed: some of their inputs has a non-empty filter
+   pipeline, made of SYN_X_WI bytes, or some of their weights is plastic. The synapses whose inputs are
+   all silent give no current, but the plastic ones are still depressed. */
+
+inline bool is_active(uint globalId, ushort4 preFRIndexesVec, __global uchar* restrict input,
+		      __global float* restrict updateWeightsFlags)
+{
+  // The pipe of an input is SYN_X_WI == 4 bytes long, checked at the top of the file
+  __global uint* pipes = (__global uint*) input;
+  uint pending = pipes[preFRIndexesVec.x] | pipes[preFRIndexesVec.y] | pipes[preFRIndexesVec.z] | pipes[preFRIndexesVec.w];
+
+  return pending != 0 || any(vload4(globalId, updateWeightsFlags) != 0.0f);
+}
+
+__kernel
+void collect_active(__global uchar* restrict input, __global float* restrict updateWeightsFlags,
+		    __global ushort* restrict synIndexes, __constant uint* restrict globalIdOffset,
+		    __global uint* restrict activeWorkItems, __global uint* restrict numOfActive)
+{
+  uint globalId = get_global_id(0) + globalIdOffset[0];
+
+  if (is_active(globalId, vload4(globalId, synIndexes), input, updateWeightsFlags))
+    activeWorkItems[atomic_inc(numOfActive)] = get_global_id(0);
+}
+
+__kernel
+void collect_active_compact(__global uchar* restrict input, __global float* restrict updateWeightsFlags,
+			    __global uint* restrict popsTable, __global ushort* restrict templates,
+			    __global uint* restrict activeWorkItems, __global uint* restrict numOfActive,
+			    uint synapsesOffset, uint firstPop, uint numOfPops)
+{
+  uint globalId = get_global_id(0) + synapsesOffset / SYN_X_WI;
+
+  ushort neuronIndex;
+  ushort4 preFRIndexesVec = resolve_compact(get_global_id(0), 0, firstPop, numOfPops, popsTable, templates,
+					    &neuronIndex);
+
+  if (is_active(globalId, preFRIndexesVec, input, updateWeightsFlags))
+    activeWorkItems[atomic_inc(numOfActive)] = get_global_id(0);
+}
+
+__kernel __attribute__((vec_type_hint(float4)))
+void simulate_dynamics_sparse(__constant float* restrict coeff, __global float* restrict weights,
+			      __global uchar* restrict input,  __global int* restrict current,
+			      __global ushort* restrict neuronsIndexes, __global float* restrict presynFiringRates,
+			      __global float* restrict postsynFiringRates, __global float* restrict updateWeightsFlags,
+			      __global ushort* restrict synIndexes, __constant uint* restrict globalIdOffset,
+			      __global uint* restrict weightsReservoir, __global uint* restrict numOfExcWeights,
+			      __global uint* restrict activeWorkItems, __global uint* restrict numOfActive)
+{
+  if (get_global_id(0) >= numOfActive[0])
+    return;
+
+  // Id of the active work item
+  uint globalId = activeWorkItems[get_global_id(0)] + globalIdOffset[0];
+
+  ushort neuronIndex = neuronsIndexes[SYN_X_WI * globalId];
+  ushort4 preFRIndexesVec = vload4(globalId, synIndexes);
+
+  compute_synapses(globalId, neuronIndex, preFRIndexesVec, coeff, weights, input, current, presynFiringRates,
+		   postsynFiringRates, updateWeightsFlags, weightsReservoir, numOfExcWeights);
+}
+
+__kernel __attribute__((vec_type_hint(float4)))
+void simulate_dynamics_compact_sparse(__constant float* restrict coeff, __global float* restrict weights,
+				      __global uchar* restrict input,  __global int* restrict current,
+				      __global float* restrict presynFiringRates, __global float* restrict postsynFiringRates,
+				      __global float* restrict updateWeightsFlags, __global uint* restrict weightsReservoir,
+				      __global uint* restrict numOfExcWeights, __global uint* restrict popsTable,
+				      __global ushort* restrict templates, uint synapsesOffset, uint neuronsOffset,
+				      uint firstPop, uint numOfPops, __global uint* restrict activeWorkItems,
+				      __global uint* restrict numOfActive)
+{
+  if (get_global_id(0) >= numOfActive[0])
+    return;
+
+  // Position of the active work item inside the layer and its id
+  uint workItem = activeWorkItems[get_global_id(0)];
+  uint globalId = workItem + synapsesOffset / SYN_X_WI;
+
+  ushort neuronIndex;
+  ushort4 preFRIndexesVec = resolve_compact(workItem, neuronsOffset, firstPop, numOfPops, popsTable, templates,
+					    &neuronIndex);
+
+  compute_synapses(globalId, neuronIndex, preFRIndexesVec, coeff, weights, input, current, presynFiringRates,
+		   postsynFiringRates, updateWeightsFlags, weightsReservoir, numOfExcWeights);
+}
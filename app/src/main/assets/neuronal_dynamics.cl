@@ -0,0 +1,76 @@
+/* This kernel is appended to the kernel of the synapses and moves the neuronal dynamics on the device.
+   Every work item serves one neuron of a layer, as computeNeuronalDynamics and buildSynapticInput
+   do on the host. */
+
+#ifndef SYNAPSE_FILTER_ORDER
+#define SYNAPSE_FILTER_ORDER 16
+#endif
+#define SAMPLING_RATE 0.5f
+#define MEAN_RATE_INCREMENT 0.02f
+
+/* Integrate the Izhikevich model for one time step, set the bit of the neuron in the action potentials
+   and update its firing rate. If buildInput is set the spike is also pushed into the synaptic input
+   that the neuron gives to the following layers. */
+
+__kernel
+void update_neurons(__global int* restrict current, __global float2* restrict dynamicVariables,
+		    __global float* restrict postsynFiringRates, __global float* restrict presynFiringRates,
+		    __global uchar* restrict input, __global uint* restrict actionPotentials,
+		    uint neuronsOffset, uint inputNeurons, uint buildInput, uint maxMultiplications,
+		    float4 parameters, float IPar)
+{
+  uint neuron = neuronsOffset + get_global_id(0);
+
+  // The parameters a, b, c and d of the model
+  float aPar = parameters.x, bPar = parameters.y, cPar = parameters.z, dPar = parameters.w;
+
+  float currentFloat = (1.0f * (float)current[2 * neuron] + 4.0f * (float)current[2 * neuron + 1]) * 0.01f;
+  current[2 * neuron] = current[2 * neuron + 1] = 0;
+
+  // Potential and recovery variable, computed with Euler integration
+  float2 var = dynamicVariables[neuron];
+  float deltaV = 0.04f * var.x * var.x + 5.0f * var.x + 140.0f - var.y + currentFloat + IPar;
+  float deltaU = aPar * (bPar * var.x - var.y);
+
+  var.x += deltaV * SAMPLING_RATE;
+  var.y += deltaU * SAMPLING_RATE;
+
+  // Guards against underflow of the potential
+  var.x = var.x < 2.5f * cPar ? 2.5f * cPar : var.x;
+
+  // Neurons of the same word are served by different work items, hence the bits are set atomically
+  uint mask = 1u << (neuron % 32);
+  uchar spike = var.x >= 30.0f ? 1 : 0;
+  float firingRate = postsynFiringRates[neuron];
+
+  if (spike) {
+    var.y += dPar;
+    var.x = cPar;
+    atomic_or(&actionPotentials[neuron / 32], mask);
+    firingRate += MEAN_RATE_INCREMENT * (1.0f - firingRate);
+  } else {
+    atomic_and(&actionPotentials[neuron / 32], ~mask);
+    firingRate -= MEAN_RATE_INCREMENT * firingRate;
+  }
+
+  dynamicVariables[neuron] = var;
+  postsynFiringRates[neuron] = firingRate;
+
+  if (!buildInput)
+    return;
+
+  // The input of the neuron comes after those of the presynaptic terminals
+  uint first = (inputNeurons + neuron) * maxMultiplications;
+  presynFiringRates[inputNeurons + neuron] = firingRate;
+
+  // Shift the pipe of the indexes of the filter coefficients by one place if the neuron has fired
+  for (uint j = maxMultiplications - 1; j >= 1; j--) {
+    uchar previous = input[first + j - spike];
+    input[first + j] = previous != 0 && previous < maxMultiplications ? previous + 1 : 0;
+  }
+
+  if (spike)
+    input[first] = 1;
+  else
+    input[first] = input[first] != 0 && input[first] < SYNAPSE_FILTER_ORDER ? input[first] + 1 : 0;
+}
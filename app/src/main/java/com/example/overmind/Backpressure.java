@@ -0,0 +1,119 @@
+package com.example.overmind;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Policies applied when a stage of the pipeline cannot keep up with the one before it, and the
+ * counters of everything they drop. The load is shed where it costs least:
+ *
+ * - The packets of a presynaptic connection waiting for its worker are either dropped when the ring
+ *   is full (the newest), trimmed so that half of the ring stays free (the oldest), or coalesced so
+ *   that only the latest one is served. The policy is chosen with CONNECTION_SHEDDING_POLICY.
+ *
+ * - When KernelExecutor has not released the total input of the previous tick yet, the current tick
+ *   is not closed and its packets are merged with those of the next one. Meanwhile the tick clock is
+ *   slowed down, so that fewer and fuller ticks are produced. See SLOW_TICK_ON_BACKLOG.
+ *
+ * Every element that is dropped anyway is counted against the stage that dropped it.
+ */
+
+final class Backpressure {
+
+    /* Stages of the pipeline which may drop data */
+
+    // Packets of a presynaptic connection not served by its worker
+    static final int CONNECTION_RING = 0;
+
+    // Packets whose KernelInitializer was rejected by its executor
+    static final int KERNEL_INIT_WORKLOADS = 1;
+
+    // Inputs waiting to be put together by InputCreator
+    static final int KERNEL_INIT_QUEUE = 2;
+
+    // Signals of the presynaptic terminal chosen as clock
+    static final int CLOCK_SIGNALS = 3;
+
+    // Total inputs of a tick not passed to KernelExecutor
+    static final int TICKS = 4;
+
+    // Ticks not closed because KernelExecutor had a backlog, merged with the following ones
+    static final int MERGED_TICKS = 5;
+
+    // Datagrams longer than the buffers of the spikes, which cannot be packets of this network
+    static final int OVERSIZED_DATAGRAMS = 6;
+
+    private static final String[] STAGES_NAMES =
+            {"connection ring", "kernelInit workloads", "kernelInit queue", "clock signals", "ticks", "merged ticks",
+                    "oversized datagrams"};
+
+    /* Policies for the packets of a presynaptic connection */
+
+    static final int DROP_NEWEST = 0;
+    static final int DROP_OLDEST = 1;
+    static final int COALESCE_LATEST = 2;
+
+    // Longest tick of the slowed down clock, in periods of the clock
+    static final int MAX_TICK_SLOWDOWN = 16;
+
+    // Number of the elements dropped by each stage since the application was started
+    private static final AtomicLongArray drops = new AtomicLongArray(STAGES_NAMES.length);
+
+    private Backpressure() {}
+
+    static void drop(int stage) {
+        drops.incrementAndGet(stage);
+    }
+
+    static void drop(int stage, int numOfElements) {
+        drops.addAndGet(stage, numOfElements);
+    }
+
+    /**
+     * @param stage The stage of the pipeline
+     * @return The number of the elements dropped by the stage
+     */
+
+    static long drops(int stage) {
+        return drops.get(stage);
+    }
+
+    /**
+     * Register a gauge with the number of the elements dropped by each stage.
+     */
+
+    static void registerMetrics() {
+        for (int stage = 0; stage < STAGES_NAMES.length; stage++) {
+            final int gaugeStage = stage;
+            MetricsRegistry.gauge("dropped " + STAGES_NAMES[stage], new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return drops.get(gaugeStage);
+                }
+            });
+        }
+    }
+
+    static String dropsToString() {
+        StringBuilder stringBuilder = new StringBuilder("Dropped:");
+
+        for (int stage = 0; stage < STAGES_NAMES.length; stage++)
+            stringBuilder.append(' ').append(STAGES_NAMES[stage]).append(' ').append(drops.get(stage));
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Compute how much the tick clock should be slowed down given whether the stage after it could
+     * take the last tick. The slowdown is doubled at every tick which has to be merged with the
+     * next one and halved at every tick which is closed.
+     *
+     * @param slowdown The current slowdown, as a multiple of the period of the clock
+     * @param backlog True if the last tick could not be closed because of the backlog
+     * @return The new slowdown
+     */
+
+    static int tickSlowdown(int slowdown, boolean backlog) {
+        return backlog ? Math.min(slowdown * 2, MAX_TICK_SLOWDOWN) : Math.max(slowdown / 2, 1);
+    }
+
+}
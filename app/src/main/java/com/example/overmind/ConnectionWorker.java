@@ -0,0 +1,145 @@
+package com.example.overmind;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Long-lived thread serving the packets received from a single presynaptic connection. The receive
+loop of SimulationService puts the packets in the ring of the worker bound to their source port,
+and the worker hands them one after the other to its KernelInitializer. The workers of different
+connections run in parallel, while the packets of a connection are served in order.
+ */
+
+class ConnectionWorker implements Runnable {
+
+    // Number of packets that can wait to be served before the new ones are dropped
+    private static final int RING_CAPACITY = 16;
+
+    // Packets received from the connection and not yet served
+    private final SpscRing<byte[]> ring = new SpscRing<>(RING_CAPACITY);
+
+    // Object which elaborates the packets of the connection
+    private final KernelInitializer kernelInitializer;
+
+    // Pool the buffers of the dropped packets are given back to
+    private final SpikesBufferPool spikesBufferPool;
+
+    // Flag set by the service when the thread must stop
+    private volatile boolean shutdown = false;
+
+    // Packets received from the connection and those dropped before being served, and the names
+    // they are registered with
+    private final AtomicLong receivedPackets;
+    private final AtomicLong droppedPackets;
+    private final String receivedPacketsName;
+    private final String droppedPacketsName;
+
+    // Time taken by KernelInitializer to serve a packet, shared by all the workers
+    private final LatencyHistogram serviceTime = MetricsRegistry.histogram("kernelInitializer");
+
+    /**
+     * @param name The name of the connection the metrics of the worker are registered with
+     */
+
+    ConnectionWorker(KernelInitializer kernelInitializer, SpikesBufferPool spikesBufferPool, String name) {
+        this.kernelInitializer = kernelInitializer;
+        this.spikesBufferPool = spikesBufferPool;
+        receivedPacketsName = "connection " + name + " received";
+        droppedPacketsName = "connection " + name + " dropped";
+        receivedPackets = MetricsRegistry.counter(receivedPacketsName);
+        droppedPackets = MetricsRegistry.counter(droppedPacketsName);
+    }
+
+    /**
+     * Called by the receive loop only. If the ring is full the packet is dropped.
+     *
+     * @param inputSpikesBuffer The buffer holding the spikes of the packet
+     */
+
+    void offer(byte[] inputSpikesBuffer) {
+        receivedPackets.incrementAndGet();
+
+        if (!ring.offer(inputSpikesBuffer)) {
+            Backpressure.drop(Backpressure.CONNECTION_RING);
+            droppedPackets.incrementAndGet();
+            spikesBufferPool.release(inputSpikesBuffer);
+        }
+    }
+
+    /**
+     * Apply the shedding policy of the connection to the packets waiting in the ring, before
+     * serving the oldest of them.
+     *
+     * @param inputSpikesBuffer The oldest packet, just taken from the ring
+     * @return The packet to be served
+     */
+
+    private byte[] shed(byte[] inputSpikesBuffer) {
+        switch (Constants.CONNECTION_SHEDDING_POLICY) {
+            case Backpressure.DROP_OLDEST:
+                // Keep half of the ring free, so that the newest packets are not the ones dropped
+                while (ring.size() >= RING_CAPACITY / 2) {
+                    spikesBufferPool.release(inputSpikesBuffer);
+                    inputSpikesBuffer = ring.poll();
+                    Backpressure.drop(Backpressure.CONNECTION_RING);
+                    droppedPackets.incrementAndGet();
+                }
+                break;
+            case Backpressure.COALESCE_LATEST:
+                // Only the spikes of the latest packet are served
+                byte[] newerBuffer;
+                while ((newerBuffer = ring.poll()) != null) {
+                    spikesBufferPool.release(inputSpikesBuffer);
+                    inputSpikesBuffer = newerBuffer;
+                    Backpressure.drop(Backpressure.CONNECTION_RING);
+                    droppedPackets.incrementAndGet();
+                }
+                break;
+        }
+
+        return inputSpikesBuffer;
+    }
+
+    @Override
+    public void run() {
+        while (!shutdown) {
+            byte[] inputSpikesBuffer;
+
+            try {
+                inputSpikesBuffer = ring.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (inputSpikesBuffer == null)
+                continue;
+
+            long startTime = System.nanoTime();
+
+            if (kernelInitializer.call(shed(inputSpikesBuffer)).equals(1))
+                Log.e("ConnectionWorker", "Packet could not be served");
+
+            serviceTime.recordSince(startTime);
+        }
+
+        // The packets left in the ring are not going to be served
+        byte[] inputSpikesBuffer;
+        while ((inputSpikesBuffer = ring.poll()) != null)
+            spikesBufferPool.release(inputSpikesBuffer);
+    }
+
+    /**
+     * Stop the worker. Its counters are removed from the registry, since the connections change
+     * with the terminal and a worker is never restarted.
+     */
+
+    void shutDown() {
+        shutdown = true;
+        ring.wakeUp();
+        MetricsRegistry.removeCounter(receivedPacketsName);
+        MetricsRegistry.removeCounter(droppedPacketsName);
+    }
+
+}
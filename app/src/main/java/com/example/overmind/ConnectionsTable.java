@@ -0,0 +1,150 @@
+package com.example.overmind;
+
+import java.util.Arrays;
+
+/**
+ * Immutable table that maps the source address of a datagram to the index of a presynaptic
+ * connection in constant time. The address is packed in a long made of the IPv4 address followed
+ * by the port, so that looking it up does not allocate anything. Addresses which are not IPv4 are
+ * identified by the port alone, as the connections map of KernelInitializer does.
+ *
+ * The table is never modified once built: a new entry is added by building a copy, which is then
+ * published in place of the old one. The readers therefore need no lock.
+ */
+
+final class ConnectionsTable {
+
+    // Value returned for the addresses which are not in the table
+    static final int NOT_FOUND = -1;
+
+    // Packed addresses are never negative, therefore this value marks the empty slots
+    private static final long EMPTY = -1L;
+
+    // Table without any entry
+    static final ConnectionsTable EMPTY_TABLE = new ConnectionsTable(new long[0], new int[0], 0);
+
+    // Open addressing with linear probing, the number of slots is a power of 2 at least twice the
+    // number of entries
+    private final long[] keys;
+    private final int[] indexes;
+    private final int size;
+
+    private ConnectionsTable(long[] keys, int[] indexes, int size) {
+        this.keys = keys;
+        this.indexes = indexes;
+        this.size = size;
+    }
+
+    /**
+     * @param ip The IP of the terminal, in dotted decimal notation if IPv4
+     * @param port The port of the terminal
+     * @return The address packed in a long
+     */
+
+    static long key(String ip, int port) {
+        int address = 0, octet = 0, octets = 0;
+
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+
+            if (c >= '0' && c <= '9' && octet <= 255) {
+                octet = octet * 10 + (c - '0');
+            } else if (c == '.' && octets < 3) {
+                address = (address << 8) | octet;
+                octet = 0;
+                octets++;
+            } else {
+                return port & 0xffff;
+            }
+        }
+
+        if (octets != 3 || octet > 255)
+            return port & 0xffff;
+
+        address = (address << 8) | octet;
+
+        return ((address & 0xffffffffL) << 16) | (port & 0xffff);
+    }
+
+    /**
+     * @param address The raw IP address of the terminal, as returned by InetAddress.getAddress()
+     * @param port The port of the terminal
+     * @return The address packed in a long
+     */
+
+    static long key(byte[] address, int port) {
+        if (address.length != 4)
+            return port & 0xffff;
+
+        long ipv4 = ((address[0] & 0xffL) << 24) | ((address[1] & 0xffL) << 16) |
+                ((address[2] & 0xffL) << 8) | (address[3] & 0xffL);
+
+        return (ipv4 << 16) | (port & 0xffff);
+    }
+
+    /**
+     * @param key The packed address of a terminal
+     * @return The index of the connection, NOT_FOUND if the address is not in the table
+     */
+
+    int indexOf(long key) {
+        if (size == 0)
+            return NOT_FOUND;
+
+        int mask = keys.length - 1;
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return indexes[slot];
+            if (keys[slot] == EMPTY)
+                return NOT_FOUND;
+        }
+    }
+
+    /**
+     * @param key The packed address of a terminal
+     * @param index The index of the connection
+     * @return A copy of the table with the new entry. If the address is already present the entry
+     * is replaced.
+     */
+
+    ConnectionsTable with(long key, int index) {
+        int capacity = Integer.highestOneBit(Math.max(4, (size + 1) * 2) - 1) << 1;
+        long[] newKeys = new long[capacity];
+        int[] newIndexes = new int[capacity];
+        Arrays.fill(newKeys, EMPTY);
+
+        int newSize = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY && keys[slot] != key) {
+                put(newKeys, newIndexes, keys[slot], indexes[slot]);
+                newSize++;
+            }
+        }
+
+        put(newKeys, newIndexes, key, index);
+
+        return new ConnectionsTable(newKeys, newIndexes, newSize + 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static void put(long[] keys, int[] indexes, long key, int index) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (keys[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+
+        keys[slot] = key;
+        indexes[slot] = index;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
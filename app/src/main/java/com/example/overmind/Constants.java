@@ -26,5 +26,28 @@ final class Constants {
     static String SERVER_IP;
     static String DEVICE_IP;
     static boolean USE_LOCAL_CONNECTION = false;
+    static boolean NIO_RECEIVER = true; // Receive the spikes with a selector, serving all the pending datagrams at once
+    static boolean CONNECTION_WORKERS = true; // Serve every presynaptic connection with its own long-lived thread
+    static int CONNECTION_SHEDDING_POLICY = Backpressure.DROP_NEWEST; // Packets a lagging connection worker drops: DROP_NEWEST, DROP_OLDEST or COALESCE_LATEST
+    static boolean BINARY_TERMINAL_CODEC = false; // Offer the server to send the terminal updates with TerminalCodec instead of Java serialization. Off until the server reads the offer
+    static boolean SLICE_OUTPUT_SPIKES = true; // Send to each postsynaptic terminal only the spikes of the populations connected to it
+    static boolean BATCHED_SEND = true; // Send the spikes of a time step to all the postsynaptic terminals with a single sendmmsg call
+
+    /* Simulation constants */
+
+    static boolean USE_CPU_BACKEND = false; // Simulate on the CPU even if OpenCL is available
+    static boolean COMPACT_SYNAPSE_INDEXES = true; // Send one template of indexes per population instead of one per neuron
+    static boolean WORD_PARALLEL_SPIKE_FILTER = true; // Update the synaptic input of 64 presynaptic neurons at a time
+    static boolean TICK_INPUT_ASSEMBLY = true; // Write the inputs directly into a double-buffered total input swapped at every tick
+    static boolean DIRECT_BUFFER_HANDOFF = true; // Pass the input and the output of the simulation through direct buffers registered with OpenCL
+    static boolean PIPELINED_LAYERS = true; // Chain the layers of the local network with OpenCL events instead of waiting for every kernel
+    static boolean DEVICE_NEURONAL_DYNAMICS = true; // Compute the neuronal dynamics with an OpenCL kernel, requires PIPELINED_LAYERS
+    static boolean EVENT_DRIVEN_SYNAPSES = true; // Compute only the synapses whose inputs are not silent, requires PIPELINED_LAYERS
+    static boolean COALESCE_WEIGHT_UPDATES = true; // Merge the weights received between two time steps and apply them with a single call
+    static long TICK_PERIOD_NANOS = 0; // Fixed period of the simulation tick, 0 to follow the fastest presynaptic terminal
+    static boolean DROP_LATE_TICKS = false; // With a fixed period, skip the ticks missed after an overrun instead of catching up
+    static boolean SLOW_TICK_ON_BACKLOG = true; // Lengthen the tick while KernelExecutor has a backlog instead of dropping its inputs
+    static boolean OPENCL_PROFILING = false; // Time the OpenCL commands of every step on the device and add the times to the metrics
+    static long METRICS_DUMP_PERIOD_MS = 10000; // Period with which the metrics of the pipeline are written to the log, 0 to never write them
 
 }
@@ -0,0 +1,444 @@
+package com.example.overmind;
+
+import android.util.Log;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pure Java implementation of the simulation. The synaptic currents are accumulated as in
+ * kernel_vec4.cl and the neuronal dynamics are computed as in computeNeuronalDynamics, so that the
+ * simulation can run on devices that have no OpenCL implementation.
+ *
+ * The synapses of a layer are split in chunks which are served in parallel by a fork/join pool.
+ * Integer currents are accumulated with atomic additions and the weights reservoir is read as it
+ * was at the beginning of the layer, therefore the result does not depend on the scheduling.
+ */
+
+class CpuSimulationBackend implements SimulationBackend {
+
+    // The values below are the same used by native_method.h and kernel_vec4.cl
+    private static final int SYN_X_WI = 4; // Synapses per work item
+    private static final float SAMPLING_RATE = 0.5f;
+    private static final float EXC_SYNAPSE_TIME_SCALE = 1.0f;
+    private static final float INH_SYNAPSE_TIME_SCALE = 3.0f;
+    private static final float DELTA_WEIGHT = 0.0078f;
+    private static final float LEARNING_RATE = 0.01f;
+    private static final float CONVERSION_FACTOR = 100.0f / 0.05f;
+
+    // How many work items a single task serves before splitting the workload
+    private static final int WORK_ITEMS_PER_CHUNK = 256;
+
+    private final int maxMultiplications = Constants.MAX_MULTIPLICATIONS;
+    private final int filterOrder = Constants.SYNAPSE_FILTER_ORDER;
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /* Counterparts of the OpenCL memory buffers */
+
+    private final float[] synapseCoeff;
+    private final float[] synapseWeights;
+    private final byte[] synapseInput;
+    private final AtomicIntegerArray current;
+    private final char[] neuronsIndexes;
+    private final float[] presynFiringRates;
+    private final float[] postsynFiringRates;
+    private final float[] updateWeightsFlags;
+    private final char[] synapseIndexes;
+    private final int[] weightsReservoir;
+    private final int[] numOfExcWeights;
+    private final double[] neuronalDynVar;
+
+    // Changes to the weights reservoir and to the number of excitatory weights made by the current layer
+    private final AtomicIntegerArray weightsReservoirUpdates;
+    private final AtomicIntegerArray numOfExcWeightsUpdates;
+
+    // Arrays whose elements contain how many neurons and synapses each layer has
+    private int[] layersNeurons = new int[0];
+    private int[] layersSynapses = new int[0];
+
+    // How many layers the populations matrix is made of
+    private int numOfLayers = 0;
+
+    private int neuronsOffset = 0;
+
+    CpuSimulationBackend(short numOfNeurons, short numOfSynapses) {
+        int totalSynapses = numOfSynapses * numOfNeurons;
+
+        synapseCoeff = new float[filterOrder * 2];
+        synapseWeights = new float[totalSynapses];
+        synapseInput = new byte[maxMultiplications * totalSynapses];
+        current = new AtomicIntegerArray(2 * numOfNeurons);
+        neuronsIndexes = new char[totalSynapses];
+        presynFiringRates = new float[totalSynapses];
+        postsynFiringRates = new float[numOfNeurons];
+        updateWeightsFlags = new float[totalSynapses];
+        synapseIndexes = new char[totalSynapses];
+        weightsReservoir = new int[numOfNeurons];
+        numOfExcWeights = new int[numOfNeurons];
+        neuronalDynVar = new double[2 * numOfNeurons];
+        weightsReservoirUpdates = new AtomicIntegerArray(numOfNeurons);
+        numOfExcWeightsUpdates = new AtomicIntegerArray(numOfNeurons);
+
+        // Sample the exponential kernel of the synapse filter
+        float tExc = SAMPLING_RATE / EXC_SYNAPSE_TIME_SCALE;
+        float tInh = SAMPLING_RATE / INH_SYNAPSE_TIME_SCALE;
+        for (int index = 0; index < filterOrder * 2; index++) {
+            synapseCoeff[index] = index < filterOrder ?
+                    (float) (100 * index * tExc * Math.exp(- index * tExc)) :
+                    (float) (100 * (index - filterOrder) * tInh * Math.exp(- (index - filterOrder) * tInh));
+        }
+
+        for (int index = 0; index < totalSynapses; index++)
+            synapseWeights[index] = index % 2 == 0 ? 1.0f : - 0.33f;
+
+        for (int index = 0; index < numOfNeurons; index++) {
+            neuronalDynVar[2 * index] = -65.0f;
+            neuronalDynVar[2 * index + 1] = 8.0f;
+            weightsReservoir[index] = 500 * 2000;
+            numOfExcWeights[index] = numOfSynapses;
+        }
+    }
+
+    @Override
+    public byte[] simulateDynamics(byte[] synapseInput, float[] simulationParameters, byte[] weights,
+                                   int[] weightsIndexes, float[] presynFiringRates, byte[] updateWeightsFlags,
+                                   int[][] indexesMatrix, int[][] neuronsMatrix) {
+        int inputNeurons = synapseInput.length / maxMultiplications;
+
+        // Update the flags that tell which weights are plastic
+        for (int i = 0; i < updateWeightsFlags.length; i++)
+            this.updateWeightsFlags[i] = (float) updateWeightsFlags[i];
+
+        // Weights arrive from the server in the range [0, 1], spaced by DELTA_WEIGHT
+        if (weights.length != 0) {
+            if (weightsIndexes.length == weights.length) {
+                for (int i = 0; i < weights.length; i++)
+                    synapseWeights[weightsIndexes[i]] = DELTA_WEIGHT * weights[i];
+            } else {
+                for (int i = 0; i < weights.length; i++)
+                    synapseWeights[i] = DELTA_WEIGHT * weights[i];
+            }
+        }
+
+        // If the order of the matrix is 0 that means that no change has occurred
+        if (indexesMatrix.length != 0)
+            loadIndexes(indexesMatrix, neuronsMatrix);
+
+        int neuronsComputed = 0, globalIdOffset = 0;
+        int dataBytes = (neuronsOffset % 8) == 0 ? neuronsOffset / 8 : neuronsOffset / 8 + 1;
+        byte[] actionPotentials = new byte[dataBytes];
+
+        for (int i = 0; i <= numOfLayers; i++) {
+
+            if (i != 0) {
+                computeNeuronalDynamics(neuronsComputed, layersNeurons[i - 1], simulationParameters, actionPotentials);
+
+                if (i != numOfLayers) {
+                    globalIdOffset += layersSynapses[i - 1] / maxMultiplications;
+
+                    // The spikes of the layer just computed become the input of the following ones
+                    buildSynapticInput(inputNeurons, neuronsComputed, layersNeurons[i - 1], actionPotentials);
+
+                    for (int j = neuronsComputed; j < neuronsComputed + layersNeurons[i - 1]; j++)
+                        this.presynFiringRates[inputNeurons + j] = postsynFiringRates[j];
+
+                    neuronsComputed += layersNeurons[i - 1];
+                }
+            } else {
+                System.arraycopy(presynFiringRates, 0, this.presynFiringRates, 0, inputNeurons);
+                System.arraycopy(synapseInput, 0, this.synapseInput, 0, inputNeurons * maxMultiplications);
+            }
+
+            if (i < numOfLayers) {
+                pool.invoke(new SynapsesTask(globalIdOffset, globalIdOffset + layersSynapses[i] / SYN_X_WI));
+
+                // Apply the changes made by the layer to the variables governing the plasticity
+                for (int j = neuronsComputed; j < neuronsComputed + layersNeurons[i]; j++) {
+                    weightsReservoir[j] += weightsReservoirUpdates.getAndSet(j, 0);
+                    numOfExcWeights[j] += numOfExcWeightsUpdates.getAndSet(j, 0);
+                }
+            }
+        }
+
+        return actionPotentials;
+    }
+
+    /**
+     * Overwrite the weights of the runs of the delta. The runs are checked against the synapses
+     * like the native side does.
+     */
+
+    @Override
+    public boolean applyWeightsDelta(WeightsDelta delta) {
+        int weight = 0;
+
+        for (int i = 0; i < delta.numOfRuns; i++) {
+            int first = delta.runs[2 * i], length = delta.runs[2 * i + 1];
+
+            if (first < 0 || length < 0 || length > synapseWeights.length - first) {
+                Log.e("CpuSimulationBackend", "Run of weights outside the " + synapseWeights.length + " synapses");
+                return false;
+            }
+
+            for (int synapse = first; synapse < first + length; synapse++, weight++)
+                synapseWeights[synapse] = DELTA_WEIGHT * delta.weights[weight];
+        }
+
+        return true;
+    }
+
+    /**
+     * Expand the templates of the populations into the per-synapse indexes. Unlike what happens with
+     * the OpenCL kernel the expanded indexes are kept, since here they cost no transfer.
+     */
+
+    @Override
+    public boolean loadCompactIndexes(CompactIndexes compactIndexes) {
+        int[] table = compactIndexes.populationsTable;
+        int synapsesOffset = 0, population = 0;
+        neuronsOffset = 0;
+        numOfLayers = compactIndexes.layersPopulations.length;
+        layersNeurons = new int[numOfLayers];
+        layersSynapses = new int[numOfLayers];
+
+        for (int i = 0; i < numOfLayers; i++) {
+            for (int j = 0; j < compactIndexes.layersPopulations[i]; j++, population++) {
+                int info = CompactIndexes.POP_INFO_SIZE * population;
+                int numOfNeurons = table[info + CompactIndexes.NUM_OF_NEURONS];
+                int templateOffset = table[info + CompactIndexes.TEMPLATE_OFFSET];
+                int templateLength = table[info + CompactIndexes.TEMPLATE_LENGTH];
+                int synapse = synapsesOffset + table[info + CompactIndexes.FIRST_SYNAPSE];
+
+                for (int k = 0; k < numOfNeurons; k++) {
+                    char neuronIndex = (char) (neuronsOffset + table[info + CompactIndexes.FIRST_NEURON] + k);
+
+                    for (int l = 0; l < templateLength; l++, synapse++) {
+                        synapseIndexes[synapse] = (char) compactIndexes.templates[templateOffset + l];
+                        neuronsIndexes[synapse] = neuronIndex;
+                    }
+                }
+
+                layersNeurons[i] += numOfNeurons;
+                layersSynapses[i] += numOfNeurons * templateLength;
+            }
+
+            synapsesOffset += layersSynapses[i];
+            neuronsOffset += layersNeurons[i];
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Copy the synaptic and neuronal indexes of every layer sequentially, as done by
+     * simulateDynamics in native_method.cpp.
+     */
+
+    private void loadIndexes(int[][] indexesMatrix, int[][] neuronsMatrix) {
+        int synapsesOffset = 0;
+        neuronsOffset = 0;
+        numOfLayers = indexesMatrix.length;
+        layersNeurons = new int[numOfLayers];
+        layersSynapses = new int[numOfLayers];
+
+        for (int i = 0; i < numOfLayers; i++) {
+            int[] indexesArray = indexesMatrix[i];
+            int[] neuronsArray = neuronsMatrix[i];
+            int lastNeuronIndex = 0;
+
+            layersSynapses[i] = indexesArray.length;
+
+            for (int j = 0; j < layersSynapses[i]; j++) {
+                if (neuronsArray[j] != lastNeuronIndex) {
+                    lastNeuronIndex = neuronsArray[j];
+                    layersNeurons[i]++;
+                }
+
+                synapseIndexes[synapsesOffset + j] = (char) indexesArray[j];
+                neuronsIndexes[synapsesOffset + j] = (char) (neuronsOffset + layersNeurons[i]);
+            }
+
+            // Account for the last neuron, whose index never changes
+            layersNeurons[i]++;
+
+            synapsesOffset += layersSynapses[i];
+            neuronsOffset += layersNeurons[i];
+        }
+    }
+
+    /**
+     * Advance the synaptic input of the neurons of a layer in the filter pipe. Same algorithm as
+     * update_neurons in neuronal_dynamics.cl: the input of a neuron is shifted using the neuron's own
+     * spike. buildSynapticInput in populations_methods.cpp instead reads the bit offset by the number
+     * of input neurons.
+     *
+     * @param inputNeurons How many neurons of the presynaptic terminals come before those of the layers
+     * @param neuronsComputed How many neurons of the local network have been served in the past iterations
+     * @param numOfNeurons How many neurons the layer has
+     * @param actionPotentials The spikes of the local network
+     */
+
+    private void buildSynapticInput(int inputNeurons, int neuronsComputed, int numOfNeurons, byte[] actionPotentials) {
+        for (int i = neuronsComputed; i < neuronsComputed + numOfNeurons; i++) {
+            int bitValue = (actionPotentials[i / 8] >> (i % 8)) & 1;
+            int base = (inputNeurons + i) * maxMultiplications;
+
+            for (int j = maxMultiplications - 1; j >= 1; j--) {
+                byte previous = synapseInput[base + j - bitValue];
+                synapseInput[base + j] = previous != 0 && previous < maxMultiplications ? (byte) (previous + 1) : 0;
+            }
+
+            synapseInput[base] = bitValue == 1 ? 1 :
+                    synapseInput[base] != 0 && synapseInput[base] < filterOrder ? (byte) (synapseInput[base] + 1) : 0;
+        }
+    }
+
+    /**
+     * Izhikevich update of the neurons of a layer. Same algorithm as computeNeuronalDynamics in
+     * populations_methods.cpp.
+     */
+
+    private void computeNeuronalDynamics(int neuronsComputed, int numOfNeurons, float[] simulationParameters,
+                                         byte[] actionPotentials) {
+        float a = simulationParameters[0], b = simulationParameters[1], c = simulationParameters[2],
+                d = simulationParameters[3], I = simulationParameters[4];
+
+        for (int i = neuronsComputed; i < neuronsComputed + numOfNeurons; i++) {
+            float currentExc = (float) current.getAndSet(2 * i, 0);
+            float currentInh = (float) current.getAndSet(2 * i + 1, 0);
+            float currentFloat = (1.0f * currentExc + 4.0f * currentInh) * 0.01f;
+
+            double potential = neuronalDynVar[2 * i], recovery = neuronalDynVar[2 * i + 1];
+
+            // Euler integration of the Izhikevich model
+            double deltaV = 0.04f * Math.pow(potential, 2) + 5.0f * potential + 140.0f - recovery + currentFloat + I;
+            double deltaU = a * (b * potential - recovery);
+
+            potential += deltaV * SAMPLING_RATE;
+            recovery += deltaU * SAMPLING_RATE;
+
+            // Guards against underflow of the potential
+            potential = potential < 2.5f * c ? 2.5f * c : potential;
+
+            if (potential >= 30.0f) {
+                actionPotentials[i / 8] |= (1 << (i % 8));
+                recovery += d;
+                potential = c;
+                postsynFiringRates[i] += Constants.MEAN_RATE_INCREMENT * (1 - postsynFiringRates[i]);
+            } else {
+                actionPotentials[i / 8] &= ~(1 << (i % 8));
+                postsynFiringRates[i] -= Constants.MEAN_RATE_INCREMENT * postsynFiringRates[i];
+            }
+
+            neuronalDynVar[2 * i] = potential;
+            neuronalDynVar[2 * i + 1] = recovery;
+        }
+    }
+
+    /**
+     * Compute the currents of the synapses served by the work items [firstWorkItem, lastWorkItem).
+     * Every work item serves SYN_X_WI synapses belonging to the same neuron, like in kernel_vec4.cl.
+     */
+
+    private void computeSynapses(int firstWorkItem, int lastWorkItem) {
+        int lastNeuron = -1;
+        int excCurrentSum = 0, inhCurrentSum = 0, reservoirSum = 0, excWeightsSum = 0;
+
+        for (int globalId = firstWorkItem; globalId < lastWorkItem; globalId++) {
+            int neuronIndex = neuronsIndexes[SYN_X_WI * globalId];
+
+            // Consecutive work items usually belong to the same neuron, therefore the atomic
+            // operations are performed only when the neuron changes
+            if (neuronIndex != lastNeuron) {
+                flushNeuron(lastNeuron, excCurrentSum, inhCurrentSum, reservoirSum, excWeightsSum);
+                lastNeuron = neuronIndex;
+                excCurrentSum = inhCurrentSum = reservoirSum = excWeightsSum = 0;
+            }
+
+            float maxDw = (weightsReservoir[neuronIndex] & 0xffffffffL) /
+                    ((numOfExcWeights[neuronIndex] & 0xffffffffL) * CONVERSION_FACTOR);
+            float postsynFiringRate = postsynFiringRates[neuronIndex];
+            float inhCurrent = 0, excCurrent = 0, excDw = 0, excWeightsChange = 0;
+
+            for (int synapse = SYN_X_WI * globalId; synapse < SYN_X_WI * (globalId + 1); synapse++) {
+                int presynIndex = synapseIndexes[synapse];
+                int inputIndex = maxMultiplications * presynIndex;
+                float weight = synapseWeights[synapse];
+
+                // 1 if the synapse is inhibitory, otherwise 0
+                float offset = weight <= 0 ? 1.0f : 0.0f;
+                int coeffOffset = (int) (offset * filterOrder);
+
+                float coeff = 0;
+                for (int k = 0; k < maxMultiplications; k++)
+                    coeff += synapseCoeff[(synapseInput[inputIndex + k] & 0xff) + coeffOffset];
+
+                float negativeWeight = weight * offset;
+                inhCurrent += coeff * negativeWeight;
+                excCurrent += coeff * (weight - negativeWeight);
+
+                float presynFiringRate = presynFiringRates[presynIndex];
+                float dw = updateWeightsFlags[synapse] * LEARNING_RATE *
+                        (presynFiringRate * maxDw / (weight + maxDw) - (1.0f - presynFiringRate) * postsynFiringRate);
+
+                weight += dw;
+
+                // Only changes in the positive weights affect the weights reservoir
+                excDw += dw * (1.0f - offset);
+
+                // Count the weights that changed sign and became positive
+                excWeightsChange += 0.5f * (Math.abs(weight) + weight) / weight - (1.0f - offset);
+
+                synapseWeights[synapse] = weight;
+            }
+
+            excCurrentSum += (int) excCurrent;
+            inhCurrentSum += (int) inhCurrent;
+            reservoirSum += (int) (CONVERSION_FACTOR * excDw);
+            excWeightsSum += (int) excWeightsChange;
+        }
+
+        flushNeuron(lastNeuron, excCurrentSum, inhCurrentSum, reservoirSum, excWeightsSum);
+    }
+
+    private void flushNeuron(int neuronIndex, int excCurrent, int inhCurrent, int reservoirDelta, int excWeightsDelta) {
+        if (neuronIndex == -1)
+            return;
+
+        current.addAndGet(2 * neuronIndex, excCurrent);
+        current.addAndGet(2 * neuronIndex + 1, inhCurrent);
+        weightsReservoirUpdates.addAndGet(neuronIndex, - reservoirDelta);
+        numOfExcWeightsUpdates.addAndGet(neuronIndex, excWeightsDelta);
+    }
+
+    /**
+     * Task that splits the work items of a layer until the chunks are small enough to be served
+     * sequentially.
+     */
+
+    private class SynapsesTask extends RecursiveAction {
+        private final int firstWorkItem, lastWorkItem;
+
+        SynapsesTask(int firstWorkItem, int lastWorkItem) {
+            this.firstWorkItem = firstWorkItem;
+            this.lastWorkItem = lastWorkItem;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastWorkItem - firstWorkItem <= WORK_ITEMS_PER_CHUNK) {
+                computeSynapses(firstWorkItem, lastWorkItem);
+            } else {
+                int middle = (firstWorkItem + lastWorkItem) >>> 1;
+                invokeAll(new SynapsesTask(firstWorkItem, middle), new SynapsesTask(middle, lastWorkItem));
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.overmind;
+
+import android.util.Log;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Immutable table of the postsynaptic terminals the spikes are sent to. The addresses are resolved
+ * and the packets are created once, when the table is built for a new Terminal, so that sending the
+ * spikes at every time step neither looks up any address nor allocates anything.
+ *
+ * A postsynaptic terminal connected to some populations of the last layer receives only the spikes
+ * of those populations, packed one after the other starting from the first bit of its buffer. The
+ * others, like the server, receive the spikes of the whole local network. The buffers of the slices
+ * are allocated with the table and are written at every time step, hence the table must be used by
+ * a single thread.
+ */
+
+final class DestinationsTable {
+
+    // Table without any entry
+    static final DestinationsTable EMPTY_TABLE = new DestinationsTable(null, new InetSocketAddress[0], new DatagramPacket[0],
+            new int[0], new int[0], true, new int[0][][], new byte[0][], new ByteBuffer[0]);
+
+    // Terminal the table was built for
+    final Terminal terminal;
+
+    // Address of each postsynaptic terminal, null if it could not be resolved
+    final InetSocketAddress[] addresses;
+
+    // Packet addressed to each postsynaptic terminal, null if the address could not be resolved.
+    // The data of a packet is replaced at every send.
+    final DatagramPacket[] packets;
+
+    // IPv4 address and port of each postsynaptic terminal, used by the native batched send
+    final int[] ipv4Addresses;
+    final int[] ports;
+
+    // True if all the resolved addresses are IPv4, which the native batched send requires
+    final boolean ipv4;
+
+    // For each postsynaptic terminal the first neuron and the number of neurons of each run of
+    // populations it is connected to. The last element holds the total number of neurons. Null if
+    // the terminal receives the spikes of the whole local network.
+    private final int[][][] slices;
+
+    // Buffers the slices are copied into and their wrappers for the channel, null where slices is
+    private final byte[][] slicesData;
+    private final ByteBuffer[] slicesBuffers;
+
+    private DestinationsTable(Terminal terminal, InetSocketAddress[] addresses, DatagramPacket[] packets,
+                              int[] ipv4Addresses, int[] ports, boolean ipv4,
+                              int[][][] slices, byte[][] slicesData, ByteBuffer[] slicesBuffers) {
+        this.terminal = terminal;
+        this.addresses = addresses;
+        this.packets = packets;
+        this.ipv4Addresses = ipv4Addresses;
+        this.ports = ports;
+        this.ipv4 = ipv4;
+        this.slices = slices;
+        this.slicesData = slicesData;
+        this.slicesBuffers = slicesBuffers;
+    }
+
+    /**
+     * @param terminal The terminal whose postsynaptic terminals the spikes are sent to
+     * @return The table of the postsynaptic terminals of the terminal
+     */
+
+    static DestinationsTable build(Terminal terminal) {
+        if (terminal == null || terminal.postsynapticTerminals == null)
+            return EMPTY_TABLE;
+
+        int numOfDestinations = terminal.postsynapticTerminals.size();
+        InetSocketAddress[] addresses = new InetSocketAddress[numOfDestinations];
+        DatagramPacket[] packets = new DatagramPacket[numOfDestinations];
+        int[] ipv4Addresses = new int[numOfDestinations];
+        int[] ports = new int[numOfDestinations];
+        boolean ipv4 = true;
+        int[][][] slices = new int[numOfDestinations][][];
+        byte[][] slicesData = new byte[numOfDestinations][];
+        ByteBuffer[] slicesBuffers = new ByteBuffer[numOfDestinations];
+
+        for (int i = 0; i < numOfDestinations; i++) {
+            Terminal postsynapticTerminal = terminal.postsynapticTerminals.get(i);
+
+            try {
+                addresses[i] = new InetSocketAddress(InetAddress.getByName(postsynapticTerminal.ip), postsynapticTerminal.natPort);
+                packets[i] = new DatagramPacket(new byte[1], 1, addresses[i]);
+
+                byte[] address = addresses[i].getAddress().getAddress();
+                if (address.length == 4)
+                    ipv4Addresses[i] = ((address[0] & 0xff) << 24) | ((address[1] & 0xff) << 16) |
+                            ((address[2] & 0xff) << 8) | (address[3] & 0xff);
+                else
+                    ipv4 = false;
+                ports[i] = postsynapticTerminal.natPort;
+            } catch (UnknownHostException e) {
+                String stackTrace = Log.getStackTraceString(e);
+                Log.e("DestinationsTable", stackTrace);
+            }
+
+            slices[i] = Constants.SLICE_OUTPUT_SPIKES ? buildSlice(terminal, postsynapticTerminal) : null;
+            if (slices[i] != null) {
+                int numOfNeurons = slices[i][slices[i].length - 1][0];
+                slicesData[i] = new byte[(numOfNeurons + 7) / 8];
+                slicesBuffers[i] = ByteBuffer.wrap(slicesData[i]);
+            }
+        }
+
+        return new DestinationsTable(terminal, addresses, packets, ipv4Addresses, ports, ipv4, slices, slicesData, slicesBuffers);
+    }
+
+    /**
+     * Collect the populations of the last layer that are connected to a postsynaptic terminal.
+     * Populations which follow one another are joined in a single run.
+     *
+     * @param terminal The local terminal
+     * @param postsynapticTerminal One of its postsynaptic terminals
+     * @return The runs of the neurons to be sent to the terminal followed by their total number,
+     * null if the terminal is not connected to any population
+     */
+
+    private static int[][] buildSlice(Terminal terminal, Terminal postsynapticTerminal) {
+        // TODO: Maybe offsets for the populations should be built server side by partitionTool?
+
+        // Get the list of the indexes of the populations connected to this terminal
+        ArrayList<Integer> popsIdxs = terminal.outputsToPopulations == null ? null :
+                terminal.outputsToPopulations.get(postsynapticTerminal.id);
+
+        if (popsIdxs == null || terminal.popsMatrix == null || terminal.popsMatrix.length == 0)
+            return null;
+
+        // The spikes of the neurons of all the layers are sent out, the last layer comes after the others
+        int lastLayer = terminal.popsMatrix.length - 1;
+        int offset = 0;
+        for (int i = 0; i < lastLayer; i++)
+            for (Population pop : terminal.popsMatrix[i])
+                offset += pop.numOfNeurons;
+
+        int[][] runs = new int[terminal.popsMatrix[lastLayer].length + 1][];
+        int numOfRuns = 0, numOfNeurons = 0;
+
+        // Iterate over the populations of the last layer
+        for (Population pop : terminal.popsMatrix[lastLayer]) {
+
+            // If the population is connected to the postsynaptic terminal...
+            if (popsIdxs.contains(pop.id)) {
+                if (numOfRuns > 0 && runs[numOfRuns - 1][0] + runs[numOfRuns - 1][1] == offset)
+                    runs[numOfRuns - 1][1] += pop.numOfNeurons;
+                else
+                    runs[numOfRuns++] = new int[] {offset, pop.numOfNeurons};
+                numOfNeurons += pop.numOfNeurons;
+            }
+
+            offset += pop.numOfNeurons;
+        }
+
+        if (numOfRuns == 0)
+            return null;
+
+        int[][] slice = new int[numOfRuns + 1][];
+        System.arraycopy(runs, 0, slice, 0, numOfRuns);
+        slice[numOfRuns] = new int[] {numOfNeurons};
+
+        return slice;
+    }
+
+    /**
+     * Copy the spikes of the populations connected to a postsynaptic terminal into its buffer.
+     *
+     * @param outputSpikes The spikes of the whole local network, one bit per neuron
+     * @param destination The index of the postsynaptic terminal
+     * @return The spikes to be sent to the terminal, outputSpikes itself if the terminal receives
+     * all of them
+     */
+
+    byte[] slice(byte[] outputSpikes, int destination) {
+        int[][] slice = slices[destination];
+
+        if (slice == null)
+            return outputSpikes;
+
+        byte[] data = slicesData[destination];
+        int destinationBit = 0;
+
+        for (int i = 0; i < slice.length - 1; i++) {
+            copyBits(outputSpikes, slice[i][0], data, destinationBit, slice[i][1]);
+            destinationBit += slice[i][1];
+        }
+
+        return data;
+    }
+
+    /**
+     * @param destination The index of the postsynaptic terminal
+     * @return The buffer wrapping the last slice of the terminal, null if it receives all the spikes
+     */
+
+    ByteBuffer sliceBuffer(int destination) {
+        return slicesBuffers[destination];
+    }
+
+    /**
+     * Copy a run of bits, numbered from the least significant bit of the first byte. The bits of
+     * the destination outside of the run are left as they are. Bits beyond the end of the source
+     * are read as zeros.
+     */
+
+    static void copyBits(byte[] source, int sourceBit, byte[] destination, int destinationBit, int numOfBits) {
+        while (numOfBits > 0) {
+            int sourceByte = sourceBit >>> 3, destinationByte = destinationBit >>> 3;
+            int destinationShift = destinationBit & 7;
+
+            // Eight bits of the source starting from sourceBit
+            int bits = (sourceByte < source.length ? source[sourceByte] & 0xff : 0) |
+                    (sourceByte + 1 < source.length ? (source[sourceByte + 1] & 0xff) << 8 : 0);
+            bits >>>= sourceBit & 7;
+
+            // As many bits as fit in the current byte of the destination
+            int chunk = Math.min(numOfBits, 8 - destinationShift);
+            int mask = ((1 << chunk) - 1) << destinationShift;
+
+            destination[destinationByte] = (byte) ((destination[destinationByte] & ~mask) | ((bits << destinationShift) & mask));
+
+            sourceBit += chunk;
+            destinationBit += chunk;
+            numOfBits -= chunk;
+        }
+    }
+
+    int size() {
+        return addresses.length;
+    }
+
+}
@@ -2,6 +2,10 @@ package com.example.overmind;
 
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 
 /**
  * Simple class that groups together the two matrices to pass them to a different class.
@@ -17,6 +21,40 @@ class IndexesMatrices {
     }
 }
 
+/**
+ * Compact encoding of the synaptic indexes. The neurons of a population have the same inputs,
+ * therefore the indexes are stored only once per population (the template) together with a table
+ * which tells where the synapses and the neurons of each population begin. The expansion into
+ * per-synapse indexes is left to the simulation backend.
+ */
+
+class CompactIndexes {
+
+    /* Layout of the entries of the populations table */
+
+    static final int POP_INFO_SIZE = 5;
+    static final int FIRST_SYNAPSE = 0; // First synapse of the population inside its layer
+    static final int FIRST_NEURON = 1; // First neuron of the population inside its layer
+    static final int NUM_OF_NEURONS = 2;
+    static final int TEMPLATE_OFFSET = 3; // Where the template of the population begins
+    static final int TEMPLATE_LENGTH = 4; // How many synapses each neuron of the population has
+
+    // The templates of all the populations, one after the other
+    int[] templates;
+
+    // POP_INFO_SIZE integers for every population, layer after layer
+    int[] populationsTable;
+
+    // How many populations each layer has
+    int[] layersPopulations;
+
+    CompactIndexes(int[] templates, int[] populationsTable, int[] layersPopulations) {
+        this.templates = templates;
+        this.populationsTable = populationsTable;
+        this.layersPopulations = layersPopulations;
+    }
+}
+
 /**
  * Class that contains the necessary methods to build the matrix of the synaptic indexes and that
  * of the neuron indexes. The entries of the first tell which input the synapse is connected to.
@@ -26,8 +64,18 @@ class IndexesMatrices {
  */
 
 class IndexesMatrixBuilder {
-    private Terminal terminal = null;
-    private int[] tmpIndexes, tmpNeurons;
+
+    // Map that links the id of every possible input to its number of neurons, its offset in the
+    // memory buffer and the row of the matrix it belongs to (-1 for presynaptic terminals)
+    private HashMap<Integer, int[]> inputsMap = new HashMap<>();
+
+    // Orders the inputs of a population as they are stored in the memory buffer
+    private static final Comparator<int[]> offsetComparator = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] o1, int[] o2) {
+            return Integer.compare(o1[1], o2[1]);
+        }
+    };
 
     /**
      * Build a matrix whose rows are collections of indexes which give synapses access to the right
@@ -37,49 +85,43 @@ class IndexesMatrixBuilder {
      * Additionally create a matrix with as many elements as synapses in which every entry tells to
      * which neuron the respective synapse belongs.
      *
+     * The length of each row is computed first from the sizes of the populations and of their
+     * inputs, so that the row can be allocated once and filled in place.
+     *
      * @param terminal This physical terminal
      * @return A matrix of the indexes that the synapses use to access the right input
      */
 
     IndexesMatrices buildIndexesMatrix(Terminal terminal) {
-        this.terminal = terminal;
         Population[][] popsMatrix = terminal.popsMatrix;
 
+        buildInputsMap(terminal);
+
         int[][] indexesMatrix = new int[popsMatrix.length][];
         int[][] neuronsMatrix = new int[popsMatrix.length][];
 
         // Iterate over the layers
         for (int i = 0; i < popsMatrix.length; i++) {
+            ArrayList<ArrayList<int[]>> layerInputsInfo = new ArrayList<>(popsMatrix[i].length);
             int rowLength = 0;
-            indexesMatrix[i] = new int[0];
-            neuronsMatrix[i] = new int[0];
 
-            // Iterate over the populations belonging to a given layer
+            // Get the needed info about the inputs of the populations belonging to the layer and
+            // compute how many synapses the layer has
             for (int j = 0; j < popsMatrix[i].length; j++) {
-                // Get the needed info about the inputs of population (i, j)
                 ArrayList<int[]> inputsInfo = getInputsInfo(i, j, popsMatrix);
+                layerInputsInfo.add(inputsInfo);
 
-                // Build the collection of indexes for population (i, j)
-                fillArrays(inputsInfo, popsMatrix[i][j].numOfNeurons);
-
-                // Update the length of the collection of indexes for this layer
-                rowLength += tmpIndexes.length;
-
-                /*
-                Copy the collection of indexes for population j of layer i into the collection of
-                all the indexes of layer i
-                 */
-
-                int[] newIndexes = new int[rowLength];
-                int[] newNeurons = new int[rowLength];
+                rowLength += countSynapses(inputsInfo) * popsMatrix[i][j].numOfNeurons;
+            }
 
-                System.arraycopy(indexesMatrix[i], 0, newIndexes, 0, indexesMatrix[i].length);
-                System.arraycopy(tmpIndexes, 0, newIndexes, indexesMatrix[i].length, tmpIndexes.length);
-                indexesMatrix[i] = newIndexes;
+            indexesMatrix[i] = new int[rowLength];
+            neuronsMatrix[i] = new int[rowLength];
 
-                System.arraycopy(neuronsMatrix[i], 0, newNeurons, 0, neuronsMatrix[i].length);
-                System.arraycopy(tmpNeurons, 0, newNeurons, neuronsMatrix[i].length, tmpNeurons.length);
-                neuronsMatrix[i] = newNeurons;
+            // Build the collections of indexes of the populations one after the other
+            int position = 0;
+            for (int j = 0; j < popsMatrix[i].length; j++) {
+                position = fillArrays(layerInputsInfo.get(j), popsMatrix[i][j].numOfNeurons,
+                        indexesMatrix[i], neuronsMatrix[i], position);
             }
         }
 
@@ -90,6 +132,62 @@ class IndexesMatrixBuilder {
         return new IndexesMatrices(indexesMatrix, neuronsMatrix);
     }
 
+    /**
+     * Build the compact encoding of the indexes. Instead of repeating the indexes for every neuron,
+     * only those of the first neuron of each population are stored, so that the size of the
+     * encoding depends on the number of populations rather than on the number of synapses.
+     *
+     * @param terminal This physical terminal
+     * @return The templates of the populations and the table describing them
+     */
+
+    CompactIndexes buildCompactIndexes(Terminal terminal) {
+        Population[][] popsMatrix = terminal.popsMatrix;
+
+        buildInputsMap(terminal);
+
+        int[] layersPopulations = new int[popsMatrix.length];
+        ArrayList<ArrayList<int[]>> popsInputsInfo = new ArrayList<>();
+        int templatesLength = 0;
+
+        // Get the info about the inputs of all the populations and compute the size of the templates
+        for (int i = 0; i < popsMatrix.length; i++) {
+            layersPopulations[i] = popsMatrix[i].length;
+
+            for (int j = 0; j < popsMatrix[i].length; j++) {
+                ArrayList<int[]> inputsInfo = getInputsInfo(i, j, popsMatrix);
+                popsInputsInfo.add(inputsInfo);
+                templatesLength += countSynapses(inputsInfo);
+            }
+        }
+
+        int[] templates = new int[templatesLength];
+        int[] populationsTable = new int[CompactIndexes.POP_INFO_SIZE * popsInputsInfo.size()];
+        int population = 0, templateOffset = 0;
+
+        for (int i = 0; i < popsMatrix.length; i++) {
+            int firstSynapse = 0, firstNeuron = 0;
+
+            for (int j = 0; j < popsMatrix[i].length; j++, population++) {
+                int numOfNeurons = popsMatrix[i][j].numOfNeurons;
+                int templateLength = fillTemplate(popsInputsInfo.get(population), templates, templateOffset) - templateOffset;
+                int info = CompactIndexes.POP_INFO_SIZE * population;
+
+                populationsTable[info + CompactIndexes.FIRST_SYNAPSE] = firstSynapse;
+                populationsTable[info + CompactIndexes.FIRST_NEURON] = firstNeuron;
+                populationsTable[info + CompactIndexes.NUM_OF_NEURONS] = numOfNeurons;
+                populationsTable[info + CompactIndexes.TEMPLATE_OFFSET] = templateOffset;
+                populationsTable[info + CompactIndexes.TEMPLATE_LENGTH] = templateLength;
+
+                firstSynapse += numOfNeurons * templateLength;
+                firstNeuron += numOfNeurons;
+                templateOffset += templateLength;
+            }
+        }
+
+        return new CompactIndexes(templates, populationsTable, layersPopulations);
+    }
+
     /**
      * Prints on the terminal all the indexes sequentially. For debugging purposes.
      * @param matrix The collections of all the indexes
@@ -105,14 +203,47 @@ class IndexesMatrixBuilder {
     }
 
     /**
-     * Get the information about the inputs of a given population needed to build the collection of
-     * indexes. These information are the number of neurons of the input and its offset, that is to
-     * say how many neurons come before those of the inputs.
+     * Map the id of every presynaptic terminal and of every population to its number of neurons,
+     * its offset and its row.
      *
      * The input neurons are to be stored sequentially in a memory buffer, following the order with
      * which the populations appear in the matrix, from left to right and from up to down.
      * Presynaptic terminals are going to be included as well at the beginning of the memory buffer
      *
+     * @param terminal This physical terminal
+     */
+
+    private void buildInputsMap(Terminal terminal) {
+        inputsMap.clear();
+        int offset = 0;
+
+        for (Terminal presynTerminal : terminal.presynapticTerminals) {
+            if (!inputsMap.containsKey(presynTerminal.id))
+                inputsMap.put(presynTerminal.id, new int[] {presynTerminal.numOfNeurons, offset, -1});
+
+            // Even if a terminal is not the input of any population the offset should be
+            // incremented because the terminals are stored sequentially one after the other
+            offset += presynTerminal.numOfNeurons;
+        }
+
+        for (int i = 0; i < terminal.popsMatrix.length; i++) {
+            for (Population pop : terminal.popsMatrix[i]) {
+                if (!inputsMap.containsKey(pop.id))
+                    inputsMap.put(pop.id, new int[] {pop.numOfNeurons, offset, i});
+
+                offset += pop.numOfNeurons;
+            }
+        }
+    }
+
+    /**
+     * Get the information about the inputs of a given population needed to build the collection of
+     * indexes. These information are the number of neurons of the input and its offset, that is to
+     * say how many neurons come before those of the inputs.
+     *
+     * The inputs are returned in the order with which they are stored in the memory buffer. Only
+     * presynaptic terminals and populations of the previous rows are considered.
+     *
      * @param row The row of the population whose inputs must be inspected
      * @param column The column
      * @param matrix The matrix of the populations
@@ -122,85 +253,53 @@ class IndexesMatrixBuilder {
 
     private ArrayList<int[]> getInputsInfo(int row, int column, Population[][] matrix) {
         Population pop = matrix[row][column];
-        ArrayList<int[]> inputsInfo = new ArrayList<>();
-        int offset = 0;
+        ArrayList<int[]> inputsInfo = new ArrayList<>(pop.inputIndexes.size());
 
-        // Is any of the inputs a presynaptic terminal?
-        for (Terminal presynTerminal : terminal.presynapticTerminals) {
-            if (pop.inputIndexes.contains(presynTerminal.id)) {
-                int[] info = new int[2];
-                info[0] = presynTerminal.numOfNeurons;
-                info[1] = offset;
-                inputsInfo.add(info);
-            }
+        for (Integer inputId : pop.inputIndexes) {
+            int[] input = inputsMap.get(inputId);
 
-            // Even if an input was not found the offset should be incremented because an input may
-            // be found later and the populations as well as the synaptic terminals are stored
-            // sequentially one after the other
-            offset += presynTerminal.numOfNeurons;
+            if (input != null && input[2] < row)
+                inputsInfo.add(input);
         }
 
-        // Is any of the inputs a population?
-        for (int i = 0; i < row; i++) {
-            for (int j = 0; j < matrix[i].length; j++) {
-                if (pop.inputIndexes.contains(matrix[i][j].id)) {
-                    int[] info = new int[2];
-                    info[0] = matrix[i][j].numOfNeurons;
-                    info[1] = offset;
-                    inputsInfo.add(info);
-                }
-
-                offset += matrix[i][j].numOfNeurons;
-            }
+        Collections.sort(inputsInfo, offsetComparator);
+
+        // The same input may have been listed more than once
+        for (int i = inputsInfo.size() - 1; i > 0; i--) {
+            if (inputsInfo.get(i) == inputsInfo.get(i - 1))
+                inputsInfo.remove(i);
         }
+
         return inputsInfo;
     }
 
     /**
-     * Create an array of indexes. Each index is a number which tells the position of the respective
-     * input in the memory buffer. Every neuron of a given population has the same array of indexes,
-     * however the indexes are copied repeatedly until they span all the inputs of all the neurons
-     * of a population.
+     * Fill a portion of the arrays of indexes. Each index is a number which tells the position of
+     * the respective input in the memory buffer. Every neuron of a given population has the same
+     * array of indexes, however the indexes are copied repeatedly until they span all the inputs of
+     * all the neurons of a population.
      *
      * This is made necessary by the fact that the OpenCL kernel are not aware of how neurons are
      * grouped into populations.
      *
-     * Also, create an array whose elements are neurons index. For each synapse an element is created.
+     * Also, fill the array whose elements are neurons index. For each synapse an element is created.
      * The value of said element tells to which neuron the synapse belongs.
      *
      * @param inputsInfo: An array of couples of integer, representing respectively the number of
      *                  neurons and the offset of a given input.
      * @param numOfNeurons: The number of neurons of the population for which the array is being
      *                    built.
+     * @param indexes: The array of the synaptic indexes of the layer
+     * @param neurons: The array of the neurons indexes of the layer
+     * @param position: Where the indexes of the population begin
+     * @return The position following the last index of the population
      */
 
-    private void fillArrays(ArrayList<int[]> inputsInfo, int numOfNeurons) {
-        int[] indexes = new int[0];
-
-        // This indexes count all the synapses that have been considered
-        int j = 0;
-
-        // Iterate over the inputs of the population
-        for (int[] info : inputsInfo) {
-            int numOfSynapses = info[0], offset = info[1];
-
-            // Array which is going to contain only the indexes for the current input
-            int[] tmpIndexes = new int[numOfSynapses];
-
-            // Populate the array for the current input
-            for (int i = 0; i < numOfSynapses; i++) { tmpIndexes[i] = i + offset; }
+    private int fillArrays(ArrayList<int[]> inputsInfo, int numOfNeurons, int[] indexes, int[] neurons, int position) {
+        int firstPosition = position;
 
-            j += numOfSynapses;
-
-            /*
-            Put together all the arrays that have been built up until this point for the population
-             */
-
-            int[] newIndexes = new int[j];
-            System.arraycopy(indexes, 0, newIndexes, 0, indexes.length);
-            System.arraycopy(tmpIndexes, 0, newIndexes, indexes.length, tmpIndexes.length);
-            indexes = newIndexes;
-        }
+        // Build the indexes of the first neuron
+        int synapsesPerNeuron = fillTemplate(inputsInfo, indexes, position) - firstPosition;
 
         /*
         Once the array of indexes has been created for one neuron, copy it as many times as
@@ -210,14 +309,52 @@ class IndexesMatrixBuilder {
         synapse belongs
          */
 
-        tmpIndexes = new int[indexes.length * numOfNeurons];
-        tmpNeurons = new int[indexes.length * numOfNeurons];
         for (int i = 0; i < numOfNeurons; i++) {
-            System.arraycopy(indexes, 0, tmpIndexes, i * indexes.length, indexes.length);
-            for (j = i * indexes.length; j < (i + 1) * indexes.length; j++)
-                tmpNeurons[j] = i;
+            int neuronPosition = firstPosition + i * synapsesPerNeuron;
+
+            if (i != 0)
+                System.arraycopy(indexes, firstPosition, indexes, neuronPosition, synapsesPerNeuron);
+
+            Arrays.fill(neurons, neuronPosition, neuronPosition + synapsesPerNeuron, i);
         }
 
+        return firstPosition + numOfNeurons * synapsesPerNeuron;
+    }
+
+    /**
+     * Write the indexes of a single neuron of a population, iterating over the inputs of the
+     * population.
+     *
+     * @param inputsInfo: An array of couples of integer, representing respectively the number of
+     *                  neurons and the offset of a given input.
+     * @param indexes: The array where the indexes are written
+     * @param position: Where the indexes of the neuron begin
+     * @return The position following the last index of the neuron
+     */
+
+    private int fillTemplate(ArrayList<int[]> inputsInfo, int[] indexes, int position) {
+        for (int[] info : inputsInfo) {
+            int numOfSynapses = info[0], offset = info[1];
+
+            for (int i = 0; i < numOfSynapses; i++)
+                indexes[position++] = i + offset;
+        }
+
+        return position;
+    }
+
+    /**
+     * @param inputsInfo: The info about the inputs of a population
+     * @return How many synapses each neuron of the population has
+     */
+
+    private int countSynapses(ArrayList<int[]> inputsInfo) {
+        int synapsesPerNeuron = 0;
+
+        for (int[] info : inputsInfo)
+            synapsesPerNeuron += info[0];
+
+        return synapsesPerNeuron;
     }
 
 }
@@ -20,35 +20,55 @@ class InputCreator implements Runnable {
     private BlockingQueue<InputCreatorOutput> inputCreatorQueue;
     static AtomicLong waitTime = new AtomicLong(500000000);
     private int numOfConnections = 0;
-    private boolean[] connectionsServed;
+    private boolean[] connectionsServed = new boolean[0];
     private List<Input> inputs = new ArrayList<>();
     private BlockingQueue<Object> clockSignals;
 
+    // Clock which decides when the input of a tick is complete
+    private TickClock tickClock;
+
+    // Time elapsed between the closing of two ticks, and when the last one was closed
+    private final LatencyHistogram tickDuration = MetricsRegistry.histogram("tick");
+    private long lastTickTime = 0;
+
+    // Pool the buffers of the spikes are given back to once the inputs have been put together
+    private SpikesBufferPool spikesBufferPool;
+
     // Flags that is set the first time an input from the lateral connection is received
     private boolean lateralConnFired = false;
 
-    InputCreator(BlockingQueue<Input> l, BlockingQueue<InputCreatorOutput> b, BlockingQueue<Object> clockSignals)  {
+    // Flag set by the service when the thread must stop
+    private volatile boolean shutdown = false;
+
+    // Array holding the complete input to be passed to KernelExecutor
+    private byte[] totalSynapticInput = null;
+
+    // Array holding the firing rates of the neurons of all the presynaptic terminals
+    private float[] totalFiringRates = null;
+
+    InputCreator(BlockingQueue<Input> l, BlockingQueue<InputCreatorOutput> b, BlockingQueue<Object> clockSignals,
+                 SpikesBufferPool spikesBufferPool)  {
 
         kernelInitQueue = l;
         inputCreatorQueue = b;
         this.clockSignals = clockSignals;
+        this.spikesBufferPool = spikesBufferPool;
+        tickClock = TickClock.create(clockSignals);
 
     }
 
     @Override
     public void run() {
 
+        if (Constants.TICK_INPUT_ASSEMBLY) {
+            publishTicks();
+            return;
+        }
+
         // Array holding flags which specify which connections have been served
         connectionsServed  = new boolean[numOfConnections];
 
-        // Array holding the complete input to be passed to KernelExecutor
-        byte[] totalSynapticInput = null;
-
-        // Array holding the firing rates of the neurons of all the presynaptic terminals
-        float[] totalFiringRates = null;
-
-        // TODO Use local shutdown set by method
-        while (!SimulationService.shutdown) {
+        while (!shutdown) {
 
             // Object holding the first input in the kernelInitialzer queue
             Input firstInput;
@@ -71,9 +91,7 @@ class InputCreator implements Runnable {
 
             // The retrieved Input is put in the list of inputs waiting to be put together, and the
             // respective flag is set
-            inputs.set(firstInput.presynTerminalIndex, firstInput);
-            lateralConnFired = lateralConnFired | firstInput.presynTerminalIndex == Constants.INDEX_OF_LATERAL_CONN;
-            connectionsServed[firstInput.presynTerminalIndex] = true;
+            collect(firstInput);
             numOfConnectionsServed++;
 
             //Log.d("InputCreator", "firstInput " + firstInput.presynTerminalIndex + " " + kernelInitQueue.remainingCapacity());
@@ -99,9 +117,7 @@ class InputCreator implements Runnable {
 
                         //Log.d("InputCreator", "currentInput " + currentInput.presynTerminalIndex + " " + kernelInitQueue.remainingCapacity());
 
-                        inputs.set(currentInput.presynTerminalIndex, currentInput);
-                        lateralConnFired = lateralConnFired | currentInput.presynTerminalIndex == Constants.INDEX_OF_LATERAL_CONN;
-                        connectionsServed[currentInput.presynTerminalIndex] = true;
+                        collect(currentInput);
                         iterator.remove();
                         numOfConnectionsServed++;
                     }
@@ -121,87 +137,183 @@ class InputCreator implements Runnable {
                         numOfConnectionsServed == numOfConnections;
             }
 
-            int totalLength = 0;
+            assembleInputs(numOfConnections);
 
-            // Iterate over the collection of inputs taken from the kernelInitialzer queue
-            for (int i = 0; i < numOfConnections; i++) {
+            try {
+                int kernelInitQueueSize = kernelInitQueue.size();
+                int remainingCapacity = kernelInitQueue.remainingCapacity();
+                int waitFactor = remainingCapacity / (kernelInitQueueSize + remainingCapacity) * 8;
 
-                Input currentInput = inputs.get(i);
+                tickClock.awaitTick();
+                recordTick();
 
-                // If the input is null then the respective connection has not fired yet
-                if (currentInput != null) {
+                long period = tickClock.periodNanos();
+                if (period != 0) {
+                    boolean inputSent = inputCreatorQueue.offer(new InputCreatorOutput(totalSynapticInput, totalFiringRates), period * waitFactor, TimeUnit.NANOSECONDS);
 
-                    int currentInputLength = currentInput.synapticInput.length;
-                    int firingRateLength = currentInput.firingRates.length;
-                    totalLength = currentInput.connectionsOffset[currentInput.connectionsOffset.length - 1];
+                    if (!inputSent)
+                        Backpressure.drop(Backpressure.TICKS);
+                } else {
+                    Log.d("InputCreator", "clock null input NOT sent");
+                }
 
-                    /*
-                    If the complete input we're building is made of inputs sampled at different
-                    times, there's a possibility that not all of them may fit. Therefore, we must
-                    check for the remaining space.
-                      */
+                // In case the pressure on the buffer is such that the capacity goes under the
+                // threshold, to prevent the application from stalling the oldest inputs are dropped
+                // until half of the queue is free
+                if (kernelInitQueue.remainingCapacity() < (kernelInitQueue.size() / 4)) {
+                    Input oldestInput;
+                    while (kernelInitQueue.remainingCapacity() < kernelInitQueue.size() &&
+                            (oldestInput = kernelInitQueue.poll()) != null) {
+                        spikesBufferPool.release(oldestInput.spikesBuffer);
+                        Backpressure.drop(Backpressure.KERNEL_INIT_QUEUE);
+                    }
+                }
 
-                    int firingRateOffset = (currentInput.connectionsOffset[i] - currentInput.connectionsSize[i]);
-                    int offset = firingRateOffset * Constants.MAX_MULTIPLICATIONS;
+                // Reset the flags that remember which input has been served
+                connectionsServed = new boolean[numOfConnections];
 
-                    if (totalSynapticInput == null) {
-                        totalSynapticInput = new byte[totalLength * Constants.MAX_MULTIPLICATIONS];
-                        totalFiringRates = new float[totalLength];
-                    }
+            } catch (InterruptedException e) {
+                String stackTrace = Log.getStackTraceString(e);
+                Log.e("InputCreator", stackTrace);
+            }
 
-                    if ((totalSynapticInput.length - offset) >= currentInputLength) {
-                        System.arraycopy(currentInput.synapticInput, 0, totalSynapticInput, offset, currentInputLength);
-                        System.arraycopy(currentInput.firingRates, 0, totalFiringRates, firingRateOffset, firingRateLength);
-                    }
+        }
 
-                    // Now that the input has been processed the reference in the buffer should be null
-                    inputs.set(i, null);
+    }
 
-                }
+    void shutDown() {
 
-            }
+        shutdown = true;
+        Log.d("InputCreator", "Tick clock: " + tickClock);
+
+    }
+
+    TickClock tickClock() {
+        return tickClock;
+    }
+
+    private void recordTick() {
+        long now = System.nanoTime();
+
+        if (lastTickTime != 0)
+            tickDuration.record(now - lastTickTime);
+        lastTickTime = now;
+    }
+
+    /**
+     * Loop used when the connections write their inputs directly into the total input of the
+     * topology. Each tick of the clock closes a tick of the simulation: the buffers of the total
+     * input are swapped and the one just completed is passed to KernelExecutor, as long as some
+     * connection has fired. If KernelExecutor has not released the input of the previous tick yet,
+     * or its queue is full, the buffers are not swapped: the tick is not closed and the connections
+     * keep writing into the same buffer. Meanwhile the clock is slowed down.
+     */
+
+    private void publishTicks() {
+
+        while (!shutdown) {
 
             try {
-                int kernelInitQueueSize = kernelInitQueue.size();
-                int remainingCapacity = kernelInitQueue.remainingCapacity();
-                int waitFactor = remainingCapacity / (kernelInitQueueSize + remainingCapacity) * 8;
+                tickClock.awaitTick();
+                recordTick();
 
-                Object newClockSignal = clockSignals.poll(waitTime.get() * 8, TimeUnit.NANOSECONDS);
+                TotalInput totalInput = KernelInitializer.totalInput();
 
-                // newClockSignal != null
-                if (waitTime.get() != 0) {
-                    boolean inputSent = inputCreatorQueue.offer(new InputCreatorOutput(totalSynapticInput, totalFiringRates), waitTime.get() * waitFactor, TimeUnit.NANOSECONDS);
+                // Only this thread puts elements in the queue, therefore once there is room the
+                // output of the swap can always be offered. KernelExecutor only releases buffers,
+                // hence a swap allowed here is allowed below as well
+                boolean backlog = totalInput.backlogged() || inputCreatorQueue.remainingCapacity() == 0;
 
-                    /*
-                    if (inputSent)
-                        Log.d("InputCreator", "input sent ");
-                    else
-                        Log.d("InputCreator", "input NOT sent");
-                        */
-                } else {
-                    Log.d("InputCreator", "clock null input NOT sent");
-                }
+                if (Constants.SLOW_TICK_ON_BACKLOG)
+                    tickClock.slowdown = Backpressure.tickSlowdown(tickClock.slowdown, backlog);
 
-                // In cas the pressure on the buffer is such that the capacity goes under the
-                // threshold, to prevent the application from stalling the queue is cleared
-                if (kernelInitQueue.remainingCapacity() < (kernelInitQueue.size() / 4)) {
-                    Log.e("InputCreator", "Capacity 1/4th of size: Must clear kernelInitQueue");
-                    kernelInitQueue.clear();
+                if (backlog) {
+                    Backpressure.drop(Backpressure.MERGED_TICKS);
+                    continue;
                 }
 
-                // Reset the flags that remember which input has been served
-                connectionsServed = new boolean[numOfConnections];
+                InputCreatorOutput output = totalInput.swap();
+
+                // No packet has been received during the tick
+                if (output == null)
+                    continue;
+
+                inputCreatorQueue.offer(output);
 
             } catch (InterruptedException e) {
                 String stackTrace = Log.getStackTraceString(e);
                 Log.e("InputCreator", stackTrace);
+                return;
             }
 
         }
 
     }
 
-    private void resizeArrays(int newNumOfConnections) {
+    /**
+     * Put an input in the list of the inputs waiting to be put together and mark the respective
+     * connection as served.
+     */
+
+    void collect(Input input) {
+        inputs.set(input.presynTerminalIndex, input);
+        lateralConnFired = lateralConnFired | input.presynTerminalIndex == Constants.INDEX_OF_LATERAL_CONN;
+        connectionsServed[input.presynTerminalIndex] = true;
+    }
+
+    /**
+     * Copy the synaptic inputs and the firing rates of the collected inputs into the total arrays.
+     *
+     * @param numOfConnections The number of presynaptic connections
+     */
+
+    void assembleInputs(int numOfConnections) {
+
+        int totalLength = 0;
+
+        // Iterate over the collection of inputs taken from the kernelInitialzer queue
+        for (int i = 0; i < numOfConnections; i++) {
+
+            Input currentInput = inputs.get(i);
+
+            // If the input is null then the respective connection has not fired yet
+            if (currentInput != null) {
+
+                int currentInputLength = currentInput.synapticInput.length;
+                int firingRateLength = currentInput.firingRates.length;
+                totalLength = currentInput.connectionsOffset[currentInput.connectionsOffset.length - 1];
+
+                /*
+                If the complete input we're building is made of inputs sampled at different
+                times, there's a possibility that not all of them may fit. Therefore, we must
+                check for the remaining space.
+                  */
+
+                int firingRateOffset = (currentInput.connectionsOffset[i] - currentInput.connectionsSize[i]);
+                int offset = firingRateOffset * Constants.MAX_MULTIPLICATIONS;
+
+                if (totalSynapticInput == null) {
+                    totalSynapticInput = new byte[totalLength * Constants.MAX_MULTIPLICATIONS];
+                    totalFiringRates = new float[totalLength];
+                }
+
+                if ((totalSynapticInput.length - offset) >= currentInputLength) {
+                    System.arraycopy(currentInput.synapticInput, 0, totalSynapticInput, offset, currentInputLength);
+                    System.arraycopy(currentInput.firingRates, 0, totalFiringRates, firingRateOffset, firingRateLength);
+                }
+
+                // Now that the input has been processed the reference in the buffer should be null
+                // and the spikes it was built from are no longer needed
+                inputs.set(i, null);
+                spikesBufferPool.release(currentInput.spikesBuffer);
+
+            }
+
+        }
+
+    }
+
+    void resizeArrays(int newNumOfConnections) {
 
         if (newNumOfConnections != numOfConnections) {
 
@@ -229,14 +341,16 @@ class Input {
     int[] connectionsSize;
     int[] connectionsOffset;
     float firingRates[];
+    byte[] spikesBuffer; // Buffer of the packet the input was built from, taken from SpikesBufferPool
 
-    Input(byte[] c, int i, int[] i1, int[] i2, float[] f) {
+    Input(byte[] c, int i, int[] i1, int[] i2, float[] f, byte[] b) {
 
         synapticInput = c;
         presynTerminalIndex = i;
         connectionsSize = i1;
         connectionsOffset = i2;
         firingRates = f;
+        spikesBuffer = b;
 
     }
 
@@ -246,6 +360,9 @@ class InputCreatorOutput {
     byte[] resizedSynapticInput;
     float[] resizedFiringRates;
 
+    // Set by KernelExecutor once the arrays are no longer read, so that they can be written again
+    volatile boolean released = true;
+
     InputCreatorOutput(byte[] resizedSynapticInput, float[] resizedFiringRates) {
         this.resizedSynapticInput = resizedSynapticInput;
         this.resizedFiringRates = resizedFiringRates;
@@ -3,13 +3,14 @@ package com.example.overmind;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 // TODO: For the returned Integer used final variables with meaningful names.
 
@@ -25,17 +26,12 @@ class KernelInitializer implements Callable<Integer> {
     private String presynTerminalIP;
     private int presynTerminalNatPort;
 
-    // Local collection of the presynaptic terminals
-    private static volatile List<Terminal> presynapticTerminals = Collections.synchronizedList(new ArrayList<Terminal>());
+    // Address of the presynaptic terminal packed in a long, used to look it up in connectionsTable
+    private long presynTerminalKey;
 
-    // Each element of the array represents the number of neurons of the respective presynaptic connection
-    private static int[] connectionsSize;
-
-    // Each element represents of many neurons come before the ones of the respective connections in the total synaptic input
-    private static int[] connectionsOffset;
-
-    // The number of presynaptic connections
-    static int numOfConnections = 0; // DO NOT make private
+    // Snapshot of the presynaptic connections of the current topology. It is replaced as a whole
+    // whenever the terminal is updated, so that no thread ever sees a topology being built
+    private static final AtomicReference<Topology> topology = new AtomicReference<>(new Topology(null));
 
     // Local variable storing information about the terminal in use
     private Terminal thisTerminal;
@@ -44,52 +40,19 @@ class KernelInitializer implements Callable<Integer> {
     // figured out
     private byte[] inputSpikesBuffer;
 
-    // Object used for synchronization
-    private static final Object lock = new Object();
-
-    // Array of Objects used to lock the single connections
-    private static final Object[] threadsLocks = new Object[Constants.NUMBER_OF_SYNAPSES];
-
-    // List of buffers, one for each connections
-    private static volatile List<ArrayBlockingQueue<byte[]>> presynTerminalQueue;
-
-    // List of flags indicating whether the respective connections is being served already
-    private static volatile List<Boolean> threadIsFree = Collections.synchronizedList(new ArrayList<Boolean>());
-
-    // List of nat ports that have not been mapped to a terminal yet
-    private static volatile List<Integer> unknownPorts = Collections.synchronizedList(new ArrayList<Integer>());
-
-    // List of ports that have been mapped
-    private static volatile List<Integer> knownPorts = Collections.synchronizedList(new ArrayList<Integer>());
-
-    // Double array with one dimension representing the presynaptic terminals and the other the
-    // input of a certain terminal
-    private static volatile byte[][] synapticInputCollection;
-
-    // Double array where, as before, the first dimension represents a presynaptic terminal and the
-    // one the firing rates of the neurons belonging to said terminal
-    private static volatile float[][] firingRatesCollection;
-
-    // Collection of the times at which the connections fired
-    private static volatile long[] lastFiringTimes;
-
-    // Collections of average time intervals between spikes for each connection
-    private static volatile long[] meanTimeIntervals;
-
-    // Map that links the local port of a presynaptic terminal to index of the terminal
-    private static volatile ConcurrentHashMap<Integer, Integer> connectionsMap;
-
-    // Index of the shortest time interval among the ones in the collection
-    private static AtomicInteger shortestTInterIndex;
+    // Pool the buffer of the spikes must be given back to if it is not passed to InputCreator
+    private SpikesBufferPool spikesBufferPool;
 
     KernelInitializer(BlockingQueue<Input> b, String s, int i, byte[] b1, Terminal t,
-                      BlockingQueue<Object> b2) {
+                      BlockingQueue<Object> b2, SpikesBufferPool p) {
         this.kernelInitQueue = b;
         this.presynTerminalIP = s;
         this.presynTerminalNatPort = i;
+        this.presynTerminalKey = ConnectionsTable.key(s, i);
         this.inputSpikesBuffer = b1;
         this.thisTerminal = t;
         this.clockSignalsQueue = b2;
+        this.spikesBufferPool = p;
     }
 
     @Override
@@ -99,226 +62,402 @@ class KernelInitializer implements Callable<Integer> {
         When we are putting together a new input there is some initialization to do...
         */
 
-        if (thisTerminal != null) {
+        if (thisTerminal != null)
+            initialize(thisTerminal);
 
-            Log.d("KernelInitializer", "New terminal means new initialization...");
+        // The whole packet is served using the same snapshot of the topology
+        Topology topology = KernelInitializer.topology.get();
+        int numOfConnections = topology.numOfConnections;
 
-            // If the information of the terminal have been updated...
-            synchronized (lock) {
+        if (numOfConnections == 0) {
+            Log.e("KernelInitializer", "No presynaptic connection has been established: exiting KernelInitializer");
+            spikesBufferPool.release(inputSpikesBuffer);
+            return 0;
+        }
 
-                // We build a new arraylist using that contained in thisTerinal because thisTerminal
-                // is usually null but we want to be able to reference the arraylist at each iteration.
-                presynapticTerminals = new ArrayList<>(thisTerminal.presynapticTerminals);
+        // Identify the presynaptic terminal using the address contained in the header of the
+        // datagram packet. Once a connection has been identified its address is in the table
+        int presynTerminalIndex = topology.connectionsTable.indexOf(presynTerminalKey);
+
+        if (presynTerminalIndex == ConnectionsTable.NOT_FOUND) {
+
+            presynTerminalIndex = indexOfTerminal(topology.presynapticTerminals,
+                    customHashCode(presynTerminalIP, presynTerminalNatPort));
+
+            // Only the first packets of a connection get here, therefore the lock of the topology
+            // is seldom taken
+            synchronized (topology) {
+                List<Integer> unknownPorts = topology.unknownPorts;
+                List<Integer> knownPorts = topology.knownPorts;
+                HashMap<Integer, Integer> connectionsMap = topology.connectionsMap;
+
+                // If the presynaptic terminal was not found and its mapping is null.
+                if (presynTerminalIndex == -1 && connectionsMap.get(presynTerminalNatPort) == null) {
+                    if (!unknownPorts.contains(presynTerminalNatPort)) {
+                        if (numOfConnections < knownPorts.size() + 1 + unknownPorts.size()) {
+                            Log.e("KernelInitializer",
+                                    "Inbound connections are more than expected: This should not happen!");
+
+                            spikesBufferPool.release(inputSpikesBuffer);
+                            return 1;
+                        } else {
+                            unknownPorts.add(presynTerminalNatPort);
+                        }
+                    }
+
+                    // Order the ports which we could not map to a presynaptic terminal in ascending order
+                    Collections.sort(unknownPorts);
+
+                    Log.d("KernelInitializer", "unknownPorts " + unknownPorts.size() + " numOfConnections " + numOfConnections + " knownPorts " + knownPorts.size());
+                    for (Integer unknownPort : unknownPorts) {
+                        Log.d("KernelInitializer", "unknownPort " + unknownPort);
+                    }
+                    for (Integer knownPort : knownPorts) {
+                        Log.d("KernelInitializer", "knownPort " + knownPort);
+                    }
 
-                /* Point the Objects to new memory space */
+                    // If the number of collected ports is equal to that of the presyn terminals that have not been mapped
+                    if (unknownPorts.size() == numOfConnections - knownPorts.size()) {
 
-                numOfConnections = presynapticTerminals.size();
-                synapticInputCollection = new byte[numOfConnections][];
-                firingRatesCollection = new float[numOfConnections][];
-                lastFiringTimes = new long[numOfConnections];
-                meanTimeIntervals = new long[numOfConnections];
-                shortestTInterIndex = new AtomicInteger(0);
-                threadIsFree = new ArrayList<>(numOfConnections);
-                unknownPorts = new ArrayList<>(numOfConnections);
-                knownPorts = new ArrayList<>(numOfConnections);
-                connectionsMap = new ConcurrentHashMap<>(numOfConnections);
+                        Log.d("KernelInitializer", "Found all missing connections");
 
-                // We add the lateral connection here since no packet will be received from this connection
-                // until the neurons of this terminal fire, but that won't happen unless all the presynaptic connections
-                // have been mapped
-                if (Constants.INDEX_OF_LATERAL_CONN != - 1) {
-                    knownPorts.add(thisTerminal.natPort);
-                    connectionsMap.put(thisTerminal.natPort, Constants.INDEX_OF_LATERAL_CONN);
-                }
+                        // The ports of the connections found already are not in the list, which can
+                        // therefore run out before the loop does
+                        for (int i = 0; i < numOfConnections && !unknownPorts.isEmpty(); i++) {
+                            // Lowest available port number
+                            int natPort = unknownPorts.get(0);
+
+                            /*
+                            The block is synchronized as multiple threads might access it simultaneously and thus
+                            add/remove ports to the respective arraylists more than once
+                             */
+
+                            int index = i;
+                            // Find the right index for the connection
+                            while (connectionsMap.containsValue(index)) {
+                                index++;
+                            }
+
+                            // Skip the iteration if the corresponding map has already been found
+                            if (connectionsMap.get(natPort) == null) {
+
+                                // Since the ports are ordered in ascending order, the map consists in assigning the first available
+                                // port to the current terminal
+                                connectionsMap.put(natPort, index);
+
+                                // Remove the port that has been used right now
+                                unknownPorts.remove(0);
+
+                                // The number must be increased since we've just found out a new map
+                                knownPorts.add(natPort);
+                            }
+                            /* [End of if] */
+                        }
+                        /* [End of for] */
+                    }
+                    /* [End of if] */
+
+                    spikesBufferPool.release(inputSpikesBuffer);
+                    return 0;
+                } else if (presynTerminalIndex == -1 && connectionsMap.get(presynTerminalNatPort) != null) {
 
-                presynTerminalQueue = new ArrayList<>(numOfConnections);
-                connectionsSize = new int[numOfConnections];
-                connectionsOffset = new int[numOfConnections];
-                int totalOffset = 0;
-
-                for (int i = 0; i < numOfConnections; i++) {
-                    threadsLocks[i] = new Object();
-                    threadIsFree.add(false);
-                    presynTerminalQueue.add(new ArrayBlockingQueue<byte[]>(4));
-                    connectionsSize[i] = presynapticTerminals.get(i).numOfNeurons;
-                    totalOffset += connectionsSize[i];
-                    connectionsOffset[i] = totalOffset;
-                    meanTimeIntervals[i] = Integer.MAX_VALUE;
+                    // If the presynaptic terminal was not found but its nat port has already been mapped to an index
+                    presynTerminalIndex = connectionsMap.get(presynTerminalNatPort);
+
+                } else if (presynTerminalIndex != -1 && connectionsMap.get(presynTerminalNatPort) == null) {
+
+                    // If the presynaptic terminal was found for the first time, update its entry in the connectionsMap
+                    connectionsMap.put(presynTerminalNatPort, presynTerminalIndex);
+
+                    // Increase the number of connections maps that have been discovered
+                    if (!knownPorts.contains(presynTerminalNatPort)) {
+                        knownPorts.add(presynTerminalNatPort);
+                    }
                 }
 
+                // From now on the packets of this connection are identified without taking the lock
+                topology.connectionsTable = topology.connectionsTable.with(presynTerminalKey, presynTerminalIndex);
+
             }
 
         }
 
-        if (numOfConnections == 0) {
-            Log.e("KernelInitializer", "No presynaptic connection has been established: exiting KernelInitializer");
-            return 0;
-        }
+        ConnectionSlot connection = topology.connections[presynTerminalIndex];
 
-        // Identify the presynaptic terminal using the IP contained in the header of the datagram
-        // packet
-        Terminal presynTerminal = new Terminal();
-        presynTerminal.ip = presynTerminalIP;
-        presynTerminal.natPort = presynTerminalNatPort;
-        presynTerminal.id = presynTerminal.customHashCode();
-        int presynTerminalIndex = presynapticTerminals.indexOf(presynTerminal);
-
-        synchronized (lock) {
-
-            // If the presynaptic terminal was not found and its mapping is null.
-            if (presynTerminalIndex == -1 && connectionsMap.get(presynTerminalNatPort) == null) {
-                if (!unknownPorts.contains(presynTerminalNatPort)) {
-                    if (numOfConnections < knownPorts.size() + 1 + unknownPorts.size()) {
-                        Log.e("KernelInitializer",
-                                "Inbound connections are more than expected: This should not happen!");
-
-                        return 1;
-                    } else {
-                        unknownPorts.add(presynTerminalNatPort);
-                    }
-                }
+        // The packets of a connection are served one at a time, while those of the other connections
+        // are served in parallel. With one worker per connection the lock is never contended
+        synchronized (connection) {
 
-                // Order the ports which we could not map to a presynaptic terminal in ascending order
-                Collections.sort(unknownPorts);
+            /*
+            Create the array which stores the bits representing the spikes emitted by the neuron of the
+            chosen presynaptic terminal
+             */
 
-                Log.d("KernelInitializer", "unknownPorts " + unknownPorts.size() + " numOfConnections " + numOfConnections + " knownPorts " + knownPorts.size());
-                for (Integer unknownPort : unknownPorts) {
-                    Log.d("KernelInitializer", "unknownPort " + unknownPort);
-                }
-                for (Integer knownPort : knownPorts) {
-                    Log.d("KernelInitializer", "knownPort " + knownPort);
-                }
+            Terminal presynTerminal = topology.presynapticTerminals.get(presynTerminalIndex);
 
-                // If the number of collected ports is equal to that of the presyn terminals that have not been mapped
-                if (unknownPorts.size() == numOfConnections - knownPorts.size()) {
+            // Input passed to InputCreator, unless the connections write directly into the total input
+            Input input = null;
 
-                    Log.d("KernelInitializer", "Found all missing connections");
+            if (Constants.TICK_INPUT_ASSEMBLY) {
 
-                    for (int i = 0; i < numOfConnections; i++) {
-                        // Lowest available port number
-                        int natPort = unknownPorts.get(0);
+                // The input of the connection is written directly into the total input of the tick,
+                // therefore the spikes are no longer needed
+                topology.totalInput.update(presynTerminalIndex, inputSpikesBuffer);
+                spikesBufferPool.release(inputSpikesBuffer);
 
-                        /*
-                        The block is synchronized as multiple threads might access it simultaneously and thus
-                        add/remove ports to the respective arraylists more than once
-                         */
+            } else {
 
-                        int index = i;
-                        // Find the right index for the connection
-                        while (connectionsMap.containsValue(index)) {
-                            index++;
-                        }
+                // The runnable initializes the kernel at lastTime n using the input at lastTime n - 1, which
+                // must be first retrieved from the slot of the connection
+                byte[] synapticInput = connection.synapticInput == null ?
+                        new byte[presynTerminal.numOfNeurons * Constants.MAX_MULTIPLICATIONS] : connection.synapticInput;
 
-                        // Skip the iteration if the corresponding map has already been found
-                        if (connectionsMap.get(natPort) == null) {
+                // Like before, if this terminal info have been updated, create a new array. Otherwise retrieve
+                // the old firing rates.
+                float[] firingRates = connection.firingRates == null ?
+                        new float[presynTerminal.numOfNeurons] : connection.firingRates;
 
-                            // Since the ports are ordered in ascending order, the map consists in assigning the first available
-                            // port to the current terminal
-                            connectionsMap.put(natPort, index);
+                // For each synapse of the presynTerminal compute the appropriate input. The buffer of the
+                // spikes may be longer than the input of the terminal, but the exceeding bits are never read
+                if (Constants.WORD_PARALLEL_SPIKE_FILTER) {
+                    long[] activeNeurons = connection.activeNeurons;
 
-                            // Remove the port that has been used right now
-                            unknownPorts.remove(0);
+                    if (activeNeurons == null) {
+                        activeNeurons = new long[(presynTerminal.numOfNeurons + 63) / 64];
 
-                            // The number must be increased since we've just found out a new map
-                            knownPorts.add(natPort);
-                        }
-                        /* [End of if] */
+                        // A new synaptic input is all zero, otherwise every neuron must be considered active
+                        if (connection.synapticInput != null)
+                            Arrays.fill(activeNeurons, -1L);
                     }
-                    /* [End of for] */
+
+                    updateSynapticInput(inputSpikesBuffer, presynTerminal.numOfNeurons, synapticInput, firingRates, activeNeurons);
+
+                    connection.activeNeurons = activeNeurons;
+                } else {
+                    updateSynapticInput(inputSpikesBuffer, presynTerminal.numOfNeurons, synapticInput, firingRates);
+
+                    // The masks would not reflect the synaptic input anymore
+                    connection.activeNeurons = null;
                 }
-                /* [End of if] */
 
-                return 0;
-            } else if (presynTerminalIndex == -1 && connectionsMap.get(presynTerminalNatPort) != null) {
+                connection.synapticInput = synapticInput; // Makes sense only in the case connection.synapticInput was originally null
+                connection.firingRates = firingRates;
+
+                // From now on InputCreator is responsible for giving the buffer back to the pool
+                input = new Input(synapticInput, presynTerminalIndex, topology.connectionsSize,
+                        topology.connectionsOffset, firingRates, inputSpikesBuffer);
+
+            }
+
+            /*
+            The clock used to time the sending of the outgoing packets is chosen among the frequencies of
+            the currently active terminals.
+             */
+
+            try {
+                // Compute the time elapsed since the last packet sent by the current presynaptic terminal
+                long timeInterval = connection.lastFiringTime != 0 ?
+                        System.nanoTime() - connection.lastFiringTime : 0;
+
+                // Using the moving average algorithm compute the mean time intervals for the current presynaptic terminal
+                connection.meanTimeInterval += connection.lastFiringTime == 0 ?
+                        0 : 0.025f * (timeInterval - connection.meanTimeInterval);
+                // TODO: The number of samples to compute the average should be a function of the clock
+
+                // Save the current time in the slot storing the last recorded time at which the presynaptic terminal sent a packet
+                connection.lastFiringTime = System.nanoTime();
 
-                // If the presynaptic terminal was not found but its nat port has already been mapped to an index
-                presynTerminalIndex = connectionsMap.get(presynTerminalNatPort);
+                /*
+                The clock is updated only if the current terminal is the one whose frequency has been chosen
+                to clock DataSender.
+                 */
 
-            } else if (presynTerminalIndex != -1 && connectionsMap.get(presynTerminalNatPort) == null) {
+                int shortestTInterIndex = topology.shortestTInterIndex.get();
+                ConnectionSlot clockConnection = topology.connections[shortestTInterIndex];
 
-                // If the presynaptic terminal was found for the first time, update its entry in the connectionsMap
-                connectionsMap.put(presynTerminalNatPort, presynTerminalIndex);
+                if (presynTerminalIndex == shortestTInterIndex) {
+
+                    // Nobody waits for the signals if the clock has a fixed period. If InputCreator is
+                    // lagging behind the signal is dropped rather than stalling the connection
+                    if (Constants.TICK_PERIOD_NANOS == 0 && !clockSignalsQueue.offer(new Object()))
+                        Backpressure.drop(Backpressure.CLOCK_SIGNALS);
+
+                    // Update the refresh rate
+                    if (connection.meanTimeInterval != 0)
+                        InputCreator.waitTime.set(connection.meanTimeInterval);
 
-                // Increase the number of connections maps that have been discovered
-                if (!knownPorts.contains(presynTerminalNatPort)) {
-                    knownPorts.add(presynTerminalNatPort);
                 }
+
+                /*
+                Log.d("KernelInitializer", presynTerminalIndex + " " + presynTerminalNatPort + " " +
+                        knownPorts.size() + " " + unknownPorts.size() +  " " + InputCreator.waitTime.get());
+                        */
+
+                boolean mustChangeIndex = shortestTInterIndex == Constants.INDEX_OF_LATERAL_CONN | (
+                        System.nanoTime() - clockConnection.lastFiringTime > TickClock.ADAPTIVE_TIMEOUT_FACTOR * clockConnection.meanTimeInterval &
+                        connection.meanTimeInterval < clockConnection.meanTimeInterval); // New clock must be faster than old one
+
+                // The index is written only when it changes, so that the connections do not keep
+                // invalidating the cache line of one another
+                if (mustChangeIndex & presynTerminalIndex != Constants.INDEX_OF_LATERAL_CONN & presynTerminalIndex != shortestTInterIndex)
+                    topology.shortestTInterIndex.set(presynTerminalIndex);
+
+                if (input != null)
+                    kernelInitQueue.put(input);
+
+            } catch (InterruptedException e) {
+                String stackTrace = Log.getStackTraceString(e);
+                Log.e("KernelInitializer", stackTrace);
             }
 
         }
 
-        // Put in the buffer of the connection that is being served by this thread the packet just
-        // received
-        presynTerminalQueue.get(presynTerminalIndex).offer(inputSpikesBuffer);
-        /*
-        try {
-            presynTerminalQueue.get(presynTerminalIndex).put(inputSpikesBuffer);
-        } catch (InterruptedException e) {
-            String stackTrace = Log.getStackTraceString(e);
-            Log.e("KernelInitializer", stackTrace);
-        }
-        */
+        return 0;
+    }
+    /* [End of run() method] */
 
-        // Local flag that signals when this thread can proceed to serve its connection
-        boolean threadIsFree = false;
+    /**
+     * Serve another packet of the same presynaptic terminal, so that a long-lived worker can use a
+     * single object for all the packets of its connection.
+     *
+     * @param inputSpikesBuffer The buffer holding the spikes of the packet
+     * @return The same value returned by call()
+     */
+
+    Integer call(byte[] inputSpikesBuffer) {
+        this.inputSpikesBuffer = inputSpikesBuffer;
+        return call();
+    }
+
+    /**
+     * Serve a packet of any presynaptic terminal, so that the packets received together can be
+     * served one after the other by a single object.
+     *
+     * @param presynTerminalIP The IP of the terminal which sent the packet
+     * @param presynTerminalNatPort The nat port of the terminal which sent the packet
+     * @param inputSpikesBuffer The buffer holding the spikes of the packet
+     * @param thisTerminal The updated terminal, null if it has not changed
+     * @return The same value returned by call()
+     */
+
+    Integer call(String presynTerminalIP, int presynTerminalNatPort, byte[] inputSpikesBuffer, Terminal thisTerminal) {
+        this.presynTerminalIP = presynTerminalIP;
+        this.presynTerminalNatPort = presynTerminalNatPort;
+        this.presynTerminalKey = ConnectionsTable.key(presynTerminalIP, presynTerminalNatPort);
+        this.thisTerminal = thisTerminal;
+        return call(inputSpikesBuffer);
+    }
 
-        while (!threadIsFree) {
+    /**
+     * Publish a new snapshot of the presynaptic connections built using the information of the
+     * updated terminal. The packets being served keep using the old snapshot.
+     *
+     * @param thisTerminal The updated terminal
+     */
 
-            // This block is synchronized on the connection served by the thread
-            synchronized (threadsLocks[presynTerminalIndex]) {
+    static void initialize(Terminal thisTerminal) {
 
-                // If the connection that must be served is available the thread can proceed (and
-                // therefore is not free anymore)
-                if (!KernelInitializer.threadIsFree.get(presynTerminalIndex)) {
+        Log.d("KernelInitializer", "New terminal means new initialization...");
 
-                    // Retrieve from the buffer the oldest packets
-                    try {
-                        presynTerminalQueue.get(presynTerminalIndex).take();
-                    } catch (InterruptedException e) {
-                        String stackTrace = Log.getStackTraceString(e);
-                        Log.e("KernelInitializer", stackTrace);
-                    }
+        topology.set(new Topology(thisTerminal));
 
-                    // Update the local variable
-                    threadIsFree = true;
+    }
 
-                    // Lock the connection
-                    KernelInitializer.threadIsFree.set(presynTerminalIndex, true);
+    /**
+     * Forget the presynaptic connections, so that all the incoming packets are discarded until the
+     * next terminal is received.
+     */
 
-                }
+    static void reset() {
+        topology.set(new Topology(null));
+    }
 
-            }
+    /**
+     * @return The total input the connections of the current topology write into
+     */
 
+    static TotalInput totalInput() {
+        return topology.get().totalInput;
+    }
+
+    /**
+     * @return The number of presynaptic connections of the current topology
+     */
+
+    static int numOfConnections() {
+        return topology.get().numOfConnections;
+    }
+
+    /**
+     * Same as Terminal.customHashCode, but computed directly from the IP and the nat port so that
+     * no Terminal object has to be built for every packet received. The characters of an IP
+     * address are all ASCII, therefore they are equal to the bytes returned by getBytes().
+     *
+     * @param ip The IP of the terminal
+     * @param natPort The nat port of the terminal
+     * @return The id of the terminal
+     */
+
+    static int customHashCode(String ip, int natPort) {
+        int hash = 0x811c9dc5;
+
+        for (int i = 0; i < ip.length(); i++) {
+            hash ^= (int) (byte) ip.charAt(i);
+            hash *= 16777619;
         }
 
-        /*
-        Create the array which stores the bits representing the spikes emitted by the neuron of the
-        chosen presynaptic terminal
-         */
+        hash ^= (int) (byte) natPort;
+        hash *= 16777619;
+
+        return hash;
+    }
 
-        presynTerminal =  presynapticTerminals.get(presynTerminalIndex);
+    /**
+     * @param presynapticTerminals The presynaptic terminals of the topology
+     * @param id The id of a presynaptic terminal
+     * @return The index of the terminal in the collection, -1 if it is not present
+     */
 
-        int dataBytes = (presynTerminal.numOfNeurons % 8) == 0 ?
-                (short) (presynTerminal.numOfNeurons / 8) : (short)(presynTerminal.numOfNeurons / 8 + 1);
+    private static int indexOfTerminal(List<Terminal> presynapticTerminals, int id) {
+        for (int i = 0; i < presynapticTerminals.size(); i++) {
+            if (presynapticTerminals.get(i).id == id)
+                return i;
+        }
 
-        byte[] inputSpikes = new byte[dataBytes];
-        System.arraycopy(inputSpikesBuffer, 0, inputSpikes, 0, dataBytes);
+        return -1;
+    }
 
-        // The runnable initializes the kernel at lastTime n using the input at lastTime n - 1, which
-        // must be first retrieved from synapticInputCollection
-        byte[] synapticInput = synapticInputCollection[presynTerminalIndex] == null ?
-                new byte[presynTerminal.numOfNeurons * Constants.MAX_MULTIPLICATIONS] : synapticInputCollection[presynTerminalIndex];
+    /**
+     * Advance the synaptic inputs of the neurons of a presynaptic terminal in the filter pipe and
+     * update their firing rates, using the spikes contained in the last packet.
+     *
+     * @param inputSpikes The spikes fired by the neurons of the terminal, one bit per neuron
+     * @param numOfNeurons The number of neurons of the terminal
+     * @param synapticInput The inputs of the synapses, MAX_MULTIPLICATIONS entries per neuron
+     * @param firingRates The firing rates of the neurons
+     */
+
+    static void updateSynapticInput(byte[] inputSpikes, int numOfNeurons, byte[] synapticInput, float[] firingRates) {
+        updateSynapticInput(inputSpikes, numOfNeurons, synapticInput, synapticInput, firingRates, firingRates, 0);
+    }
 
-        // Like before, if this terminal info have been updated, create a new array. Otherwise retrieve
-        // the old firing rates.
-        float[] firingRates = firingRatesCollection[presynTerminalIndex] == null ?
-                new float[presynTerminal.numOfNeurons] : firingRatesCollection[presynTerminalIndex];
+    /**
+     * Same as the method above, but the new inputs and firing rates may be written into arrays other
+     * than those holding the old ones, starting from the given neuron. The arrays may be the same.
+     *
+     * @param inputSpikes The spikes fired by the neurons of the terminal, one bit per neuron
+     * @param numOfNeurons The number of neurons of the terminal
+     * @param sourceInput The current inputs of the synapses, MAX_MULTIPLICATIONS entries per neuron
+     * @param synapticInput The array where the advanced inputs are written
+     * @param sourceRates The current firing rates of the neurons
+     * @param firingRates The array where the updated firing rates are written
+     * @param neuronsOffset The index of the first neuron of the terminal in the arrays
+     */
 
-        /*
-        For each synapse of the presynTerminal compute the appropriate input
-         */
+    static void updateSynapticInput(byte[] inputSpikes, int numOfNeurons, byte[] sourceInput, byte[] synapticInput,
+                                    float[] sourceRates, float[] firingRates, int neuronsOffset) {
 
-        for (int indexI = 0; indexI < presynTerminal.numOfNeurons; indexI++) {
+        for (int indexI = 0; indexI < numOfNeurons; indexI++) {
 
             // Calculate the byte to which the current indexI belongs
             short byteIndex = (short) (indexI / 8);
@@ -326,92 +465,240 @@ class KernelInitializer implements Callable<Integer> {
             // Check whether the indexI-th synapse has fired or not
             char bitValue = (char) ((inputSpikes[byteIndex] >> (indexI - byteIndex * 8)) & 1);
 
+            // Index of the neuron in the arrays and of its first synapse input
+            int neuron = neuronsOffset + indexI;
+            int base = neuron * Constants.MAX_MULTIPLICATIONS;
+
             // Increment the synapse inputs and advance them in the filter pipe only in case of firing
             for (int indexJ = (Constants.MAX_MULTIPLICATIONS - 1); indexJ >= 1; indexJ--) {
 
                 // Increment the input only if different from zero to begin with. Advance it if the synapse carries an action potential (bitValue = 1)
-                synapticInput[indexJ + indexI * Constants.MAX_MULTIPLICATIONS] =
-                        (synapticInput[indexJ + indexI * Constants.MAX_MULTIPLICATIONS - bitValue] != 0) && (synapticInput[indexJ + indexI * Constants.MAX_MULTIPLICATIONS - bitValue] < Constants.SYNAPSE_FILTER_ORDER) ?
-                                (byte) (synapticInput[indexJ + indexI * Constants.MAX_MULTIPLICATIONS - bitValue] + 1) : 0;
+                synapticInput[indexJ + base] =
+                        (sourceInput[indexJ + base - bitValue] != 0) && (sourceInput[indexJ + base - bitValue] < Constants.SYNAPSE_FILTER_ORDER) ?
+                                (byte) (sourceInput[indexJ + base - bitValue] + 1) : 0;
 
             }
 
             // Make room for the new input in case bitValue = 1. Update the firing rates too
             switch (bitValue) {
                 case 1:
-                    firingRates[indexI] += Constants.MEAN_RATE_INCREMENT * (1 - firingRates[indexI]); // Moving mean firing rate
-                    synapticInput[indexI * Constants.MAX_MULTIPLICATIONS] = 1;
+                    firingRates[neuron] = sourceRates[neuron] + Constants.MEAN_RATE_INCREMENT * (1 - sourceRates[neuron]); // Moving mean firing rate
+                    synapticInput[base] = 1;
                     break;
                 default:
-                    firingRates[indexI] -= Constants.MEAN_RATE_INCREMENT * firingRates[indexI];
-                    synapticInput[indexI * Constants.MAX_MULTIPLICATIONS] =
-                            (synapticInput[indexI * Constants.MAX_MULTIPLICATIONS] != 0) && (synapticInput[indexI * Constants.MAX_MULTIPLICATIONS] < Constants.SYNAPSE_FILTER_ORDER) ?
-                                    (byte)(synapticInput[indexI * Constants.MAX_MULTIPLICATIONS] + 1) : 0;
+                    firingRates[neuron] = sourceRates[neuron] - Constants.MEAN_RATE_INCREMENT * sourceRates[neuron];
+                    synapticInput[base] =
+                            (sourceInput[base] != 0) && (sourceInput[base] < Constants.SYNAPSE_FILTER_ORDER) ?
+                                    (byte)(sourceInput[base] + 1) : 0;
                     break;
             }
 
         }
 
-        synapticInputCollection[presynTerminalIndex] = synapticInput; // Makes sense only in the case synapticInputCollection[presynTerminalIndex] was originally null
-        firingRatesCollection[presynTerminalIndex] = firingRates;
+    }
 
-        /*
-        The clock used to time the sending of the outgoing packets is chosen among the frequencies of
-        the currently active terminals.
-         */
+    /**
+     * Same as the method above, but the neurons are served 64 at a time. The spikes of 64 neurons
+     * are unpacked into a long and merged with the mask of the neurons whose synaptic input is not
+     * zero: the filter pipe is advanced only for the neurons whose bit is set, since the input of
+     * the others is going to stay zero. The firing rates are updated for all the neurons with a
+     * single branchless expression.
+     *
+     * @param inputSpikes The spikes fired by the neurons of the terminal, one bit per neuron
+     * @param numOfNeurons The number of neurons of the terminal
+     * @param synapticInput The inputs of the synapses, MAX_MULTIPLICATIONS entries per neuron
+     * @param firingRates The firing rates of the neurons
+     * @param activeNeurons For every 64 neurons, the mask of those whose synaptic input is not zero.
+     *                      It is updated by the method.
+     */
+
+    static void updateSynapticInput(byte[] inputSpikes, int numOfNeurons, byte[] synapticInput, float[] firingRates,
+                                    long[] activeNeurons) {
+        updateSynapticInput(inputSpikes, numOfNeurons, synapticInput, synapticInput, firingRates, firingRates, 0,
+                activeNeurons, activeNeurons);
+    }
 
-        try {
-            // Compute the time elapsed since the last packet sent by the current presynaptic terminal
-            long timeInterval = lastFiringTimes[presynTerminalIndex] != 0 ?
-                    System.nanoTime() - lastFiringTimes[presynTerminalIndex] : 0;
+    /**
+     * Out of place version of the method above. Besides the neurons which are active in the source
+     * arrays, those which are active in the destination arrays are served as well, so that their
+     * stale inputs are overwritten.
+     *
+     * @param inputSpikes The spikes fired by the neurons of the terminal, one bit per neuron
+     * @param numOfNeurons The number of neurons of the terminal
+     * @param sourceInput The current inputs of the synapses, MAX_MULTIPLICATIONS entries per neuron
+     * @param synapticInput The array where the advanced inputs are written
+     * @param sourceRates The current firing rates of the neurons
+     * @param firingRates The array where the updated firing rates are written
+     * @param neuronsOffset The index of the first neuron of the terminal in the arrays
+     * @param sourceActive The masks of the neurons whose input is not zero in the source arrays
+     * @param activeNeurons The masks of the neurons whose input is not zero in the destination
+     *                      arrays. They are updated by the method.
+     */
+
+    static void updateSynapticInput(byte[] inputSpikes, int numOfNeurons, byte[] sourceInput, byte[] synapticInput,
+                                    float[] sourceRates, float[] firingRates, int neuronsOffset,
+                                    long[] sourceActive, long[] activeNeurons) {
+        final int maxMultiplications = Constants.MAX_MULTIPLICATIONS;
+        final int filterOrder = Constants.SYNAPSE_FILTER_ORDER;
+        final float meanRateIncrement = Constants.MEAN_RATE_INCREMENT;
+
+        for (int word = 0; word < activeNeurons.length; word++) {
+            int firstNeuron = word * 64;
+            int neuronsInWord = Math.min(64, numOfNeurons - firstNeuron);
+
+            // Unpack the spikes of the neurons, the i-th bit of the long being the i-th neuron
+            long spikes = 0;
+            for (int i = 0, byteIndex = word * 8; i < 8 && byteIndex < inputSpikes.length; i++, byteIndex++)
+                spikes |= (inputSpikes[byteIndex] & 0xffL) << (8 * i);
+
+            // The bits exceeding the number of neurons are meaningless
+            long validNeurons = neuronsInWord < 64 ? (1L << neuronsInWord) - 1 : -1L;
+            spikes &= validNeurons;
+
+            // Moving mean firing rate: the increment is the same of updateSynapticInput whether the
+            // neuron has fired or not
+            for (int i = 0, neuron = neuronsOffset + firstNeuron; i < neuronsInWord; i++, neuron++)
+                firingRates[neuron] = sourceRates[neuron] + meanRateIncrement * ((float) ((spikes >>> i) & 1) - sourceRates[neuron]);
+
+            long pending = (spikes | sourceActive[word] | activeNeurons[word]) & validNeurons;
+            long active = 0;
+
+            while (pending != 0) {
+                int i = Long.numberOfTrailingZeros(pending);
+                pending &= pending - 1;
+
+                int base = (neuronsOffset + firstNeuron + i) * maxMultiplications;
+                int bitValue = (int) ((spikes >>> i) & 1);
+                int slots = 0;
+
+                // Advance the inputs in the filter pipe, as done by updateSynapticInput
+                for (int j = maxMultiplications - 1; j >= 1; j--) {
+                    byte previous = sourceInput[base + j - bitValue];
+                    byte next = previous != 0 && previous < filterOrder ? (byte) (previous + 1) : 0;
+                    synapticInput[base + j] = next;
+                    slots |= next;
+                }
 
-            // Using the moving average algorithm compute the mean time intervals for the current presynaptic terminal
-            meanTimeIntervals[presynTerminalIndex] += lastFiringTimes[presynTerminalIndex] == 0 ?
-                    0 : 0.025f * (timeInterval - meanTimeIntervals[presynTerminalIndex]);
-            // TODO: The number of samples to compute the average should be a function of the clock
+                byte first = bitValue == 1 ? 1 :
+                        sourceInput[base] != 0 && sourceInput[base] < filterOrder ? (byte) (sourceInput[base] + 1) : 0;
+                synapticInput[base] = first;
+                slots |= first;
 
-            // Save the current time in the array storing the last recorded times at which a presynaptic terminal sent a packet
-            lastFiringTimes[presynTerminalIndex] = System.nanoTime();
+                if (slots != 0)
+                    active |= 1L << i;
+            }
 
-            /*
-            The clock is updated only if the current terminal is the one whose frequency has been chosen
-            to clock DataSender.
-             */
+            activeNeurons[word] = active;
+        }
+    }
 
-            if (presynTerminalIndex == shortestTInterIndex.get()) {
+    /**
+     * Immutable description of the presynaptic connections of a topology, which holds the state of
+     * each connection as well. After the topology has been published only the slots of the
+     * connections change, together with the mapping of the ports, which is done under the lock of
+     * the topology by the first packets of each connection.
+     */
 
-                clockSignalsQueue.put(new Object());
+    private static final class Topology {
 
-                // Update the refresh rate
-                if (meanTimeIntervals[shortestTInterIndex.get()] != 0)
-                    InputCreator.waitTime.set(meanTimeIntervals[shortestTInterIndex.get()]);
+        // Local collection of the presynaptic terminals
+        final List<Terminal> presynapticTerminals;
 
-            }
+        // The number of presynaptic connections
+        final int numOfConnections;
 
-            /*
-            Log.d("KernelInitializer", presynTerminalIndex + " " + presynTerminalNatPort + " " +
-                    knownPorts.size() + " " + unknownPorts.size() +  " " + InputCreator.waitTime.get());
-                    */
+        // Each element of the array represents the number of neurons of the respective presynaptic connection
+        final int[] connectionsSize;
+
+        // Each element represents of many neurons come before the ones of the respective connections in the total synaptic input
+        final int[] connectionsOffset;
+
+        // State of the connections, one slot per connection
+        final ConnectionSlot[] connections;
+
+        // Total input the connections write into when Constants.TICK_INPUT_ASSEMBLY is set
+        final TotalInput totalInput;
+
+        // Index of the shortest time interval among the ones of the connections
+        final AtomicInteger shortestTInterIndex = new AtomicInteger(0);
+
+        // List of nat ports that have not been mapped to a terminal yet
+        final List<Integer> unknownPorts;
 
-            boolean mustChangeIndex = shortestTInterIndex.get() == Constants.INDEX_OF_LATERAL_CONN | (
-                    System.nanoTime() - lastFiringTimes[shortestTInterIndex.get()] > 8 * meanTimeIntervals[shortestTInterIndex.get()] &
-                    meanTimeIntervals[presynTerminalIndex] < meanTimeIntervals[shortestTInterIndex.get()]); // New clock must be faster than old one
+        // List of ports that have been mapped
+        final List<Integer> knownPorts;
 
-            shortestTInterIndex.set(mustChangeIndex & presynTerminalIndex != Constants.INDEX_OF_LATERAL_CONN
-                    ? presynTerminalIndex : shortestTInterIndex.get());
+        // Map that links the local port of a presynaptic terminal to index of the terminal
+        final HashMap<Integer, Integer> connectionsMap;
 
-            kernelInitQueue.put(new Input(synapticInput, presynTerminalIndex, connectionsSize, connectionsOffset, firingRates));
+        // Table that links the addresses of the presynaptic terminals already identified to their
+        // indexes. It is replaced by a new one, never modified, so it can be read without the lock
+        volatile ConnectionsTable connectionsTable = ConnectionsTable.EMPTY_TABLE;
 
-        } catch (InterruptedException e) {
-            String stackTrace = Log.getStackTraceString(e);
-            Log.e("KernelInitializer", stackTrace);
+        /**
+         * @param thisTerminal The updated terminal, null for a topology without connections
+         */
+
+        Topology(Terminal thisTerminal) {
+            presynapticTerminals = thisTerminal != null ?
+                    new ArrayList<>(thisTerminal.presynapticTerminals) : new ArrayList<Terminal>();
+            numOfConnections = presynapticTerminals.size();
+            connectionsSize = new int[numOfConnections];
+            connectionsOffset = new int[numOfConnections];
+            connections = new ConnectionSlot[numOfConnections];
+            unknownPorts = new ArrayList<>(numOfConnections);
+            knownPorts = new ArrayList<>(numOfConnections);
+            connectionsMap = new HashMap<>(numOfConnections);
+
+            // We add the lateral connection here since no packet will be received from this connection
+            // until the neurons of this terminal fire, but that won't happen unless all the presynaptic connections
+            // have been mapped
+            if (thisTerminal != null && Constants.INDEX_OF_LATERAL_CONN != - 1) {
+                knownPorts.add(thisTerminal.natPort);
+                connectionsMap.put(thisTerminal.natPort, Constants.INDEX_OF_LATERAL_CONN);
+            }
+
+            int totalOffset = 0;
+
+            for (int i = 0; i < numOfConnections; i++) {
+                connections[i] = new ConnectionSlot();
+                connectionsSize[i] = presynapticTerminals.get(i).numOfNeurons;
+                totalOffset += connectionsSize[i];
+                connectionsOffset[i] = totalOffset;
+            }
+
+            totalInput = new TotalInput(connectionsSize, connectionsOffset);
         }
+    }
 
-        KernelInitializer.threadIsFree.set(presynTerminalIndex, false);
+    /*
+    The slots of the connections are padded so that each of them takes its own cache lines, and the
+    threads serving different connections do not invalidate the caches of one another. The fields
+    of a class are laid out after those of its superclass, hence the padding before the state.
+     */
 
-        return 0;
+    private static class ConnectionSlotPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static final class ConnectionSlot extends ConnectionSlotPadding {
+
+        // Input of the synapses and firing rates of the neurons of the connection, created when
+        // the first packet is served
+        byte[] synapticInput;
+        float[] firingRates;
+
+        // Bitmasks telling which neurons have a synaptic input different from zero, 64 neurons per
+        // element
+        long[] activeNeurons;
+
+        // Time at which the connection last fired and average time interval between its spikes.
+        // They are read by the other connections when the clock is chosen
+        volatile long lastFiringTime = 0;
+        volatile long meanTimeInterval = Integer.MAX_VALUE;
+
+        long q1, q2, q3, q4, q5, q6, q7;
     }
-    /* [End of run() method] */
 
 }
-/* [End of class] */
\ No newline at end of file
+/* [End of class] */
@@ -0,0 +1,129 @@
+package com.example.overmind;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds whose buckets grow with the values, in the manner of
+ * HdrHistogram: every power of 2 is split into SUB_BUCKETS buckets of the same width, hence a value
+ * is known within 1 / SUB_BUCKETS of itself whatever its magnitude. Recording a value neither
+ * allocates nor takes a lock, and may be done by several threads at once.
+ */
+
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKETS_BITS;
+
+    // Longest duration that is told apart from the others, about 18 minutes. Longer ones are
+    // recorded as this one
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int NUM_OF_BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    // Number of the values recorded in each bucket
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_OF_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * @param value The duration to be recorded, in nanoseconds
+     */
+
+    void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value));
+    }
+
+    /**
+     * Record the time elapsed since a moment.
+     *
+     * @param startTime The moment, as given by System.nanoTime()
+     */
+
+    void recordSince(long startTime) {
+        record(System.nanoTime() - startTime);
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long mean() {
+        long numOfValues = count.get();
+        return numOfValues == 0 ? 0 : sum.get() / numOfValues;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     * @return The highest value of the bucket holding the percentile, 0 if nothing has been recorded
+     */
+
+    long percentile(double percentile) {
+        long numOfValues = 0;
+        for (int i = 0; i < NUM_OF_BUCKETS; i++)
+            numOfValues += counts.get(i);
+
+        if (numOfValues == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * numOfValues));
+        long seenValues = 0;
+
+        for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+            seenValues += counts.get(i);
+            if (seenValues >= rank)
+                return Math.min(highestValue(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    /**
+     * The values smaller than 2 * SUB_BUCKETS have a bucket each. For the others the bucket is given
+     * by the position of their highest bit, which says which power of 2 they belong to, followed by
+     * the SUB_BUCKETS_BITS bits after it.
+     */
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKETS_BITS;
+
+        return (shift << SUB_BUCKETS_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return The highest value which is recorded in the bucket
+     */
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = (index >>> SUB_BUCKETS_BITS) - 1;
+        long top = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+
+        return ((top + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count " + count() + " mean " + mean() / 1000 + " p50 " + percentile(50) / 1000 +
+                " p99 " + percentile(99) / 1000 + " max " + max() / 1000 + " us";
+    }
+
+}
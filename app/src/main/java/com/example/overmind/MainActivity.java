@@ -633,6 +633,10 @@ public class MainActivity extends AppCompatActivity {
      */
 
     static String loadKernelFromAsset(InputStream inputStream) {
+        // Devices without a kernel fall back on the CPU simulation backend
+        if (inputStream == null)
+            return " ";
+
         Scanner scanner = new Scanner(inputStream).useDelimiter("\\A");
         return scanner.hasNext() ? scanner.next() : " ";
     }
@@ -656,6 +660,10 @@ public class MainActivity extends AppCompatActivity {
                 break;
         }
 
+        // The kernel of the neuronal dynamics is compiled in the same program as that of the synapses
+        if (Constants.DEVICE_NEURONAL_DYNAMICS && !kernel.trim().isEmpty())
+            kernel += "\n" + loadKernelFromAsset(getInputStream("neuronal_dynamics.cl"));
+
         // Put the string holding the kernel in the simulation Intent
         simulationIntent.putExtra("Kernel", kernel);
 
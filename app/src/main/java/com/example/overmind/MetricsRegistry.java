@@ -0,0 +1,104 @@
+package com.example.overmind;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process registry of the metrics of the pipeline, looked up by name. The stages take their
+ * counters and histograms once, when they are created, and then update them without going through
+ * the registry. Gauges are read only when the metrics are queried or dumped, therefore they are
+ * used for the values that are already kept somewhere else, like the depth of the queues.
+ */
+
+final class MetricsRegistry {
+
+    interface Gauge {
+        long value();
+    }
+
+    // The metrics are dumped in the order they were registered
+    private static final Map<String, AtomicLong> counters = new LinkedHashMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private static final Map<String, Gauge> gauges = new LinkedHashMap<>();
+
+    private MetricsRegistry() {}
+
+    /**
+     * @param name The name of the counter
+     * @return The counter with the name, created if it does not exist yet
+     */
+
+    static synchronized AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+
+        if (counter == null) {
+            counter = new AtomicLong(0);
+            counters.put(name, counter);
+        }
+
+        return counter;
+    }
+
+    /**
+     * Remove a counter which is not going to be updated anymore, so that it is no longer dumped.
+     */
+
+    static synchronized void removeCounter(String name) {
+        counters.remove(name);
+    }
+
+    /**
+     * @param name The name of the histogram
+     * @return The histogram with the name, created if it does not exist yet
+     */
+
+    static synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(name, histogram);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing the one with the same name if any.
+     */
+
+    static synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @param name The name of the gauge
+     * @return The current value of the gauge, 0 if there is no gauge with the name
+     */
+
+    static synchronized long gaugeValue(String name) {
+        Gauge gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.value();
+    }
+
+    /**
+     * @return The current value of all the metrics, one per line
+     */
+
+    static synchronized String dump() {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet())
+            stringBuilder.append(counter.getKey()).append(": ").append(counter.getValue().get()).append('\n');
+
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+            stringBuilder.append(gauge.getKey()).append(": ").append(gauge.getValue().value()).append('\n');
+
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet())
+            stringBuilder.append(histogram.getKey()).append(": ").append(histogram.getValue()).append('\n');
+
+        return stringBuilder.toString();
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.example.overmind;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Device times of the OpenCL commands of the last time step, written by the native side into a
+ * direct buffer when Constants.OPENCL_PROFILING is set. Every kernel, write, map, unmap and read of
+ * the step has a record with the layer it belongs to and the times of its event, in nanoseconds
+ * of the device clock. After every step the records are added to the histograms of the metrics:
+ * for each kind of command the time it waited to be started and the time it ran.
+ *
+ * The buffer is read by the thread which simulates the network, right after each step.
+ */
+
+class OpenCLProfile {
+
+    /* Layout of the buffer, the same of shared.h */
+
+    static final int HEADER_SIZE = 2;
+    static final int NUM_OF_RECORDS = 0;
+    static final int DROPPED_RECORDS = 1; // Commands which did not fit in the buffer
+    static final int RECORD_SIZE = 6;
+    static final int COMMAND = 0;
+    static final int LAYER = 1; // -1 for the commands which do not belong to a layer
+    static final int QUEUED = 2;
+    static final int SUBMIT = 3;
+    static final int START = 4;
+    static final int END = 5;
+
+    /* Commands, as numbered by the native side */
+
+    static final int SYNAPSES_KERNEL = 0;
+    static final int COLLECT_KERNEL = 1;
+    static final int NEURONS_KERNEL = 2;
+    static final int WRITE = 3;
+    static final int MAP = 4;
+    static final int UNMAP = 5;
+    static final int READ = 6;
+
+    private static final String[] COMMANDS_NAMES =
+            {"synapses kernel", "collect kernel", "neurons kernel", "write", "map", "unmap", "read"};
+
+    // Same as MAX_PROFILED_COMMANDS of shared.h
+    private static final int MAX_RECORDS = 256;
+
+    // Buffer registered with the native side
+    final ByteBuffer buffer;
+    private final LongBuffer stats;
+
+    // For each command the time between its queueing and its start, and its run time
+    private final LatencyHistogram[] waitTimes = new LatencyHistogram[COMMANDS_NAMES.length];
+    private final LatencyHistogram[] runTimes = new LatencyHistogram[COMMANDS_NAMES.length];
+
+    private final AtomicLong droppedRecords = MetricsRegistry.counter("opencl dropped records");
+
+    OpenCLProfile() {
+        buffer = ByteBuffer.allocateDirect((HEADER_SIZE + MAX_RECORDS * RECORD_SIZE) * 8).order(ByteOrder.nativeOrder());
+        stats = buffer.asLongBuffer();
+
+        for (int i = 0; i < COMMANDS_NAMES.length; i++) {
+            waitTimes[i] = MetricsRegistry.histogram("opencl " + COMMANDS_NAMES[i] + " wait");
+            runTimes[i] = MetricsRegistry.histogram("opencl " + COMMANDS_NAMES[i] + " run");
+        }
+    }
+
+    /**
+     * Add the records of the last time step to the histograms.
+     */
+
+    void record() {
+        int numOfRecords = numOfRecords();
+        droppedRecords.addAndGet(stats.get(DROPPED_RECORDS));
+
+        for (int i = 0; i < numOfRecords; i++) {
+            int command = (int) get(i, COMMAND);
+
+            if (command < 0 || command >= COMMANDS_NAMES.length)
+                continue;
+
+            waitTimes[command].record(get(i, START) - get(i, QUEUED));
+            runTimes[command].record(get(i, END) - get(i, START));
+        }
+    }
+
+    /**
+     * @return The number of the commands recorded during the last time step
+     */
+
+    int numOfRecords() {
+        return (int) Math.min(stats.get(NUM_OF_RECORDS), MAX_RECORDS);
+    }
+
+    /**
+     * @param record The index of the record, smaller than numOfRecords()
+     * @param field One of the fields of the records, from COMMAND to END
+     * @return The value of the field
+     */
+
+    long get(int record, int field) {
+        return stats.get(HEADER_SIZE + record * RECORD_SIZE + field);
+    }
+
+}
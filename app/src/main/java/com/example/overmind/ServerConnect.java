@@ -134,6 +134,11 @@ class ServerConnect extends AsyncTask<Context, Integer, SocketInfo> {
         try {
             output = new ObjectOutputStream(clientSocket.getOutputStream());
             output.writeObject(thisTerminal);
+
+            // Offer the binary format of the updates, the server answers only if it understands it
+            if (Constants.BINARY_TERMINAL_CODEC)
+                output.writeObject(TerminalCodec.VERSION);
+
             output.flush();
             publishProgress(0);
         } catch (IOException | NullPointerException e) {
@@ -0,0 +1,53 @@
+package com.example.overmind;
+
+/**
+ * Interface implemented by the classes that simulate the local network. KernelExecutor is not aware
+ * of whether the simulation is carried out by the OpenCL implementation or on the CPU.
+ */
+
+interface SimulationBackend {
+
+    /**
+     * Simulate one time step of the local network.
+     *
+     * @param synapseInput The synaptic input put together by InputCreator
+     * @param simulationParameters The parameters of the neuronal model
+     * @param weights The new weights, empty if they have not changed
+     * @param weightsIndexes The indexes of the new weights, empty if the weights array is not sparse
+     * @param presynFiringRates The firing rates of the presynaptic neurons
+     * @param updateWeightsFlags The flags telling which weights are plastic, empty if they have not changed
+     * @param indexesMatrix The synaptic indexes built by IndexesMatrixBuilder, empty if the topology has not changed
+     * @param neuronsMatrix The neurons indexes built by IndexesMatrixBuilder, empty if the topology has not changed
+     * @return The spikes produced by the local network, one bit per neuron. An array of length zero
+     * means an error has occurred.
+     */
+
+    byte[] simulateDynamics(byte[] synapseInput, float[] simulationParameters, byte[] weights,
+                            int[] weightsIndexes, float[] presynFiringRates, byte[] updateWeightsFlags,
+                            int[][] indexesMatrix, int[][] neuronsMatrix);
+
+    /**
+     * Load the compact encoding of the indexes built by IndexesMatrixBuilder. The following calls of
+     * simulateDynamics must pass empty indexes matrices, otherwise the expanded indexes are used.
+     *
+     * @param compactIndexes The templates of the populations and the table describing them
+     * @return False if the indexes could not be loaded
+     */
+
+    boolean loadCompactIndexes(CompactIndexes compactIndexes);
+
+    /**
+     * Overwrite only the weights that have changed, leaving the others as they are.
+     *
+     * @param delta The runs of the new weights
+     * @return False if the weights could not be updated
+     */
+
+    boolean applyWeightsDelta(WeightsDelta delta);
+
+    /**
+     * Release the resources held by the backend.
+     */
+
+    void close();
+}
@@ -9,6 +9,7 @@ import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.support.v4.content.LocalBroadcastManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -16,14 +17,23 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -35,9 +45,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.example.overmind.Constants.NUMBER_OF_NEURONS;
 import static com.example.overmind.Constants.SERVER_IP;
@@ -49,19 +60,23 @@ public class SimulationService extends IntentService {
     private static boolean errorRaised = false;
     private static int errornumber = 0;
 
+    // Flag set if the native library holding the OpenCL implementation could be loaded
+    private static boolean openCLAvailable = false;
+
     static {
 
         switch (MainActivity.vendor) {
             case "ARM":try {
                 System.loadLibrary("overmind");
+                openCLAvailable = true;
             } catch (UnsatisfiedLinkError e) {
                 String stackTrace = Log.getStackTraceString(e);
                 Log.e("SimulationService", stackTrace);
             }
                 break;
             default:
-                errornumber = 4;
-                errorRaised = true;
+                Log.d("SimulationService", "No OpenCL implementation for vendor " + MainActivity.vendor +
+                        ": the simulation is going to run on the CPU");
         }
 
     }
@@ -90,6 +105,10 @@ public class SimulationService extends IntentService {
     // should proceed to send the spikes.
     BlockingQueue<Object> clockSignalsQueue = new ArrayBlockingQueue<>(32);
 
+    // Pool of the buffers where the incoming spikes are received. It can hold as many buffers as
+    // the inputs waiting in kernelInitQueue, plus those being elaborated
+    SpikesBufferPool spikesBufferPool = new SpikesBufferPool(256, 1);
+
     ThreadPoolExecutor.AbortPolicy rejectedExecutionHandler = new ThreadPoolExecutor.AbortPolicy();
 
     // Custom executor for KernelInitializer which allows to change the number of threads in the
@@ -101,11 +120,15 @@ public class SimulationService extends IntentService {
     // Buffer where to put the array of spikes produced by the local network
     BlockingQueue<byte[]> kernelExcQueue = new ArrayBlockingQueue<>(128);
 
+    // Pool of the arrays the OpenCL backend copies the spikes of the local network into, given
+    // back by DataSender once they have been sent. Few of them are in flight at any time
+    SpikesBufferPool outputSpikesPool = new SpikesBufferPool(4, 1);
+
     // Executor for the thread that calls the OpenCL method
     ExecutorService kernelExcExecutor = Executors.newSingleThreadExecutor();
 
-    // Future object which holds the pointer to the OpenCL structure defined in native_method.h
-    Future<Long> newOpenCLObject;
+    // Object which simulates the local network, either through OpenCL or on the CPU
+    SimulationBackend simulationBackend;
 
     // Executor for the thread that put together the total input made of the inputs of the
     // single connections
@@ -118,15 +141,42 @@ public class SimulationService extends IntentService {
     // Executor for the thread that updates the information about the local network
     ExecutorService terminalUpdaterExecutor = Executors.newSingleThreadExecutor();
 
+    // Executor for the long-lived threads serving the presynaptic connections, used in place of
+    // kernelInitExecutor when Constants.CONNECTION_WORKERS is set
+    ExecutorService connectionWorkersExecutor = Executors.newCachedThreadPool();
+
+    // Workers serving the presynaptic connections, and the table that links the address of a
+    // presynaptic terminal to the index of its worker
+    private List<ConnectionWorker> connectionWorkers = new ArrayList<>();
+    private ConnectionsTable connectionWorkersTable = ConnectionsTable.EMPTY_TABLE;
+
+    // Futures of the connection workers, used to wait for them to stop
+    private List<Future<?>> connectionWorkersFutures = new ArrayList<>();
+
+    // Executor for the thread that periodically writes the metrics of the pipeline to the log
+    ScheduledExecutorService metricsExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // Packets received from all the presynaptic terminals
+    private final AtomicLong receivedPackets = MetricsRegistry.counter("received packets");
+
     // Buffers containing the last updated info about the local network
     BlockingQueue<Terminal> updatedTerminal = new ArrayBlockingQueue<>(1);
-    BlockingQueue<Terminal> newWeights = new ArrayBlockingQueue<>(16);
+    // Terminals and weights deltas in the order they were received, so that KernelExecutor applies
+    // the weights in the same order
+    BlockingQueue<Object> newWeights = new ArrayBlockingQueue<>(16);
 
     /*
     Miscellanea
      */
 
-    int postsynTerminalsInfo[][][] = null;
+    // Strings of the IPs of the presynaptic terminals, so that they are not built for every packet
+    private HashMap<InetAddress, String> presynapticTerminalsIPs = new HashMap<>();
+
+    // Maximum payload of a UDP datagram
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+
+    // Maximum number of datagrams the NIO receiver reads before handing them to KernelInitializer
+    private static final int MAX_BATCH_SIZE = 64;
 
     public SimulationService() {
         super("SimulationService");
@@ -139,6 +189,108 @@ public class SimulationService extends IntentService {
 
     }
 
+    /**
+     * @param address The address of a presynaptic terminal
+     * @return The textual representation of the address, taken from the cache if possible
+     */
+
+    private String getHostAddress(InetAddress address) {
+        String ip = presynapticTerminalsIPs.get(address);
+
+        if (ip == null) {
+            ip = address.getHostAddress();
+            presynapticTerminalsIPs.put(address, ip);
+        }
+
+        return ip;
+    }
+
+    /**
+     * Put the packet in the ring of the worker serving its source address. A new worker is started
+     * the first time an address is seen, unless there are already as many workers as connections.
+     *
+     * @param presynTerminalAddr The address of the presynaptic terminal
+     * @param presynTerminalNatPort The nat port of the presynaptic terminal
+     * @param inputSpikesBuffer The buffer holding the spikes of the packet
+     */
+
+    private void dispatchToConnectionWorker(InetAddress presynTerminalAddr, int presynTerminalNatPort, byte[] inputSpikesBuffer) {
+        long presynTerminalKey = ConnectionsTable.key(presynTerminalAddr.getAddress(), presynTerminalNatPort);
+        int workerIndex = connectionWorkersTable.indexOf(presynTerminalKey);
+
+        if (workerIndex == ConnectionsTable.NOT_FOUND) {
+            if (connectionWorkers.size() >= KernelInitializer.numOfConnections()) {
+                spikesBufferPool.release(inputSpikesBuffer);
+                return;
+            }
+
+            String presynTerminalIp = getHostAddress(presynTerminalAddr);
+            ConnectionWorker connectionWorker = new ConnectionWorker(new KernelInitializer(kernelInitQueue,
+                    presynTerminalIp, presynTerminalNatPort, null, null, clockSignalsQueue,
+                    spikesBufferPool), spikesBufferPool, presynTerminalIp + ":" + presynTerminalNatPort);
+            workerIndex = connectionWorkers.size();
+            connectionWorkers.add(connectionWorker);
+            connectionWorkersTable = connectionWorkersTable.with(presynTerminalKey, workerIndex);
+            connectionWorkersFutures.add(connectionWorkersExecutor.submit(connectionWorker));
+        }
+
+        connectionWorkers.get(workerIndex).offer(inputSpikesBuffer);
+    }
+
+    /**
+     * Register the gauges of the depths of the queues between the stages, of the drops and of the
+     * tick clock. The stages register their own counters and histograms.
+     */
+
+    private void registerMetrics(final TickClock tickClock) {
+        registerQueueDepth("kernelInit workloads depth", kernelInitWorkerThreadsQueue);
+        registerQueueDepth("kernelInitQueue depth", kernelInitQueue);
+        registerQueueDepth("clockSignalsQueue depth", clockSignalsQueue);
+        registerQueueDepth("inputCreatorQueue depth", inputCreatorQueue);
+        registerQueueDepth("kernelExcQueue depth", kernelExcQueue);
+        registerQueueDepth("newWeights depth", newWeights);
+
+        Backpressure.registerMetrics();
+
+        MetricsRegistry.gauge("tick overruns", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return tickClock.overruns;
+            }
+        });
+        MetricsRegistry.gauge("tick slowdown", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return tickClock.slowdown;
+            }
+        });
+    }
+
+    private static void registerQueueDepth(String name, final BlockingQueue<?> queue) {
+        MetricsRegistry.gauge(name, new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return queue.size();
+            }
+        });
+    }
+
+    /**
+     * Stop the connection workers and wait for them to finish serving their current packets.
+     */
+
+    private void stopConnectionWorkers() throws InterruptedException, ExecutionException {
+        for (ConnectionWorker connectionWorker : connectionWorkers)
+            connectionWorker.shutDown();
+
+        for (Future<?> future : connectionWorkersFutures)
+            future.get();
+
+        connectionWorkers.clear();
+        connectionWorkersTable = ConnectionsTable.EMPTY_TABLE;
+        connectionWorkersFutures.clear();
+    }
+
     public static String getNetworkClass(Context context) {
         TelephonyManager mTelephonyManager = (TelephonyManager)
                 context.getSystemService(Context.TELEPHONY_SERVICE);
@@ -200,11 +352,22 @@ public class SimulationService extends IntentService {
 
         DatagramSocket datagramSocket = null;
 
+        // Channel and selector used in place of the blocking socket when the NIO receiver is enabled.
+        // The socket is then the one of the channel, so that the same port is used anyway
+        DatagramChannel datagramChannel = null;
+        Selector selector = null;
+
         try {
-            datagramSocket = new DatagramSocket();
+            if (Constants.NIO_RECEIVER) {
+                datagramChannel = DatagramChannel.open();
+                datagramSocket = datagramChannel.socket();
+                datagramSocket.bind(null);
+            } else {
+                datagramSocket = new DatagramSocket();
+            }
             datagramSocket.setTrafficClass(IPTOS_THROUGHPUT);
             datagramSocket.setSoTimeout(5000);
-        } catch (SocketException e) {
+        } catch (IOException e) {
             String stackTrace = Log.getStackTraceString(e);
             Log.e("DataSender", stackTrace);
         }
@@ -225,6 +388,19 @@ public class SimulationService extends IntentService {
             Log.e("SimulationService", stackTrace);
         }
 
+        // The socket of a channel can be used only while the channel is blocking, therefore the
+        // channel is registered with the selector after the test packet has been sent
+        if (datagramChannel != null) {
+            try {
+                selector = Selector.open();
+                datagramChannel.configureBlocking(false);
+                datagramChannel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                String stackTrace = Log.getStackTraceString(e);
+                Log.e("SimulationService", stackTrace);
+            }
+        }
+
         /*
         Open input stream through TCP socket
          */
@@ -244,19 +420,38 @@ public class SimulationService extends IntentService {
         }
 
         /*
-        Get the string holding the kernel and initialize the OpenCL implementation.
+        Get the string holding the kernel and initialize the simulation backend. The CPU is used
+        if the OpenCL implementation or the kernel are not available, or if the user asked for it.
          */
 
-        Log.d("SimulationService", "Initializing OpenCL...");
         String kernel = workIntent.getStringExtra("Kernel");
-        long openCLObject = initializeOpenCL(kernel, NUMBER_OF_NEURONS, Constants.SYNAPSE_FILTER_ORDER, Constants.NUMBER_OF_SYNAPSES);
-        Log.d("SimulationService", "OpenCL initialization complete.");
+
+        if (openCLAvailable && !Constants.USE_CPU_BACKEND && kernel != null && !kernel.trim().isEmpty()) {
+            Log.d("SimulationService", "Initializing OpenCL...");
+            simulationBackend = new OpenCLBackend(kernel);
+            Log.d("SimulationService", "OpenCL initialization complete.");
+        } else {
+            Log.d("SimulationService", "Initializing the CPU simulation backend...");
+            simulationBackend = new CpuSimulationBackend(NUMBER_OF_NEURONS, Constants.NUMBER_OF_SYNAPSES);
+        }
 
         // Launch those threads that are persistent
-        inputCreatorExecutor.execute(new InputCreator(kernelInitQueue, inputCreatorQueue, clockSignalsQueue));
-        newOpenCLObject = kernelExcExecutor.submit(new KernelExecutor(inputCreatorQueue, kernelExcQueue, openCLObject, newWeights));
-        dataSenderExecutor.execute(new DataSender(kernelExcQueue, datagramSocket, clockSignalsQueue));
-        terminalUpdaterExecutor.execute(new TerminalUpdater(updatedTerminal, newWeights));
+        InputCreator inputCreator = new InputCreator(kernelInitQueue, inputCreatorQueue, clockSignalsQueue, spikesBufferPool);
+        inputCreatorExecutor.execute(inputCreator);
+        WeightsMerger weightsMerger = Constants.COALESCE_WEIGHT_UPDATES ?
+                new WeightsMerger(Constants.NUMBER_OF_SYNAPSES * NUMBER_OF_NEURONS) : null;
+        kernelExcExecutor.execute(new KernelExecutor(inputCreatorQueue, kernelExcQueue, simulationBackend, newWeights, weightsMerger));
+        dataSenderExecutor.execute(new DataSender(kernelExcQueue, datagramSocket, datagramChannel, clockSignalsQueue));
+        terminalUpdaterExecutor.execute(new TerminalUpdater(updatedTerminal, newWeights, weightsMerger));
+
+        registerMetrics(inputCreator.tickClock());
+        if (Constants.METRICS_DUMP_PERIOD_MS > 0)
+            metricsExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d("Metrics", MetricsRegistry.dump());
+                }
+            }, Constants.METRICS_DUMP_PERIOD_MS, Constants.METRICS_DUMP_PERIOD_MS, TimeUnit.MILLISECONDS);
 
         /*
         Get the updated info about the connected terminals stored in the Terminal class. Then
@@ -272,6 +467,19 @@ public class SimulationService extends IntentService {
         // a packet was received.
         boolean receiveTimedOut = false;
 
+        // The same packet is used for every reception, its buffer is taken from the pool
+        DatagramPacket inputSpikesPacket = new DatagramPacket(new byte[1], 1);
+        byte[] inputSpikesBuffer = null;
+
+        // Buffer where the NIO receiver puts the datagrams before copying them into the pooled buffers.
+        // It is big enough for any datagram, so that the ones longer than the pooled buffers are dropped
+        // rather than truncated
+        ByteBuffer receiveBuffer = datagramChannel != null ? ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE) : null;
+
+        // Packets drained by the NIO receiver during the last wakeup and the task serving them
+        KernelInitializerBatch batch = null;
+        Future<Integer> batchFuture = null;
+
         while (!shutdown & !errorRaised) {
 
             try {
@@ -315,6 +523,8 @@ public class SimulationService extends IntentService {
                                 (short) (presynapticTerminal.numOfNeurons / 8) : (short)(presynapticTerminal.numOfNeurons / 8 + 1);
                         maxDataBytes = dataBytes > maxDataBytes ? dataBytes : maxDataBytes;
                     }
+                    spikesBufferPool.setBufferSize(maxDataBytes);
+                    presynapticTerminalsIPs.clear();
 
                     // Determine if the lateral connections option has been changed by the server
                     Constants.INDEX_OF_LATERAL_CONN = thisTerminal.presynapticTerminals.indexOf(thisTerminal);
@@ -327,70 +537,111 @@ public class SimulationService extends IntentService {
                         future.get();
                     kernelInitFutures = new ArrayList<>(kernelInitExecutor.getMaximumPoolSize());
 
-                    /*
-                    Collect the information about the populations that are connected to the postsynaptic terminals
-                    so that dataSender can send to the right terminals their respective portions of the output
-                    of the native side
-                     */
+                    // The workers are bound to the ports of the previous connections and must not
+                    // serve any packet while the collections of KernelInitializer are rebuilt
+                    if (Constants.CONNECTION_WORKERS) {
+                        stopConnectionWorkers();
+                        KernelInitializer.initialize(thisTerminal);
+                        thisTerminal = null;
+                    }
+
+                }
 
-                    // TODO: Maybe offsets for the populations should be built server side by partitionTool?
+                Callable<Integer> workload;
 
-                    postsynTerminalsInfo = new int[thisTerminal.postsynapticTerminals.size()][][];
+                if (selector != null) {
 
-                    // Iterate over the postsynaptic terminals
-                    for (int i = 0; i < thisTerminal.postsynapticTerminals.size(); i ++) {
-                        Terminal postTerminal = thisTerminal.postsynapticTerminals.get(i);
+                    // Wait for the datagrams. If none arrives in time treat it as the timeout of the
+                    // blocking socket
+                    if (selector.select(5000) == 0)
+                        throw new SocketTimeoutException();
+                    selector.selectedKeys().clear();
 
-                        // Get the list of the indexes of the populations connected to this terminal
-                        ArrayList<Integer> popsIdxs =
-                                thisTerminal.outputsToPopulations.get(postTerminal.id);
+                    // Drain all the pending datagrams, which are going to be served in the order
+                    // with which they were received by a single task, or by the connection workers.
+                    // The batch of the previous wakeup is filled again unless it is still being served
+                    if (batch == null || (batchFuture != null && !batchFuture.isDone())) {
+                        batch = new KernelInitializerBatch(new KernelInitializer(kernelInitQueue, "", 0, null, null,
+                                clockSignalsQueue, spikesBufferPool), spikesBufferPool);
+                        batchFuture = null;
+                    }
+                    batch.clear(thisTerminal);
+                    InetSocketAddress presynapticTerminalAddr;
+                    int receivedDatagrams = 0;
+
+                    while (receivedDatagrams < MAX_BATCH_SIZE &&
+                            (presynapticTerminalAddr = (InetSocketAddress) datagramChannel.receive(receiveBuffer)) != null) {
+                        receivedDatagrams++;
+                        receivedPackets.incrementAndGet();
+                        receiveBuffer.flip();
+                        byte[] buffer = spikesBufferPool.acquire();
+
+                        // A datagram longer than the buffers would be truncated, it is dropped instead
+                        if (receiveBuffer.remaining() > buffer.length) {
+                            receiveBuffer.clear();
+                            spikesBufferPool.release(buffer);
+                            Backpressure.drop(Backpressure.OVERSIZED_DATAGRAMS);
+                            continue;
+                        }
 
-                        // Create the array that will hold the information about this population
-                        int info[][] = null;
+                        receiveBuffer.get(buffer, 0, receiveBuffer.remaining());
+                        receiveBuffer.clear();
 
-                        // Proceed only if the terminal is connected to a population
-                        if (popsIdxs != null) {
-                            // The last element of the array holds information about the buffer that dataSender
-                            // will need to create
-                            info = new int[popsIdxs.size() + 1][2];
+                        if (Constants.CONNECTION_WORKERS) {
+                            dispatchToConnectionWorker(presynapticTerminalAddr.getAddress(),
+                                    presynapticTerminalAddr.getPort(), buffer);
+                        } else {
+                            batch.add(getHostAddress(presynapticTerminalAddr.getAddress()),
+                                    presynapticTerminalAddr.getPort(), buffer);
+                        }
+                    }
 
-                            int matrixSize = thisTerminal.popsMatrix.length;
-                            int offset = 0, // Offset of population from the beginning of the last layer
-                                    k = 0; // Index used to access the info array
+                    // The selector may wake up without any datagram to read, in which case the last
+                    // Terminal retrieved has not been passed on, as if the socket had timed out
+                    if (receivedDatagrams == 0) {
+                        receiveTimedOut = true;
+                        continue;
+                    }
 
-                            // Iterate over the populations of the last layer
-                            for (int j = 0; j < thisTerminal.popsMatrix[matrixSize - 1].length; j++) {
-                                Population pop = thisTerminal.popsMatrix[matrixSize - 1][j];
+                    receiveTimedOut = false;
 
-                                // If the population is connected to the i-th postsynaptic terminal...
-                                if (popsIdxs.contains(pop.id)) {
-                                    info[k][0] = offset / 8;
-                                    info[k][1] = pop.numOfNeurons / 8;
-                                    info[info.length - 1][0] += pop.numOfNeurons;
-                                    k++;
-                                }
+                    if (Constants.CONNECTION_WORKERS)
+                        continue;
 
-                                offset += pop.numOfNeurons;
-                            }
-                        }
+                    workload = batch;
+                } else {
 
-                        postsynTerminalsInfo[i] = info;
+                    // Receive the latest packet containing the spikes and store its address. The buffer
+                    // of the previous iteration is used again if it has not been passed on
+                    if (inputSpikesBuffer == null || inputSpikesBuffer.length != maxDataBytes)
+                        inputSpikesBuffer = spikesBufferPool.acquire();
+                    inputSpikesPacket.setData(inputSpikesBuffer, 0, maxDataBytes);
+                    datagramSocket.receive(inputSpikesPacket);
+                    receivedPackets.incrementAndGet();
+                    InetAddress presynapticTerminalAddr = inputSpikesPacket.getAddress();
+                    receiveTimedOut = false;
+
+                    // The receive loop only has to find the worker of the connection
+                    if (Constants.CONNECTION_WORKERS) {
+                        dispatchToConnectionWorker(presynapticTerminalAddr, inputSpikesPacket.getPort(),
+                                inputSpikesBuffer);
+                        inputSpikesBuffer = null;
+                        continue;
                     }
 
+                    workload = new KernelInitializer(kernelInitQueue, getHostAddress(presynapticTerminalAddr),
+                            inputSpikesPacket.getPort(), inputSpikesBuffer, thisTerminal, clockSignalsQueue, spikesBufferPool);
                 }
 
-                // Receive the latest packet containing the spikes and store its address
-                byte[] inputSpikesBuffer = new byte[maxDataBytes];
-                DatagramPacket inputSpikesPacket = new DatagramPacket(inputSpikesBuffer, maxDataBytes);
-                datagramSocket.receive(inputSpikesPacket);
-                inputSpikesBuffer = inputSpikesPacket.getData();
-                InetAddress presynapticTerminalAddr = inputSpikesPacket.getAddress();
-                receiveTimedOut = false;
-
                 // Put the workload in the queue
                 try {
-                    Future<Integer> future = kernelInitExecutor.submit(new KernelInitializer(kernelInitQueue, presynapticTerminalAddr.toString().substring(1),
-                            inputSpikesPacket.getPort(), inputSpikesBuffer, thisTerminal, clockSignalsQueue));
+                    Future<Integer> future = kernelInitExecutor.submit(workload);
+                    if (workload == batch)
+                        batchFuture = future;
+
+                    // The buffer now belongs to KernelInitializer, which either gives it back to the
+                    // pool or passes it to InputCreator
+                    inputSpikesBuffer = null;
 
                     // TODO: Use final variables with meaningful name for the content of the Future object.
                     if (future.get().equals(1)) { throw new RejectedExecutionException(); }
@@ -398,6 +649,7 @@ public class SimulationService extends IntentService {
                     kernelInitFutures.add(future);
                 } catch (RejectedExecutionException e) {
                     Log.e("SimulationService", "Queue of kernelInitializer is full therefore is going to be cleared");
+                    Backpressure.drop(Backpressure.KERNEL_INIT_WORKLOADS, kernelInitExecutor.getQueue().size() + 1);
 
                     // TODO: The flow blocks somewhere else too because this is not enough to keep things going. Investigate.
 
@@ -426,22 +678,17 @@ public class SimulationService extends IntentService {
             }
         }
 
-        /*
-        Retrieve from the Future object the last updated openCLObject
-         */
-
-        try {
-            openCLObject = newOpenCLObject.get(100, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException|ExecutionException|TimeoutException e) {
-            String stackTrace = Log.getStackTraceString(e);
-            Log.e("SimulationService", stackTrace);
-        }
-
         /*
         Shut down the Threads
          */
 
         // TODO: Do orderly shutdown and use shutdownNow as a last resort.
+        inputCreator.shutDown();
+        Log.d("SimulationService", Backpressure.dropsToString());
+        metricsExecutor.shutdownNow();
+        for (ConnectionWorker connectionWorker : connectionWorkers)
+            connectionWorker.shutDown();
+        connectionWorkersExecutor.shutdownNow();
         terminalUpdaterExecutor.shutdownNow();
         kernelInitExecutor.shutdownNow();
         inputCreatorExecutor.shutdownNow();
@@ -452,6 +699,7 @@ public class SimulationService extends IntentService {
         boolean terminalUpdatersIsShutdown = false;
         boolean inputCreatorIsShutdown = false;
         boolean kernelInitializerIsShutdown = false;
+        boolean connectionWorkersAreShutdown = false;
         boolean kernelExecutorIsShutdown = false;
         boolean dataSenderIsShutdown = false;
 
@@ -459,6 +707,7 @@ public class SimulationService extends IntentService {
         try {
             terminalUpdatersIsShutdown = terminalUpdaterExecutor.awaitTermination(300, TimeUnit.MILLISECONDS);
             kernelInitializerIsShutdown = kernelInitExecutor.awaitTermination(100, TimeUnit.MILLISECONDS);
+            connectionWorkersAreShutdown = connectionWorkersExecutor.awaitTermination(200, TimeUnit.MILLISECONDS);
             inputCreatorIsShutdown = inputCreatorExecutor.awaitTermination(100, TimeUnit.MILLISECONDS);
             kernelExecutorIsShutdown = kernelExcExecutor.awaitTermination(100, TimeUnit.MILLISECONDS);
             dataSenderIsShutdown = dataSenderExecutor.awaitTermination(100, TimeUnit.MILLISECONDS);
@@ -468,13 +717,14 @@ public class SimulationService extends IntentService {
         }
 
         if (!terminalUpdatersIsShutdown || !kernelExecutorIsShutdown || !kernelInitializerIsShutdown
-                || !dataSenderIsShutdown || !inputCreatorIsShutdown) {
+                || !dataSenderIsShutdown || !inputCreatorIsShutdown || !connectionWorkersAreShutdown) {
             Log.e("SimulationService", "terminal updater is shutdown: " + terminalUpdatersIsShutdown +
                     " kernel initializer is shutdown: " + kernelInitializerIsShutdown + " kernel executor is shutdown: " + kernelExecutorIsShutdown +
-                    " data sender is shutdown: " + dataSenderIsShutdown + " input creator is shutdown: " + inputCreatorIsShutdown);
+                    " data sender is shutdown: " + dataSenderIsShutdown + " input creator is shutdown: " + inputCreatorIsShutdown +
+                    " connection workers are shutdown: " + connectionWorkersAreShutdown);
         }
 
-        closeOpenCL(openCLObject);
+        simulationBackend.close();
 
         /* Reset some static variables for further use */
 
@@ -482,6 +732,10 @@ public class SimulationService extends IntentService {
         //thisTerminal = null;
 
         try {
+            if (selector != null) {
+                selector.close();
+                datagramChannel.close();
+            }
             if (MainActivity.thisClient.objectInputStream != null) {
                 MainActivity.thisClient.objectInputStream.close();
                 MainActivity.thisClient.objectInputStream = null;
@@ -503,7 +757,7 @@ public class SimulationService extends IntentService {
         // some settings, like num of synapses, may have changed. Since it takes some time for the
         // Terminal object with the new info to arrive from the server, in the meanwhile all
         // incoming udp packets must be discarded to prevent errors.
-        KernelInitializer.numOfConnections = 0;
+        KernelInitializer.reset();
 
         stopSelf();
 
@@ -522,32 +776,63 @@ public class SimulationService extends IntentService {
 
     private class TerminalUpdater implements Runnable {
         private BlockingQueue<Terminal> updatedTerminal;
-        private BlockingQueue<Terminal> newWeights;
+        private BlockingQueue<Object> newWeights;
+
+        // Merger the weights are added to in place of the queue, null if they are queued
+        private WeightsMerger weightsMerger;
 
-        TerminalUpdater(BlockingQueue<Terminal> b, BlockingQueue<Terminal> b1) {
+        TerminalUpdater(BlockingQueue<Terminal> b, BlockingQueue<Object> b1, WeightsMerger w) {
 
             updatedTerminal = b;
             newWeights = b1;
+            weightsMerger = w;
 
         }
 
         @Override
         public void run(){
+
+            // Decoder of the binary updates, null as long as the server sends serialized objects
+            TerminalCodec codec = null;
+
             while (!shutdown) {
-                Terminal thisTerminal;
+                Terminal thisTerminal = null;
 
                 try {
-                    Object obj = MainActivity.thisClient.objectInputStream.readObject();
+                    Object obj = codec != null ? codec.readMessage() :
+                            MainActivity.thisClient.objectInputStream.readObject();
+
                     if (obj instanceof Terminal) {
                         thisTerminal = ((Terminal) obj);
+                    } else if (obj instanceof WeightsDelta && weightsMerger != null) {
+                        weightsMerger.add((WeightsDelta) obj);
+                    } else if (obj instanceof WeightsDelta) {
+
+                        // Unlike the terminals the deltas cannot be dropped, since each of them
+                        // holds only a part of the weights
+                        newWeights.put(obj);
+                    } else if (codec == null && obj instanceof Integer && Constants.BINARY_TERMINAL_CODEC) {
+
+                        // The server has accepted the binary format, which is written as block
+                        // data of the same stream from now on
+                        int version = (Integer) obj;
+                        if (version < 1 || version > TerminalCodec.VERSION)
+                            throw new StreamCorruptedException("Unsupported codec version " + version);
+                        codec = new TerminalCodec(MainActivity.thisClient.objectInputStream);
+                        Log.d("TerminalUpdater", "Terminal updates are received with codec version " + version);
+                    }
 
+                    if (thisTerminal != null) {
                         // TODO: Probably having two different queues is not necessary.
                         // The last terminal that is received is the only one that matters, thus the queue can be cleared
                         updatedTerminal.clear();
                         updatedTerminal.offer(thisTerminal);
 
                         // Vice versa, it may be important to conserve more than one weights array if the simulation has not updated them yet
-                        newWeights.offer(thisTerminal);
+                        if (weightsMerger != null)
+                            weightsMerger.add(thisTerminal);
+                        else
+                            newWeights.offer(thisTerminal);
 
                         for (Terminal presynConn : thisTerminal.presynapticTerminals) {
                             Log.d("TerminalUpdater", "ip of presynConn "
@@ -564,46 +849,231 @@ public class SimulationService extends IntentService {
                         errornumber = 3; // TODO: Use constant variables with appropriate names
                         errorRaised = true;
                     }
+                } catch (InterruptedException e) {
+                    String stackTrace = Log.getStackTraceString(e);
+                    Log.e("TerminalUpdater", stackTrace);
+                    return;
                 }
             }
         }
     }
 
+    /**
+     * Callable which serves with a single task the packets received by the NIO receiver during one
+     * wakeup of the selector. The packets are served in the order with which they were received,
+     * all by the same KernelInitializer, and the batch is filled again at the next wakeup once it
+     * has been served.
+     */
+
+    private static class KernelInitializerBatch implements Callable<Integer> {
+        private final KernelInitializer kernelInitializer;
+        private final SpikesBufferPool spikesBufferPool;
+
+        // Addresses and buffers of the packets of the batch
+        private final String[] presynTerminalsIPs = new String[MAX_BATCH_SIZE];
+        private final int[] presynTerminalsNatPorts = new int[MAX_BATCH_SIZE];
+        private final byte[][] inputSpikesBuffers = new byte[MAX_BATCH_SIZE][];
+        private int size = 0;
+
+        // Updated terminal, carried by the first packet only
+        private Terminal thisTerminal;
+
+        KernelInitializerBatch(KernelInitializer kernelInitializer, SpikesBufferPool spikesBufferPool) {
+            this.kernelInitializer = kernelInitializer;
+            this.spikesBufferPool = spikesBufferPool;
+        }
+
+        /**
+         * Empty the batch before filling it again. The buffers of a batch which was never served,
+         * because its workload was rejected, are given back to the pool.
+         */
+
+        void clear(Terminal thisTerminal) {
+            for (int i = 0; i < size; i++) {
+                spikesBufferPool.release(inputSpikesBuffers[i]);
+                inputSpikesBuffers[i] = null;
+            }
+
+            size = 0;
+            this.thisTerminal = thisTerminal;
+        }
+
+        void add(String presynTerminalIP, int presynTerminalNatPort, byte[] inputSpikesBuffer) {
+            presynTerminalsIPs[size] = presynTerminalIP;
+            presynTerminalsNatPorts[size] = presynTerminalNatPort;
+            inputSpikesBuffers[size++] = inputSpikesBuffer;
+        }
+
+        @Override
+        public Integer call() {
+            int result = 0;
+
+            // If one of the packets could not be served the whole batch is reported as such. The
+            // buffers now belong to KernelInitializer
+            for (int i = 0; i < size; i++) {
+                byte[] inputSpikesBuffer = inputSpikesBuffers[i];
+                inputSpikesBuffers[i] = null;
+                result = kernelInitializer.call(presynTerminalsIPs[i], presynTerminalsNatPorts[i], inputSpikesBuffer,
+                        i == 0 ? thisTerminal : null).equals(1) ? 1 : result;
+            }
+
+            size = 0;
+            thisTerminal = null;
+
+            return result;
+        }
+    }
+
+    /**
+     * Simulation backend which calls the native methods that schedule and run the OpenCL kernel.
+     */
+
+    private class OpenCLBackend implements SimulationBackend {
+
+        // Pointer to the OpenCL structure defined in shared.h
+        private long openCLObject;
+
+        // Direct buffers registered with the native side, through which the input and the output of
+        // the simulation are passed. They are null if the arrays are passed at every call instead.
+        private ByteBuffer synapseInputBuffer;
+        private FloatBuffer presynFiringRatesBuffer;
+        private ByteBuffer outputSpikesBuffer;
+
+        // Device times of the commands of the last step, null if they are not profiled
+        private OpenCLProfile profile;
+
+        OpenCLBackend(String kernel) {
+            ByteBuffer firingRatesBuffer = null;
+
+            // The buffers are as large as those created by the OpenCL implementation
+            if (Constants.DIRECT_BUFFER_HANDOFF) {
+                int numOfSynapses = Constants.NUMBER_OF_SYNAPSES * NUMBER_OF_NEURONS;
+                synapseInputBuffer = ByteBuffer.allocateDirect(numOfSynapses * Constants.MAX_MULTIPLICATIONS);
+                firingRatesBuffer = ByteBuffer.allocateDirect(numOfSynapses * 4).order(ByteOrder.nativeOrder());
+                presynFiringRatesBuffer = firingRatesBuffer.asFloatBuffer();
+                outputSpikesBuffer = ByteBuffer.allocateDirect(NUMBER_OF_NEURONS / 8 + 1);
+            }
+
+            if (Constants.OPENCL_PROFILING)
+                profile = new OpenCLProfile();
+
+            openCLObject = initializeOpenCL(kernel, NUMBER_OF_NEURONS, Constants.SYNAPSE_FILTER_ORDER, Constants.NUMBER_OF_SYNAPSES,
+                    synapseInputBuffer, firingRatesBuffer, outputSpikesBuffer, Constants.PIPELINED_LAYERS,
+                    Constants.DEVICE_NEURONAL_DYNAMICS, Constants.EVENT_DRIVEN_SYNAPSES,
+                    profile != null ? profile.buffer : null);
+        }
+
+        @Override
+        public byte[] simulateDynamics(byte[] synapseInput, float[] simulationParameters, byte[] weights,
+                                       int[] weightsIndexes, float[] presynFiringRates, byte[] updateWeightsFlags,
+                                       int[][] indexesMatrix, int[][] neuronsMatrix) {
+            if (synapseInputBuffer == null) {
+                byte[] outputSpikes = SimulationService.this.simulateDynamics(synapseInput, openCLObject, simulationParameters,
+                        weights, weightsIndexes, presynFiringRates, updateWeightsFlags, indexesMatrix, neuronsMatrix);
+
+                if (profile != null && outputSpikes.length != 0)
+                    profile.record();
+
+                return outputSpikes;
+            }
+
+            int inputNeurons = synapseInput.length / Constants.MAX_MULTIPLICATIONS;
+
+            if (synapseInput.length > synapseInputBuffer.capacity()) {
+                Log.e("OpenCLBackend", "Synaptic input of " + inputNeurons + " neurons does not fit the direct buffers");
+                return new byte[0];
+            }
+
+            // The input is put together in heap arrays, on which the word-parallel update of
+            // KernelInitializer works, hence it is moved into the direct buffers with one bulk copy
+            // each. The native side reads the buffers without any further copy
+            synapseInputBuffer.clear();
+            synapseInputBuffer.put(synapseInput);
+            presynFiringRatesBuffer.clear();
+            presynFiringRatesBuffer.put(presynFiringRates, 0, inputNeurons);
+
+            int dataBytes = simulateDynamicsDirect(openCLObject, inputNeurons, simulationParameters, weights,
+                    weightsIndexes, updateWeightsFlags, indexesMatrix, neuronsMatrix);
+
+            // A negative number of bytes means an error has occurred
+            if (dataBytes < 0)
+                return new byte[0];
+
+            if (profile != null)
+                profile.record();
+
+            // The spikes are queued for DataSender, hence they cannot stay in the shared buffer. They
+            // are copied into an array of the pool, which DataSender gives back after sending them
+            outputSpikesPool.setBufferSize(dataBytes);
+            byte[] outputSpikes = outputSpikesPool.acquire();
+            outputSpikesBuffer.clear();
+            outputSpikesBuffer.get(outputSpikes);
+
+            return outputSpikes;
+        }
+
+        @Override
+        public boolean loadCompactIndexes(CompactIndexes compactIndexes) {
+            return SimulationService.this.loadCompactIndexes(openCLObject, compactIndexes.templates,
+                    compactIndexes.populationsTable, compactIndexes.layersPopulations);
+        }
+
+        @Override
+        public boolean applyWeightsDelta(WeightsDelta delta) {
+            return SimulationService.this.applyWeightsDelta(openCLObject, delta.runs, delta.numOfRuns, delta.weights);
+        }
+
+        @Override
+        public void close() {
+            closeOpenCL(openCLObject);
+        }
+    }
+
     /*
-    Class which calls the native method which schedules and runs the OpenCL kernel.
+    Class which asks the simulation backend to simulate the local network.
      */
 
-    private class KernelExecutor implements Callable<Long> {
+    private class KernelExecutor implements Runnable {
         private BlockingQueue<InputCreatorOutput> inputCreatorQueue;
-        private long openCLObject;
+        private SimulationBackend simulationBackend;
         private InputCreatorOutput inputCreatorOutput;
         private short data_bytes = (NUMBER_OF_NEURONS % 8) == 0 ?
                 (short) (NUMBER_OF_NEURONS / 8) : (short)(NUMBER_OF_NEURONS / 8 + 1);
         private byte[] outputSpikes = new byte[data_bytes];
         private BlockingQueue<byte[]> kernelExcQueue;
-        private BlockingQueue<Terminal> newTerminalQueue;
+        private BlockingQueue<Object> newTerminalQueue;
         private IndexesMatrixBuilder indexesMatrixBuilder = new IndexesMatrixBuilder();
         private boolean populationPresent = false;
 
-        KernelExecutor(BlockingQueue<InputCreatorOutput> b, BlockingQueue<byte[]> b1, long l1, BlockingQueue<Terminal> b2) {
+        // Merger the updates are drained from at every step, null if they are taken from the queue
+        private WeightsMerger weightsMerger;
+
+        // Time taken by the backend to simulate a step
+        private final LatencyHistogram simulationTime = MetricsRegistry.histogram("simulateDynamics");
+
+        KernelExecutor(BlockingQueue<InputCreatorOutput> b, BlockingQueue<byte[]> b1, SimulationBackend s, BlockingQueue<Object> b2,
+                       WeightsMerger w) {
             inputCreatorQueue = b;
             kernelExcQueue = b1;
-            openCLObject = l1;
+            simulationBackend = s;
             newTerminalQueue = b2;
+            weightsMerger = w;
         }
 
         @Override
-        public Long call () {
+        public void run () {
             while (!shutdown) {
 
                 Terminal newTerminal = null;
 
                 try {
                     inputCreatorOutput = inputCreatorQueue.take();
-                    newTerminal = newTerminalQueue.poll();
                 } catch (InterruptedException e) {
                     String stackTrace = Log.getStackTraceString(e);
                     Log.e("KernelExecutor", stackTrace);
+
+                    // No input has been taken, the output of the previous step must not be released again
+                    continue;
                 }
 
                 // TODO: Instead of assigning zero length arrays is it possible to pass a null to the native side and check against nullptr?
@@ -613,19 +1083,74 @@ public class SimulationService extends IntentService {
                 IndexesMatrices indexesMatrices = new IndexesMatrices(
                         new int[0][0], new int[0][0]);
 
+                if (weightsMerger != null) {
+
+                    // All the updates received since the last step are applied at once, the weights
+                    // with a single call and the latest topology together with the simulation
+                    if (weightsMerger.drain()) {
+                        WeightsDelta mergedWeights = weightsMerger.drainedWeights();
+                        if (mergedWeights != null && !simulationBackend.applyWeightsDelta(mergedWeights)) {
+                            shutDown();
+                            if (!errorRaised) {
+                                errornumber = 6;
+                                errorRaised = true;
+                            }
+                        }
+
+                        if (weightsMerger.drainedFlags() != null)
+                            updateWeightsFlags = weightsMerger.drainedFlags();
+
+                        newTerminal = weightsMerger.drainedTopology();
+                    }
+                } else {
+
+                    // The deltas received before the next terminal are applied right away, the terminal
+                    // is applied together with the simulation. The deltas that follow it wait for the
+                    // next time step, so that they are not overwritten by its weights.
+                    Object update = newTerminalQueue.poll();
+                    while (update instanceof WeightsDelta) {
+                        if (!simulationBackend.applyWeightsDelta((WeightsDelta) update)) {
+                            shutDown();
+                            if (!errorRaised) {
+                                errornumber = 6;
+                                errorRaised = true;
+                            }
+                        }
+                        update = newTerminalQueue.peek() instanceof WeightsDelta ? newTerminalQueue.poll() : null;
+                    }
+                    if (update == null && newTerminalQueue.peek() instanceof Terminal)
+                        update = newTerminalQueue.poll();
+                    newTerminal = (Terminal) update;
+
+                    if (newTerminal != null) {
+                        weights = newTerminal.newWeights;
+                        weightsIndexes = newTerminal.newWeightsIndexes;
+                        updateWeightsFlags = newTerminal.updateWeightsFlags;
+                    }
+                }
+
                 if (newTerminal != null) {
                     Log.d("KernelExecutor", "New terminal present");
 
-                    weights = newTerminal.newWeights;
-                    weightsIndexes = newTerminal.newWeightsIndexes;
-                    updateWeightsFlags = newTerminal.updateWeightsFlags;
-
                     // If the matrix of populations has been created, it should be used to generate the indexes for the
                     // synapses
                     if (newTerminal.popsMatrix != null) {
                         Log.d("KernelExecutor", "New terminal has popsMatrix != null");
 
-                        indexesMatrices = indexesMatrixBuilder.buildIndexesMatrix(newTerminal);
+                        if (Constants.COMPACT_SYNAPSE_INDEXES) {
+                            CompactIndexes compactIndexes = indexesMatrixBuilder.buildCompactIndexes(newTerminal);
+
+                            if (!simulationBackend.loadCompactIndexes(compactIndexes)) {
+                                shutDown();
+                                if (!errorRaised) {
+                                    errornumber = 6;
+                                    errorRaised = true;
+                                }
+                            }
+                        } else {
+                            indexesMatrices = indexesMatrixBuilder.buildIndexesMatrix(newTerminal);
+                        }
+
                         if (newTerminal.popsMatrix.length != 0) {
                             Log.d("KernelExecutor", "popsMatrix has length " +
                                     newTerminal.popsMatrix.length);
@@ -638,12 +1163,14 @@ public class SimulationService extends IntentService {
                     }
                 }
 
-                // Call the native side only if there is at least one population
+                // Call the simulation backend only if there is at least one population
                 if (populationPresent) {
-                    outputSpikes = simulateDynamics(inputCreatorOutput.resizedSynapticInput, openCLObject,
+                    long startTime = System.nanoTime();
+                    outputSpikes = simulationBackend.simulateDynamics(inputCreatorOutput.resizedSynapticInput,
                             SimulationParameters.getParameters(), weights, weightsIndexes,
                             inputCreatorOutput.resizedFiringRates, updateWeightsFlags,
                             indexesMatrices.indexesMatrix, indexesMatrices.neuronsMatrix);
+                    simulationTime.recordSince(startTime);
 
                     // A return object on length zero means an error has occurred
                     if (outputSpikes.length == 0) {
@@ -661,9 +1188,10 @@ public class SimulationService extends IntentService {
                         }
                     }
                 }
-            }
 
-            return openCLObject;
+                // The backend has copied the input, which can be written again by the connections
+                inputCreatorOutput.released = true;
+            }
         }
     }
 
@@ -680,10 +1208,139 @@ public class SimulationService extends IntentService {
         private DatagramSocket outputSocket;
         private BlockingQueue<Object> clockSignals;
 
-        DataSender(BlockingQueue<byte[]> b, DatagramSocket d, BlockingQueue<Object> b1) {
+        // Channel the socket belongs to when the NIO receiver is used, null otherwise
+        private DatagramChannel outputChannel;
+
+        // Postsynaptic terminals of the last Terminal, rebuilt only when a new one arrives
+        private DestinationsTable destinations = DestinationsTable.EMPTY_TABLE;
+
+        // Buffer the spikes are copied into once per time step when they are sent through the channel
+        private ByteBuffer spikesBuffer;
+
+        // Address of the server and the packet used to keep the socket alive, resolved only once
+        private InetSocketAddress serverAddress = null;
+        private DatagramPacket keepAlivePacket = null;
+        private final ByteBuffer keepAliveBuffer = ByteBuffer.allocateDirect(1);
+
+        // Duplicate of the descriptor of the socket used by the native batched send, null if the
+        // datagrams are sent one at a time
+        private ParcelFileDescriptor batchDescriptor = null;
+
+        // Time taken to send the spikes of a step to all the postsynaptic terminals
+        private final LatencyHistogram sendTime = MetricsRegistry.histogram("send");
+
+        // Datagrams of a time step one after the other, with their lengths, addresses and the
+        // indexes of their postsynaptic terminals in the table of the destinations
+        private ByteBuffer batchBuffer;
+        private int[] batchLengths = new int[0], batchAddresses = new int[0], batchPorts = new int[0],
+                batchDestinations = new int[0];
+
+        DataSender(BlockingQueue<byte[]> b, DatagramSocket d, DatagramChannel d1, BlockingQueue<Object> b1) {
             kernelExcQueue = b;
             outputSocket = d;
+            outputChannel = d1;
             clockSignals = b1;
+            spikesBuffer = ByteBuffer.allocateDirect(dataBytes);
+
+            // The native send lives in the same library as the OpenCL implementation. The duplicate
+            // descriptor refers to the same socket, hence the datagrams leave from the same port.
+            if (Constants.BATCHED_SEND && openCLAvailable) {
+                try {
+                    batchDescriptor = ParcelFileDescriptor.fromDatagramSocket(outputSocket);
+                } catch (RuntimeException e) {
+                    String stackTrace = Log.getStackTraceString(e);
+                    Log.e("DataSender", stackTrace);
+                }
+
+                if (batchDescriptor == null)
+                    Log.d("DataSender", "The descriptor of the socket is not available, the datagrams are sent one at a time");
+                else
+                    batchBuffer = ByteBuffer.allocateDirect(dataBytes * 8);
+            }
+        }
+
+        /**
+         * Send the spikes to a postsynaptic terminal. The socket of a non-blocking channel cannot
+         * be used directly, therefore the datagram is sent through the channel if there is one, in
+         * which case the spikes of the whole network must have been copied into spikesBuffer.
+         */
+
+        private void send(byte[] data, int destination) throws IOException {
+            if (outputChannel != null) {
+                ByteBuffer buffer = destinations.sliceBuffer(destination);
+                buffer = buffer != null ? buffer : spikesBuffer;
+                buffer.rewind();
+                outputChannel.send(buffer, destinations.addresses[destination]);
+            } else {
+                DatagramPacket packet = destinations.packets[destination];
+                packet.setData(data);
+                outputSocket.send(packet);
+            }
+        }
+
+        /**
+         * Send the spikes to all the postsynaptic terminals with a single native call. The datagrams
+         * the native side could not send are sent one at a time.
+         */
+
+        private void sendBatch(byte[] outputSpikes) {
+            int numOfDatagrams = 0;
+            batchBuffer.clear();
+
+            for (int i = 0; i < destinations.size(); i++) {
+
+                // The address of the terminal could not be resolved
+                if (destinations.addresses[i] == null)
+                    continue;
+
+                byte[] data = destinations.slice(outputSpikes, i);
+
+                if (batchBuffer.remaining() < data.length) {
+                    ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(2 * batchBuffer.capacity(), batchBuffer.position() + data.length));
+                    batchBuffer.flip();
+                    newBuffer.put(batchBuffer);
+                    batchBuffer = newBuffer;
+                }
+
+                batchBuffer.put(data);
+                batchLengths[numOfDatagrams] = data.length;
+                batchAddresses[numOfDatagrams] = destinations.ipv4Addresses[i];
+                batchPorts[numOfDatagrams] = destinations.ports[i];
+                batchDestinations[numOfDatagrams] = i;
+                numOfDatagrams++;
+            }
+
+            int sent = SimulationService.this.sendBatch(batchDescriptor.getFd(), batchBuffer, batchLengths,
+                    batchAddresses, batchPorts, numOfDatagrams);
+
+            for (int i = sent; i < numOfDatagrams; i++) {
+                int destination = batchDestinations[i];
+
+                try {
+                    send(destinations.slice(outputSpikes, destination), destination);
+                } catch (IOException e) {
+                    String stackTrace = Log.getStackTraceString(e);
+                    Log.e("DataSender", stackTrace);
+                }
+            }
+        }
+
+        /**
+         * Send the packet which keeps alive the socket on the server.
+         */
+
+        private void sendKeepAlive() throws IOException {
+            if (serverAddress == null) {
+                serverAddress = new InetSocketAddress(InetAddress.getByName(SERVER_IP), Constants.UDP_PORT);
+                keepAlivePacket = new DatagramPacket(new byte[1], 1, serverAddress);
+            }
+
+            if (outputChannel != null) {
+                keepAliveBuffer.rewind();
+                outputChannel.send(keepAliveBuffer, serverAddress);
+            } else {
+                outputSocket.send(keepAlivePacket);
+            }
         }
 
         @Override
@@ -710,50 +1367,56 @@ public class SimulationService extends IntentService {
 
                 if (outputSpikes != null) {
 
-                    for (int i = 0; i < thisTerminal.postsynapticTerminals.size(); i++) {
-                        Terminal postsynapticTerminal = thisTerminal.postsynapticTerminals.get(i);
-
-                        // Get the info needed to locate the data to send to this terminal
-                        int[][] info = postsynTerminalsInfo[i];
-
-                        /*
-                        // Proceed only if the postsynTerminal is connected to some populations
-                        if (info != null) {
-                            // Get the size of buffer that will hold the data
-                            int size = info[info.length - 1][0];
-                            size = size % 8 == 0 ? size : size + 1;
-                            byte[] buffer = new byte[size];
-                            int offset = 0;
-
-                            // Iterate over the populations that are connected to this postsynaptic terminal
-                            for (int j = 0; j < info.length - 1; j++) { // The last element of info contains info unrelated to the populations
-                                // Copy the relevant data from the total array into the buffer for this specific terminal
-                                System.arraycopy(outputSpikes, info[j][0], buffer, offset, info[j][1]);
-                                offset += info[j][1];
+                    // The addresses are resolved again only if the terminal has changed
+                    Terminal terminal = thisTerminal;
+                    if (destinations.terminal != terminal) {
+                        destinations = DestinationsTable.build(terminal);
+                        batchLengths = new int[destinations.size()];
+                        batchAddresses = new int[destinations.size()];
+                        batchPorts = new int[destinations.size()];
+                        batchDestinations = new int[destinations.size()];
+                    }
+
+                    if (outputChannel != null) {
+                        if (outputSpikes.length > spikesBuffer.capacity())
+                            spikesBuffer = ByteBuffer.allocateDirect(outputSpikes.length);
+                        spikesBuffer.clear();
+                        spikesBuffer.put(outputSpikes);
+                        spikesBuffer.flip();
+                    }
+
+                    long startTime = System.nanoTime();
+
+                    // The native side handles only IPv4 addresses
+                    if (batchDescriptor != null && destinations.ipv4) {
+                        sendBatch(outputSpikes);
+                    } else {
+                        for (int i = 0; i < destinations.size(); i++) {
+
+                            // The address of the terminal could not be resolved
+                            if (destinations.addresses[i] == null)
+                                continue;
+
+                            try {
+                                send(destinations.slice(outputSpikes, i), i);
+                            } catch (IOException e) {
+                                String stackTrace = Log.getStackTraceString(e);
+                                Log.e("DataSender", stackTrace);
                             }
 
-                            // TODO: When sending only portions of outputspikes move the try block in here and send
-                            // TODO: buffer instead of outputspikes
                         }
-                        */
+                    }
 
-                        try {
-                            InetAddress postsynapticTerminalAddr = InetAddress.getByName(postsynapticTerminal.ip);
-                            DatagramPacket outputSpikesPacket = new DatagramPacket(outputSpikes, outputSpikes.length, postsynapticTerminalAddr, postsynapticTerminal.natPort);
-                            outputSocket.send(outputSpikesPacket);
-                        } catch (IOException e) {
-                            String stackTrace = Log.getStackTraceString(e);
-                            Log.e("DataSender", stackTrace);
-                        }
+                    sendTime.recordSince(startTime);
 
-                    }
+                    // Arrays which do not come from the pool, like those of the CPU backend, are
+                    // left to the garbage collector
+                    outputSpikesPool.release(outputSpikes);
 
                 } else {
 
                     try {
-                        InetAddress serverAddress = InetAddress.getByName(SERVER_IP);
-                        DatagramPacket pingPacket = new DatagramPacket(new byte[1], 1, serverAddress, Constants.UDP_PORT);
-                        outputSocket.send(pingPacket);
+                        sendKeepAlive();
                     } catch (IOException e) {
                         String stackTrace = Log.getStackTraceString(e);
                         Log.e("DataSender", stackTrace);
@@ -762,15 +1425,33 @@ public class SimulationService extends IntentService {
             }
              /* [End of the while loop] */
             // TODO Close the datagram outputsocket
+
+            if (batchDescriptor != null) {
+                try {
+                    batchDescriptor.close();
+                } catch (IOException e) {
+                    String stackTrace = Log.getStackTraceString(e);
+                    Log.e("DataSender", stackTrace);
+                }
+            }
         }
         /* [End of the run loop] */
     }
     /* [End of the DataSender class] */
 
-    public native long initializeOpenCL(String synapseKernel, short numOfNeurons, int filterOrder, short numOfSynapses);
+    public native long initializeOpenCL(String synapseKernel, short numOfNeurons, int filterOrder, short numOfSynapses,
+                                        ByteBuffer synapseInputBuffer, ByteBuffer presynFiringRatesBuffer, ByteBuffer outputSpikesBuffer,
+                                        boolean pipelinedLayers, boolean deviceDynamics, boolean sparseSynapses,
+                                        ByteBuffer profilingBuffer);
     public native byte[] simulateDynamics(byte[] synapseInput, long openCLObject, float[] simulationParameters,
                                           byte[] weights, int[] weightsIndexes, float[] presynFiringRates, byte[] updateWeightsFlags,
                                           int[][] indexesmatrix, int[][] neuronsMatrix);
+    public native int simulateDynamicsDirect(long openCLObject, int inputNeurons, float[] simulationParameters,
+                                             byte[] weights, int[] weightsIndexes, byte[] updateWeightsFlags,
+                                             int[][] indexesMatrix, int[][] neuronsMatrix);
+    public native boolean loadCompactIndexes(long openCLObject, int[] templates, int[] populationsTable, int[] layersPopulations);
+    public native boolean applyWeightsDelta(long openCLObject, int[] runs, int numOfRuns, byte[] weights);
+    public native int sendBatch(int fd, ByteBuffer datagrams, int[] lengths, int[] addresses, int[] ports, int numOfDatagrams);
     public native void closeOpenCL(long openCLObject);
 }
 
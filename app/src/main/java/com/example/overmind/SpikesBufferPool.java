@@ -0,0 +1,72 @@
+package com.example.overmind;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of the buffers that hold the spikes received from the presynaptic terminals. A buffer is
+ * taken by the receive loop of SimulationService, travels with the Input built by KernelInitializer
+ * and is given back by InputCreator once the input has been put together, so that the reception of
+ * the packets does not produce garbage.
+ *
+ * All the buffers have the same size, that of the longest input among those of the presynaptic
+ * terminals. When the size changes the old buffers are discarded as soon as they are released.
+ *
+ * The spikes produced by the local network are pooled the same way, between the OpenCL backend and
+ * DataSender.
+ */
+
+class SpikesBufferPool {
+
+    // Buffers ready to be used
+    private final BlockingQueue<byte[]> freeBuffers;
+
+    // Size of the buffers currently handed out
+    private volatile int bufferSize;
+
+    SpikesBufferPool(int capacity, int bufferSize) {
+        freeBuffers = new ArrayBlockingQueue<>(capacity);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Change the size of the buffers, dropping those which are already in the pool.
+     *
+     * @param bufferSize The number of bytes needed to hold the longest input
+     */
+
+    void setBufferSize(int bufferSize) {
+        if (bufferSize != this.bufferSize) {
+            this.bufferSize = bufferSize;
+            freeBuffers.clear();
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return A buffer taken from the pool, or a new one if the pool is empty
+     */
+
+    byte[] acquire() {
+        byte[] buffer = freeBuffers.poll();
+
+        // A buffer of the wrong size may have been released while the size was being changed
+        return buffer != null && buffer.length == bufferSize ? buffer : new byte[bufferSize];
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers of the wrong size, as well as those which do not fit
+     * in the pool, are left to the garbage collector.
+     *
+     * @param buffer The buffer which is no longer used
+     */
+
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize)
+            freeBuffers.offer(buffer);
+    }
+
+}
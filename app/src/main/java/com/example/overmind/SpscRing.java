@@ -0,0 +1,148 @@
+package com.example.overmind;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring buffer with a single producer and a single consumer. Neither side takes a lock: the
+ * producer only writes the tail and the consumer only writes the head. When the ring is empty the
+ * consumer is parked until the producer puts a new element in it.
+ *
+ * @param <E> The type of the elements
+ */
+
+class SpscRing<E> {
+
+    // Slots of the ring, their number is a power of 2 so that the index is obtained with a mask
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+
+    // Number of the elements taken so far, written only by the consumer
+    private final AtomicLong head = new AtomicLong(0);
+
+    // Number of the elements put so far, written only by the producer
+    private final AtomicLong tail = new AtomicLong(0);
+
+    // Thread of the consumer while it is parked, null otherwise
+    private volatile Thread parkedConsumer;
+
+    // Flag set by wakeUp() to make the consumer return even if the ring is empty
+    private volatile boolean wokenUp = false;
+
+    SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        size = size < capacity ? size << 1 : size;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Called by the producer only.
+     *
+     * @param element The element to put in the ring
+     * @return False if the ring is full, in which case the element is not put in it
+     */
+
+    boolean offer(E element) {
+        long currentTail = tail.get();
+
+        if (currentTail - head.get() == slots.length())
+            return false;
+
+        slots.lazySet((int) currentTail & mask, element);
+
+        // The volatile write makes sure that the consumer, if it is about to be parked, is seen below
+        tail.set(currentTail + 1);
+
+        Thread consumer = parkedConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+
+        return true;
+    }
+
+    /**
+     * Called by the consumer only.
+     *
+     * @return The oldest element of the ring, null if the ring is empty
+     */
+
+    E poll() {
+        long currentHead = head.get();
+
+        if (currentHead == tail.get())
+            return null;
+
+        int index = (int) currentHead & mask;
+        E element = slots.get(index);
+        slots.lazySet(index, null);
+        head.lazySet(currentHead + 1);
+
+        return element;
+    }
+
+    /**
+     * Called by the consumer only. If the ring is empty the thread is parked until an element is
+     * put in it, the timeout expires or wakeUp() is called.
+     *
+     * @param timeout How long to wait for an element
+     * @param unit The unit of the timeout
+     * @return The oldest element of the ring, null if the timeout expired or the consumer was woken up
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+
+    E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        // The thread may be woken up by a permit left by an earlier element, or by wakeUp()
+        while (element == null && !wokenUp) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                break;
+
+            parkedConsumer = Thread.currentThread();
+
+            // Check again after having published the thread, so that no element goes unnoticed
+            if (head.get() == tail.get() && !wokenUp)
+                LockSupport.parkNanos(this, remaining);
+
+            parkedConsumer = null;
+
+            if (Thread.interrupted())
+                throw new InterruptedException();
+
+            element = poll();
+        }
+
+        wokenUp = false;
+
+        return element;
+    }
+
+    /**
+     * Called by the consumer only.
+     *
+     * @return The number of the elements in the ring, more may be put in it in the meantime
+     */
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Make the consumer return from poll() even if the ring is empty, for instance because it must
+     * stop.
+     */
+
+    void wakeUp() {
+        wokenUp = true;
+
+        Thread consumer = parkedConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+}
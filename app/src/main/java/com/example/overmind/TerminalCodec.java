@@ -0,0 +1,455 @@
+package com.example.overmind;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary format of the Terminal objects exchanged with the server, used in place of Java
+ * serialization once both ends have agreed on it.
+ *
+ * The negotiation happens on the object streams which are opened anyway: after the local terminal
+ * the client writes an Integer holding the highest VERSION it understands. A server which knows the
+ * format answers with an Integer holding the version it has chosen, and from then on it writes the
+ * messages as block data of the same stream. A server which does not know the format ignores the
+ * Integer and keeps sending Terminal objects, which are still accepted.
+ *
+ * Every message starts with its type, which is either a whole Terminal or a WeightsDelta. The
+ * latter carries only the weights that have changed and is sent when the topology has not. The
+ * arrays are prefixed by their length, -1 standing for null. Terminals and populations are written
+ * inline the first time they are met and by reference afterwards, so that shared objects and
+ * cycles, like the lateral connection of a terminal with itself, are preserved as they are by Java
+ * serialization.
+ *
+ * An instance keeps the scratch memory used by the decoding and must be used by a single thread.
+ */
+
+class TerminalCodec {
+
+    // Highest version of the format that is understood. Version 2 adds the weights deltas
+    static final int VERSION = 2;
+
+    // Types of the messages
+    static final int MESSAGE_TERMINAL = 1;
+    static final int MESSAGE_WEIGHTS_DELTA = 2;
+
+    // Markers of the references to terminals and populations
+    private static final int NULL_REFERENCE = -1;
+    private static final int NEW_REFERENCE = -2;
+
+    // Upper bound of the length of any array, beyond which the stream is considered corrupted
+    private static final int MAX_LENGTH = 1 << 26;
+
+    private final DataInput input;
+
+    // Objects decoded so far in the current message, in the order they were met
+    private final ArrayList<Terminal> terminals = new ArrayList<>();
+    private final ArrayList<Population> populations = new ArrayList<>();
+
+    // Memory used to read the integer arrays in a single call
+    private byte[] scratch = new byte[0];
+
+    TerminalCodec(DataInput input) {
+        this.input = input;
+    }
+
+    /**
+     * Block until the next message has been read.
+     *
+     * @return The Terminal or the WeightsDelta carried by the message
+     * @throws IOException If the stream is closed or its content does not follow the format
+     */
+
+    Object readMessage() throws IOException {
+        int type = input.readInt();
+
+        switch (type) {
+            case MESSAGE_TERMINAL:
+                terminals.clear();
+                populations.clear();
+                return readTerminal();
+            case MESSAGE_WEIGHTS_DELTA:
+                return readWeightsDelta();
+            default:
+                throw new StreamCorruptedException("Unknown message type " + type);
+        }
+    }
+
+    /**
+     * Write a terminal as a single message.
+     *
+     * @param output The stream to write the message into
+     * @param terminal The terminal to be written
+     * @throws IOException If the stream cannot be written
+     */
+
+    static void writeMessage(DataOutput output, Terminal terminal) throws IOException {
+        output.writeInt(MESSAGE_TERMINAL);
+        writeTerminal(output, terminal, new IdentityHashMap<Terminal, Integer>(), new IdentityHashMap<Population, Integer>());
+    }
+
+    /**
+     * Write the weights that have changed as a single message.
+     *
+     * @param output The stream to write the message into
+     * @param delta The runs of the weights to be written
+     * @throws IOException If the stream cannot be written
+     */
+
+    static void writeMessage(DataOutput output, WeightsDelta delta) throws IOException {
+        int numOfWeights = 0;
+        for (int i = 0; i < delta.numOfRuns; i++)
+            numOfWeights += delta.runs[2 * i + 1];
+
+        output.writeInt(MESSAGE_WEIGHTS_DELTA);
+        output.writeInt(delta.numOfRuns);
+        output.writeInt(numOfWeights);
+        for (int i = 0; i < 2 * delta.numOfRuns; i++)
+            output.writeInt(delta.runs[i]);
+        output.write(delta.weights, 0, numOfWeights);
+    }
+
+    /* Decoding */
+
+    private Terminal readTerminal() throws IOException {
+        int reference = input.readInt();
+
+        if (reference == NULL_REFERENCE)
+            return null;
+        if (reference != NEW_REFERENCE)
+            return reference >= 0 && reference < terminals.size() ? terminals.get(reference) : corrupted(Terminal.class);
+
+        Terminal terminal = new Terminal();
+
+        // The terminal is registered before its fields are read, since they may refer to it
+        terminals.add(terminal);
+
+        terminal.numOfNeurons = input.readShort();
+        terminal.numOfDendrites = input.readShort();
+        terminal.numOfSynapses = input.readShort();
+        terminal.serverIP = readString();
+        terminal.ip = readString();
+        terminal.natPort = input.readInt();
+        terminal.id = input.readInt();
+
+        int numOfPopulations = readLength();
+        terminal.populations = numOfPopulations < 0 ? null : new ArrayList<Population>(numOfPopulations);
+        for (int i = 0; i < numOfPopulations; i++)
+            terminal.populations.add(readPopulation());
+
+        int numOfRows = readLength();
+        terminal.popsMatrix = numOfRows < 0 ? null : new Population[numOfRows][];
+        for (int i = 0; i < numOfRows; i++) {
+            int rowLength = readLength();
+            terminal.popsMatrix[i] = rowLength < 0 ? null : new Population[rowLength];
+            for (int j = 0; j < rowLength; j++)
+                terminal.popsMatrix[i][j] = readPopulation();
+        }
+
+        terminal.inputsToPopulations = readMap();
+        terminal.outputsToPopulations = readMap();
+        terminal.presynapticTerminals = readTerminals();
+        terminal.postsynapticTerminals = readTerminals();
+        terminal.newWeights = readBytes();
+        terminal.newWeightsIndexes = readInts();
+        terminal.updateWeightsFlags = readBytes();
+
+        return terminal;
+    }
+
+    private WeightsDelta readWeightsDelta() throws IOException {
+        int numOfRuns = readLength();
+        int numOfWeights = readLength();
+
+        if (numOfRuns < 0 || numOfWeights < 0 || numOfRuns > MAX_LENGTH / 2)
+            throw new StreamCorruptedException("Invalid weights delta");
+
+        // The runs are read as an array of integers made of their starts and lengths
+        int bytesLength = numOfRuns * 8;
+        if (scratch.length < bytesLength)
+            scratch = new byte[bytesLength];
+        input.readFully(scratch, 0, bytesLength);
+
+        int[] runs = new int[2 * numOfRuns];
+        ByteBuffer.wrap(scratch, 0, bytesLength).asIntBuffer().get(runs);
+
+        // The runs must cover exactly the weights that follow
+        long totalLength = 0;
+        for (int i = 0; i < numOfRuns; i++) {
+            if (runs[2 * i] < 0 || runs[2 * i + 1] < 0)
+                throw new StreamCorruptedException("Invalid run of weights");
+            totalLength += runs[2 * i + 1];
+        }
+        if (totalLength != numOfWeights)
+            throw new StreamCorruptedException("The runs do not match the " + numOfWeights + " weights");
+
+        byte[] weights = new byte[numOfWeights];
+        input.readFully(weights);
+
+        return new WeightsDelta(runs, numOfRuns, weights);
+    }
+
+    private Population readPopulation() throws IOException {
+        int reference = input.readInt();
+
+        if (reference == NULL_REFERENCE)
+            return null;
+        if (reference != NEW_REFERENCE)
+            return reference >= 0 && reference < populations.size() ? populations.get(reference) : corrupted(Population.class);
+
+        Population population = new Population(input.readShort(), input.readShort(), input.readShort());
+        populations.add(population);
+
+        // The constructor assigns an id of its own, which must be replaced
+        population.id = input.readInt();
+        population.layer = input.readInt();
+        population.inputIndexes = readIntegers();
+        population.outputIndexes = readIntegers();
+
+        return population;
+    }
+
+    private ArrayList<Terminal> readTerminals() throws IOException {
+        int length = readLength();
+
+        if (length < 0)
+            return null;
+
+        ArrayList<Terminal> list = new ArrayList<>(length);
+        for (int i = 0; i < length; i++)
+            list.add(readTerminal());
+
+        return list;
+    }
+
+    private HashMap<Integer, ArrayList<Integer>> readMap() throws IOException {
+        int size = readLength();
+
+        if (size < 0)
+            return null;
+
+        HashMap<Integer, ArrayList<Integer>> map = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            int key = input.readInt();
+            map.put(key, readIntegers());
+        }
+
+        return map;
+    }
+
+    private ArrayList<Integer> readIntegers() throws IOException {
+        int[] values = readInts();
+
+        if (values == null)
+            return null;
+
+        ArrayList<Integer> list = new ArrayList<>(values.length);
+        for (int value : values)
+            list.add(value);
+
+        return list;
+    }
+
+    private String readString() throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private byte[] readBytes() throws IOException {
+        int length = readLength();
+
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+
+        return bytes;
+    }
+
+    private int[] readInts() throws IOException {
+        int length = readLength();
+
+        if (length < 0)
+            return null;
+
+        // The integers are read as bytes in one go and converted afterwards, which is much faster
+        // than reading them one by one
+        int bytesLength = length * 4;
+        if (scratch.length < bytesLength)
+            scratch = new byte[bytesLength];
+        input.readFully(scratch, 0, bytesLength);
+
+        int[] ints = new int[length];
+        ByteBuffer.wrap(scratch, 0, bytesLength).asIntBuffer().get(ints);
+
+        return ints;
+    }
+
+    private int readLength() throws IOException {
+        int length = input.readInt();
+
+        if (length < -1 || length > MAX_LENGTH)
+            throw new StreamCorruptedException("Invalid length " + length);
+
+        return length;
+    }
+
+    private static <T> T corrupted(Class<T> type) throws StreamCorruptedException {
+        throw new StreamCorruptedException("Invalid reference to a " + type.getSimpleName());
+    }
+
+    /* Encoding */
+
+    private static void writeTerminal(DataOutput output, Terminal terminal, Map<Terminal, Integer> terminalsWritten,
+                                      Map<Population, Integer> populationsWritten) throws IOException {
+        if (writeReference(output, terminal, terminalsWritten))
+            return;
+
+        output.writeShort(terminal.numOfNeurons);
+        output.writeShort(terminal.numOfDendrites);
+        output.writeShort(terminal.numOfSynapses);
+        writeString(output, terminal.serverIP);
+        writeString(output, terminal.ip);
+        output.writeInt(terminal.natPort);
+        output.writeInt(terminal.id);
+
+        if (terminal.populations == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(terminal.populations.size());
+            for (Population population : terminal.populations)
+                writePopulation(output, population, populationsWritten);
+        }
+
+        if (terminal.popsMatrix == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(terminal.popsMatrix.length);
+            for (Population[] row : terminal.popsMatrix) {
+                if (row == null) {
+                    output.writeInt(-1);
+                    continue;
+                }
+                output.writeInt(row.length);
+                for (Population population : row)
+                    writePopulation(output, population, populationsWritten);
+            }
+        }
+
+        writeMap(output, terminal.inputsToPopulations);
+        writeMap(output, terminal.outputsToPopulations);
+        writeTerminals(output, terminal.presynapticTerminals, terminalsWritten, populationsWritten);
+        writeTerminals(output, terminal.postsynapticTerminals, terminalsWritten, populationsWritten);
+        writeBytes(output, terminal.newWeights);
+        writeInts(output, terminal.newWeightsIndexes);
+        writeBytes(output, terminal.updateWeightsFlags);
+    }
+
+    private static void writePopulation(DataOutput output, Population population, Map<Population, Integer> written) throws IOException {
+        if (writeReference(output, population, written))
+            return;
+
+        output.writeShort(population.numOfNeurons);
+        output.writeShort(population.numOfDendrites);
+        output.writeShort(population.numOfSynapses);
+        output.writeInt(population.id);
+        output.writeInt(population.layer);
+        writeIntegers(output, population.inputIndexes);
+        writeIntegers(output, population.outputIndexes);
+    }
+
+    /**
+     * Write the reference to an object, registering it if it is met for the first time. Terminals
+     * and populations are numbered separately, as they are by the decoder.
+     *
+     * @return True if nothing else must be written, that is if the object is null or was already written
+     */
+
+    private static <T> boolean writeReference(DataOutput output, T object, Map<T, Integer> written) throws IOException {
+        if (object == null) {
+            output.writeInt(NULL_REFERENCE);
+            return true;
+        }
+
+        Integer reference = written.get(object);
+        if (reference != null) {
+            output.writeInt(reference);
+            return true;
+        }
+
+        written.put(object, written.size());
+
+        output.writeInt(NEW_REFERENCE);
+        return false;
+    }
+
+    private static void writeTerminals(DataOutput output, ArrayList<Terminal> list, Map<Terminal, Integer> terminalsWritten,
+                                       Map<Population, Integer> populationsWritten) throws IOException {
+        if (list == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        output.writeInt(list.size());
+        for (Terminal terminal : list)
+            writeTerminal(output, terminal, terminalsWritten, populationsWritten);
+    }
+
+    private static void writeMap(DataOutput output, HashMap<Integer, ArrayList<Integer>> map) throws IOException {
+        if (map == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        output.writeInt(map.size());
+        for (Map.Entry<Integer, ArrayList<Integer>> entry : map.entrySet()) {
+            output.writeInt(entry.getKey());
+            writeIntegers(output, entry.getValue());
+        }
+    }
+
+    private static void writeIntegers(DataOutput output, ArrayList<Integer> list) throws IOException {
+        if (list == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        output.writeInt(list.size());
+        for (Integer value : list)
+            output.writeInt(value);
+    }
+
+    private static void writeString(DataOutput output, String string) throws IOException {
+        output.writeBoolean(string != null);
+        if (string != null)
+            output.writeUTF(string);
+    }
+
+    private static void writeBytes(DataOutput output, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void writeInts(DataOutput output, int[] ints) throws IOException {
+        if (ints == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        output.writeInt(ints.length);
+        for (int value : ints)
+            output.writeInt(value);
+    }
+
+}
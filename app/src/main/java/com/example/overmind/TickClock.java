@@ -0,0 +1,165 @@
+package com.example.overmind;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Source of the ticks of the simulation, used by InputCreator to decide when the input of a time
+ * step is complete. Besides waiting for the ticks the clock keeps count of those that could not be
+ * served in time, so that the load of the device can be told apart from the jitter of the network.
+ *
+ * The clock is used by a single thread, the counters can be read by any thread.
+ */
+
+abstract class TickClock {
+
+    // How many periods the adaptive clock waits for the signal of the fastest presynaptic terminal
+    // before closing the tick anyway. Also used by KernelInitializer to decide that the terminal
+    // chosen as clock has stalled.
+    static final int ADAPTIVE_TIMEOUT_FACTOR = 8;
+
+    // Ticks closed so far
+    volatile long ticks = 0;
+
+    // Ticks closed late: for the adaptive clock those whose signal did not arrive in time, for the
+    // fixed-rate clock those whose deadline had already passed
+    volatile long overruns = 0;
+
+    // Ticks skipped by the fixed-rate clock to get back in step after an overrun
+    volatile long droppedTicks = 0;
+
+    // Longest delay with which a tick has been closed after its deadline, in nanoseconds
+    volatile long maxLatenessNanos = 0;
+
+    // Number of periods a tick lasts, raised by InputCreator while KernelExecutor has a backlog
+    volatile int slowdown = 1;
+
+    /**
+     * @param clockSignals The queue of the signals sent by the presynaptic terminal chosen as clock
+     * @return The clock chosen in Constants
+     */
+
+    static TickClock create(BlockingQueue<Object> clockSignals) {
+        return Constants.TICK_PERIOD_NANOS > 0 ?
+                new FixedRateTickClock(Constants.TICK_PERIOD_NANOS, Constants.DROP_LATE_TICKS) :
+                new AdaptiveTickClock(clockSignals);
+    }
+
+    /**
+     * Block until the current tick must be closed.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+
+    abstract void awaitTick() throws InterruptedException;
+
+    /**
+     * @return The current length of a tick in nanoseconds, slowdown included
+     */
+
+    abstract long periodNanos();
+
+    @Override
+    public String toString() {
+        return "ticks " + ticks + " overruns " + overruns + " dropped " + droppedTicks +
+                " max lateness " + maxLatenessNanos / 1000 + " us slowdown " + slowdown;
+    }
+}
+
+/**
+ * Clock which follows the presynaptic terminal with the shortest mean interval between its packets,
+ * as chosen by KernelInitializer. The tick is closed when that terminal sends a packet, or after
+ * ADAPTIVE_TIMEOUT_FACTOR of its mean intervals if it does not. A slowed down tick lasts as many
+ * packets as the slowdown.
+ */
+
+class AdaptiveTickClock extends TickClock {
+
+    private final BlockingQueue<Object> clockSignals;
+
+    AdaptiveTickClock(BlockingQueue<Object> clockSignals) {
+        this.clockSignals = clockSignals;
+    }
+
+    @Override
+    void awaitTick() throws InterruptedException {
+        int numOfSignals = slowdown;
+        boolean signalMissed = false;
+
+        for (int i = 0; i < numOfSignals && !signalMissed; i++)
+            signalMissed = clockSignals.poll(InputCreator.waitTime.get() * ADAPTIVE_TIMEOUT_FACTOR, TimeUnit.NANOSECONDS) == null;
+
+        ticks++;
+        if (signalMissed)
+            overruns++;
+    }
+
+    @Override
+    long periodNanos() {
+        return InputCreator.waitTime.get() * slowdown;
+    }
+}
+
+/**
+ * Clock with a fixed period measured with the monotonic clock. The deadlines are computed from the
+ * first one, therefore they do not drift with the time spent serving the ticks. When a deadline has
+ * already passed the tick is closed at once: the missed ticks are then either served one after the
+ * other until the clock is back in step, or skipped.
+ */
+
+class FixedRateTickClock extends TickClock {
+
+    private final long period;
+
+    // True if the ticks missed after an overrun are skipped rather than served
+    private final boolean dropLateTicks;
+
+    // Time at which the current tick must be closed, 0 before the first tick
+    private long deadline = 0;
+
+    FixedRateTickClock(long period, boolean dropLateTicks) {
+        this.period = period;
+        this.dropLateTicks = dropLateTicks;
+    }
+
+    @Override
+    void awaitTick() throws InterruptedException {
+        long tickLength = periodNanos();
+        long now = System.nanoTime();
+
+        if (deadline == 0)
+            deadline = now + tickLength;
+
+        if (now < deadline) {
+            do {
+                LockSupport.parkNanos(this, deadline - now);
+
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                now = System.nanoTime();
+            } while (now < deadline);
+        } else {
+            long lateness = now - deadline;
+
+            overruns++;
+            maxLatenessNanos = Math.max(maxLatenessNanos, lateness);
+
+            // The deadlines that have already passed are skipped together with the current one
+            if (dropLateTicks) {
+                long missedTicks = lateness / tickLength;
+                droppedTicks += missedTicks;
+                deadline += missedTicks * tickLength;
+            }
+        }
+
+        ticks++;
+        deadline += tickLength;
+    }
+
+    @Override
+    long periodNanos() {
+        return period * slowdown;
+    }
+}
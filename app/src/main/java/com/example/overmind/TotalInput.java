@@ -0,0 +1,175 @@
+package com.example.overmind;
+
+import java.util.Arrays;
+
+/**
+ * Total synaptic input of the local network, double buffered. During a tick each presynaptic
+ * connection writes its input directly into its slice of the write buffer, while the other buffer,
+ * published at the end of the previous tick, is simulated by KernelExecutor. At the tick boundary
+ * InputCreator swaps the buffers.
+ *
+ * The filter pipe of a connection is advanced out of place, from the buffer holding its latest input
+ * into the write buffer, therefore the inputs are never copied as long as the connection fires at
+ * every tick. Only the slices of the connections which have not fired during a tick are copied,
+ * so that the published buffer is complete.
+ */
+
+class TotalInput {
+
+    // Two copies of the total synaptic input, MAX_MULTIPLICATIONS entries per neuron
+    private final byte[][] synapticInput = new byte[2][];
+
+    // Two copies of the firing rates of the presynaptic neurons
+    private final float[][] firingRates = new float[2][];
+
+    // For each buffer and each connection, the masks of the neurons whose synaptic input is not
+    // zero, 64 neurons per element
+    private final long[][][] activeNeurons = new long[2][][];
+
+    // Objects passed to KernelExecutor, one for each buffer
+    private final InputCreatorOutput[] outputs = new InputCreatorOutput[2];
+
+    // Number of neurons of each connection and number of neurons up to the end of each connection
+    private final int[] connectionsSize;
+    private final int[] connectionsOffset;
+
+    // Objects used to lock the single connections
+    private final Object[] connectionsLocks;
+
+    // For each connection, the buffer holding its latest input. Guarded by the lock of the connection
+    private final int[] latestBuffer;
+
+    // Buffer the connections are writing into
+    private volatile int writeBuffer = 0;
+
+    /**
+     * @param connectionsSize The number of neurons of each presynaptic connection
+     * @param connectionsOffset The number of neurons that come before the end of each connection
+     */
+
+    TotalInput(int[] connectionsSize, int[] connectionsOffset) {
+        int numOfConnections = connectionsSize.length;
+        int totalLength = numOfConnections > 0 ? connectionsOffset[numOfConnections - 1] : 0;
+
+        this.connectionsSize = connectionsSize;
+        this.connectionsOffset = connectionsOffset;
+        connectionsLocks = new Object[numOfConnections];
+        latestBuffer = new int[numOfConnections];
+
+        for (int buffer = 0; buffer < 2; buffer++) {
+            synapticInput[buffer] = new byte[totalLength * Constants.MAX_MULTIPLICATIONS];
+            firingRates[buffer] = new float[totalLength];
+            activeNeurons[buffer] = new long[numOfConnections][];
+            outputs[buffer] = new InputCreatorOutput(synapticInput[buffer], firingRates[buffer]);
+
+            for (int i = 0; i < numOfConnections; i++)
+                activeNeurons[buffer][i] = new long[(connectionsSize[i] + 63) / 64];
+        }
+
+        for (int i = 0; i < numOfConnections; i++)
+            connectionsLocks[i] = new Object();
+
+        // Both buffers are empty, but no connection has fired during the first tick yet
+        Arrays.fill(latestBuffer, 1);
+    }
+
+    /**
+     * Advance the synaptic input of a connection using the spikes of its last packet. The packets of
+     * the same connection are served one at a time, those of different connections in parallel.
+     *
+     * @param connection The index of the presynaptic connection
+     * @param inputSpikes The spikes fired by the neurons of the connection, one bit per neuron
+     */
+
+    void update(int connection, byte[] inputSpikes) {
+        int numOfNeurons = connectionsSize[connection];
+        int firstNeuron = connectionsOffset[connection] - numOfNeurons;
+
+        synchronized (connectionsLocks[connection]) {
+            int source = latestBuffer[connection], destination = writeBuffer;
+
+            if (Constants.WORD_PARALLEL_SPIKE_FILTER) {
+                KernelInitializer.updateSynapticInput(inputSpikes, numOfNeurons, synapticInput[source],
+                        synapticInput[destination], firingRates[source], firingRates[destination], firstNeuron,
+                        activeNeurons[source][connection], activeNeurons[destination][connection]);
+            } else {
+                KernelInitializer.updateSynapticInput(inputSpikes, numOfNeurons, synapticInput[source],
+                        synapticInput[destination], firingRates[source], firingRates[destination], firstNeuron);
+
+                // The masks would not reflect the synaptic input anymore
+                Arrays.fill(activeNeurons[destination][connection], -1L);
+            }
+
+            latestBuffer[connection] = destination;
+        }
+    }
+
+    /**
+     * Close the current tick: the write buffer is completed with the inputs of the connections that
+     * have not fired and is published, and the connections start writing into the other buffer.
+     *
+     * @return The total input of the tick just closed, null if no connection has fired during it or
+     * if the other buffer has not been released by KernelExecutor yet
+     */
+
+    InputCreatorOutput swap() {
+        int published = writeBuffer;
+        boolean anyConnectionFired = false;
+
+        // The connections cannot start writing into a buffer which is still being simulated
+        if (!outputs[1 - published].released)
+            return null;
+
+        for (int i = 0; i < connectionsLocks.length && !anyConnectionFired; i++) {
+            synchronized (connectionsLocks[i]) {
+                anyConnectionFired = latestBuffer[i] == published;
+            }
+        }
+
+        if (!anyConnectionFired)
+            return null;
+
+        for (int i = 0; i < connectionsLocks.length; i++) {
+            synchronized (connectionsLocks[i]) {
+                if (latestBuffer[i] != published) {
+                    copyConnection(i, latestBuffer[i], published);
+                    latestBuffer[i] = published;
+                }
+            }
+        }
+
+        writeBuffer = 1 - published;
+
+        // Wait for the connections that were still writing into the published buffer
+        for (Object connectionLock : connectionsLocks) {
+            synchronized (connectionLock) {
+                // Nothing to do, the lock is taken only to wait for the connection
+            }
+        }
+
+        outputs[published].released = false;
+
+        return outputs[published];
+    }
+
+    /**
+     * @return True if the buffer the connections would write into after a swap is still being
+     * simulated by KernelExecutor, in which case the tick cannot be closed
+     */
+
+    boolean backlogged() {
+        return !outputs[1 - writeBuffer].released;
+    }
+
+    private void copyConnection(int connection, int source, int destination) {
+        int numOfNeurons = connectionsSize[connection];
+        int firstNeuron = connectionsOffset[connection] - numOfNeurons;
+
+        System.arraycopy(synapticInput[source], firstNeuron * Constants.MAX_MULTIPLICATIONS, synapticInput[destination],
+                firstNeuron * Constants.MAX_MULTIPLICATIONS, numOfNeurons * Constants.MAX_MULTIPLICATIONS);
+        System.arraycopy(firingRates[source], firstNeuron, firingRates[destination], firstNeuron, numOfNeurons);
+        System.arraycopy(activeNeurons[source][connection], 0, activeNeurons[destination][connection], 0,
+                activeNeurons[source][connection].length);
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.example.overmind;
+
+/**
+ * Weights which have changed since the last update, sent by the server in place of a whole Terminal
+ * when the topology has not changed. The weights are grouped in runs of consecutive synapses: the
+ * run i begins at the synapse runs[2 * i] and is runs[2 * i + 1] weights long. The weights of all
+ * the runs are stored one after the other, in the same range [0, 1] spaced by DELTA_WEIGHT of the
+ * weights of the Terminal.
+ */
+
+class WeightsDelta {
+
+    // Start and length of each run
+    final int[] runs;
+
+    final int numOfRuns;
+
+    // New values of the weights of all the runs, the array may be longer than needed
+    final byte[] weights;
+
+    WeightsDelta(int[] runs, int numOfRuns, byte[] weights) {
+        this.runs = runs;
+        this.numOfRuns = numOfRuns;
+        this.weights = weights;
+    }
+
+}
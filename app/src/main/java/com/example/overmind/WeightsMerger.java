@@ -0,0 +1,186 @@
+package com.example.overmind;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Collects the weights sent by the server between two time steps and keeps only the latest value
+ * of each synapse, so that a burst of updates is applied with a single write to the weights of the
+ * backend. The terminals and the deltas are added by TerminalUpdater as soon as they are received,
+ * KernelExecutor drains the merged update once per time step.
+ *
+ * Besides the weights the merger keeps the latest topology and the latest flags of the plastic
+ * weights, which replace those received before them.
+ */
+
+class WeightsMerger {
+
+    // Latest value of each synapse, valid only where the bit of the synapse is set in changed
+    private final byte[] values;
+
+    // Synapses whose weights have changed since the last drain, 64 synapses per element
+    private final long[] changed;
+    private boolean anyChanged = false;
+
+    // Latest terminal carrying a topology and latest flags of the plastic weights
+    private Terminal topology = null;
+    private byte[] flags = null;
+
+    // Memory the runs of the merged weights are built into, grown when needed
+    private int[] runs = new int[32];
+    private byte[] weights = new byte[256];
+
+    /* Result of the last drain, read only by the thread which has called it */
+
+    private WeightsDelta drainedWeights;
+    private Terminal drainedTopology;
+    private byte[] drainedFlags;
+
+    /**
+     * @param numOfSynapses The number of synapses of the local network
+     */
+
+    WeightsMerger(int numOfSynapses) {
+        values = new byte[numOfSynapses];
+        changed = new long[(numOfSynapses + 63) / 64];
+    }
+
+    /**
+     * Merge the weights, the topology and the flags of a whole terminal.
+     *
+     * @param terminal The terminal received from the server
+     */
+
+    synchronized void add(Terminal terminal) {
+        byte[] newWeights = terminal.newWeights;
+        int[] newWeightsIndexes = terminal.newWeightsIndexes;
+
+        // As in the backends, the weights are sparse if there is an index for each of them
+        if (newWeightsIndexes.length == newWeights.length) {
+            for (int i = 0; i < newWeights.length; i++)
+                set(newWeightsIndexes[i], newWeights[i]);
+        } else {
+            for (int i = 0; i < newWeights.length; i++)
+                set(i, newWeights[i]);
+        }
+
+        if (terminal.popsMatrix != null)
+            topology = terminal;
+
+        if (terminal.updateWeightsFlags.length != 0)
+            flags = terminal.updateWeightsFlags;
+    }
+
+    /**
+     * Merge the weights of a delta.
+     *
+     * @param delta The delta received from the server
+     */
+
+    synchronized void add(WeightsDelta delta) {
+        int weight = 0;
+
+        for (int i = 0; i < delta.numOfRuns; i++) {
+            int first = delta.runs[2 * i], length = delta.runs[2 * i + 1];
+
+            for (int synapse = first; synapse < first + length; synapse++, weight++)
+                set(synapse, delta.weights[weight]);
+        }
+    }
+
+    /**
+     * Take everything merged since the last call. The result is read with drainedWeights(),
+     * drainedTopology() and drainedFlags().
+     *
+     * @return False if nothing has been added since the last call
+     */
+
+    synchronized boolean drain() {
+        drainedWeights = anyChanged ? buildRuns() : null;
+        drainedTopology = topology;
+        drainedFlags = flags;
+
+        topology = null;
+        flags = null;
+
+        return drainedWeights != null || drainedTopology != null || drainedFlags != null;
+    }
+
+    /**
+     * @return The latest value of the weights that have changed, null if none has
+     */
+
+    WeightsDelta drainedWeights() {
+        return drainedWeights;
+    }
+
+    /**
+     * @return The latest terminal carrying a topology, null if none has been received
+     */
+
+    Terminal drainedTopology() {
+        return drainedTopology;
+    }
+
+    /**
+     * @return The latest flags of the plastic weights, null if they have not changed
+     */
+
+    byte[] drainedFlags() {
+        return drainedFlags;
+    }
+
+    private void set(int synapse, byte weight) {
+        if (synapse < 0 || synapse >= values.length) {
+            Log.e("WeightsMerger", "Weight of synapse " + synapse + " is beyond the local network");
+            return;
+        }
+
+        values[synapse] = weight;
+        changed[synapse >>> 6] |= 1L << synapse;
+        anyChanged = true;
+    }
+
+    /**
+     * Turn the synapses marked as changed into runs of consecutive synapses and clear the marks.
+     * The synapses are visited in ascending order, therefore the runs are sorted.
+     */
+
+    private WeightsDelta buildRuns() {
+        int numOfRuns = 0, numOfWeights = 0, runEnd = -1;
+
+        for (int word = 0; word < changed.length; word++) {
+            long bits = changed[word];
+
+            while (bits != 0) {
+                int synapse = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+
+                // A new run begins unless the synapse follows the last one
+                if (synapse != runEnd) {
+                    if (2 * numOfRuns + 2 > runs.length)
+                        runs = Arrays.copyOf(runs, runs.length * 2);
+                    runs[2 * numOfRuns] = synapse;
+                    runs[2 * numOfRuns + 1] = 0;
+                    numOfRuns++;
+                }
+
+                if (numOfWeights == weights.length)
+                    weights = Arrays.copyOf(weights, weights.length * 2);
+                weights[numOfWeights++] = values[synapse];
+                runs[2 * numOfRuns - 1]++;
+                runEnd = synapse + 1;
+            }
+
+            changed[word] = 0;
+        }
+
+        anyChanged = false;
+
+        // The arrays are written again only by the next drain, which is called by the same thread
+        // once it has applied this delta
+        return new WeightsDelta(runs, numOfRuns, weights);
+    }
+
+}
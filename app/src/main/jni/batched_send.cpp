@@ -0,0 +1,82 @@
+#include <batched_send.h>
+
+/**
+ * Send the datagrams of one time step with as few system calls as possible. The datagrams are stored one after the
+ * other in a direct buffer, the i-th being lengths[i] bytes long and addressed to the IPv4 address addresses[i] and
+ * to the port ports[i]. The socket is not blocking if it belongs to a channel, in which case fewer datagrams than
+ * requested may be sent.
+ *
+ * @return The number of datagrams that have been sent, the others are left to the caller
+ */
+
+extern "C" jint Java_com_example_overmind_SimulationService_sendBatch(
+        JNIEnv *env, jobject thiz, jint fd, jobject jDatagrams, jintArray jLengths, jintArray jAddresses,
+        jintArray jPorts, jint numOfDatagrams) {
+    char *datagrams = (char *) env->GetDirectBufferAddress(jDatagrams);
+
+    if (datagrams == NULL)
+    {
+        LOGE("The datagrams are not stored in a direct buffer");
+        return 0;
+    }
+
+    jint *lengths = env->GetIntArrayElements(jLengths, JNI_FALSE);
+    jint *addresses = env->GetIntArrayElements(jAddresses, JNI_FALSE);
+    jint *ports = env->GetIntArrayElements(jPorts, JNI_FALSE);
+
+    struct mmsghdr messages[MAX_BATCH_SIZE];
+    struct iovec iovecs[MAX_BATCH_SIZE];
+    struct sockaddr_in destinations[MAX_BATCH_SIZE];
+
+    // Number of datagrams sent so far and offset of the first datagram still to be sent
+    int sent = 0;
+    size_t offset = 0;
+
+    while (sent < numOfDatagrams) {
+        int batchSize = numOfDatagrams - sent < MAX_BATCH_SIZE ? numOfDatagrams - sent : MAX_BATCH_SIZE;
+        size_t datagramOffset = offset;
+
+        memset(messages, 0, batchSize * sizeof(struct mmsghdr));
+
+        for (int i = 0; i < batchSize; i++) {
+            int datagram = sent + i;
+
+            iovecs[i].iov_base = datagrams + datagramOffset;
+            iovecs[i].iov_len = (size_t) lengths[datagram];
+            datagramOffset += lengths[datagram];
+
+            memset(&destinations[i], 0, sizeof(struct sockaddr_in));
+            destinations[i].sin_family = AF_INET;
+            destinations[i].sin_port = htons((uint16_t) ports[datagram]);
+            destinations[i].sin_addr.s_addr = htonl((uint32_t) addresses[datagram]);
+
+            messages[i].msg_hdr.msg_name = &destinations[i];
+            messages[i].msg_hdr.msg_namelen = sizeof(struct sockaddr_in);
+            messages[i].msg_hdr.msg_iov = &iovecs[i];
+            messages[i].msg_hdr.msg_iovlen = 1;
+        }
+
+        int result = sendmmsg(fd, messages, (unsigned int) batchSize, 0);
+
+        if (result < 0 && errno == EINTR)
+            continue;
+
+        // The socket buffer is full or the socket cannot be used, the remaining datagrams are left to the caller
+        if (result <= 0)
+        {
+            if (result < 0 && errno != EAGAIN && errno != EWOULDBLOCK)
+                LOGE("sendmmsg failed with errno %d", errno);
+            break;
+        }
+
+        for (int i = 0; i < result; i++)
+            offset += lengths[sent + i];
+        sent += result;
+    }
+
+    env->ReleaseIntArrayElements(jLengths, lengths, JNI_ABORT);
+    env->ReleaseIntArrayElements(jAddresses, addresses, JNI_ABORT);
+    env->ReleaseIntArrayElements(jPorts, ports, JNI_ABORT);
+
+    return sent;
+}
@@ -43,6 +43,106 @@ bool printProfilingInfo(cl_event event)
     return true;
 }
 
+/**
+ * Reserve the slot of a command of the current tick in the profiling mode. The pointer returned is passed to the enqueue
+ * function as the event of the command. If the mode is off or the slots are over NULL is returned, and the command is
+ * enqueued without an event as it would be otherwise.
+ */
+
+cl_event *profiledEvent(struct OpenCLObject *obj, int command, int layer)
+{
+    if (obj->profilingStats == nullptr)
+        return NULL;
+
+    if (obj->numOfProfiledEvents == MAX_PROFILED_COMMANDS || obj->numOfProfiledEvents == obj->profilingStatsCapacity)
+    {
+        obj->numOfDroppedEvents++;
+        return NULL;
+    }
+
+    int slot = obj->numOfProfiledEvents++;
+    obj->profiledEvents[slot] = NULL;
+    obj->profiledCommands[slot] = command;
+    obj->profiledLayers[slot] = layer;
+
+    return &obj->profiledEvents[slot];
+}
+
+/**
+ * Profile a command whose event is used by the caller too. The event is retained, hence the caller can release it as
+ * usual.
+ */
+
+void profileEvent(struct OpenCLObject *obj, cl_event event, int command, int layer)
+{
+    if (event == NULL)
+        return;
+
+    cl_event *slot = profiledEvent(obj, command, layer);
+
+    if (slot != NULL && checkSuccess(clRetainEvent(event)))
+        *slot = event;
+}
+
+/**
+ * Wait for the commands profiled during the tick, write their times to the stats buffer and release their events. The
+ * times are those of the device clock, in nanoseconds.
+ */
+
+bool collectProfilingInfo(struct OpenCLObject *obj)
+{
+    if (obj->profilingStats == nullptr)
+        return true;
+
+    bool success = true;
+    jlong *stats = obj->profilingStats;
+    int numOfRecords = 0;
+
+    // The times are available only once the commands are complete
+    if (obj->numOfProfiledEvents != 0)
+        success &= checkSuccess(clFinish(obj->commandQueue));
+
+    for (int i = 0; i < obj->numOfProfiledEvents; i++)
+    {
+        cl_event event = obj->profiledEvents[i];
+
+        // The command could not be enqueued
+        if (event == NULL)
+            continue;
+
+        cl_ulong queuedTime = 0, submittedTime = 0, startTime = 0, endTime = 0;
+        bool eventSuccess = success;
+        eventSuccess &= checkSuccess(clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_QUEUED, sizeof(cl_ulong), &queuedTime, NULL));
+        eventSuccess &= checkSuccess(clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_SUBMIT, sizeof(cl_ulong), &submittedTime, NULL));
+        eventSuccess &= checkSuccess(clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_START, sizeof(cl_ulong), &startTime, NULL));
+        eventSuccess &= checkSuccess(clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_END, sizeof(cl_ulong), &endTime, NULL));
+        clReleaseEvent(event);
+
+        if (!eventSuccess)
+            continue;
+
+        jlong *record = stats + PROFILE_HEADER_SIZE + numOfRecords * PROFILE_RECORD_SIZE;
+        record[PROFILE_COMMAND] = obj->profiledCommands[i];
+        record[PROFILE_LAYER] = obj->profiledLayers[i];
+        record[PROFILE_QUEUED] = (jlong) queuedTime;
+        record[PROFILE_SUBMIT] = (jlong) submittedTime;
+        record[PROFILE_START] = (jlong) startTime;
+        record[PROFILE_END] = (jlong) endTime;
+        numOfRecords++;
+    }
+
+    stats[PROFILE_NUM_OF_RECORDS] = numOfRecords;
+    stats[PROFILE_DROPPED_RECORDS] = obj->numOfDroppedEvents;
+
+    obj->numOfProfiledEvents = 0;
+    obj->numOfDroppedEvents = 0;
+
+    if (!success)
+        LOGE("Retrieving the OpenCL profiling information failed");
+
+    return success;
+}
+
 bool cleanUpOpenCL(cl_context context, cl_command_queue commandQueue, cl_program program, cl_kernel kernel, cl_mem* memoryObjects, int numberOfMemoryObjects)
 {
     bool returnValue = true;
@@ -98,7 +198,7 @@ bool cleanUpOpenCL(cl_context context, cl_command_queue commandQueue, cl_program
     return returnValue;
 }
 
-bool createCommandQueue(cl_context context, cl_command_queue* commandQueue, cl_device_id* device)
+bool createCommandQueue(cl_context context, cl_command_queue* commandQueue, cl_device_id* device, bool profiling)
 {
     cl_int errorNumber = 0;
     cl_device_id* devices = NULL;
@@ -130,8 +230,9 @@ bool createCommandQueue(cl_context context, cl_command_queue* commandQueue, cl_d
     *device = devices[0];
     delete [] devices;
 
-    // Set up the command queue with the selected device
-    *commandQueue = clCreateCommandQueue(context, *device, CL_QUEUE_PROFILING_ENABLE, &errorNumber);
+    // Set up the command queue with the selected device. Profiling has a cost on some devices, hence it is enabled only
+    // if it has been asked for
+    *commandQueue = clCreateCommandQueue(context, *device, profiling ? CL_QUEUE_PROFILING_ENABLE : 0, &errorNumber);
     if (!checkSuccess(errorNumber))
     {
         LOGE("Failed to create OpenCL command queue");
@@ -141,7 +242,7 @@ bool createCommandQueue(cl_context context, cl_command_queue* commandQueue, cl_d
     return true;
 }
 
-bool createProgram(cl_context context, cl_device_id device, const char* kernelString, cl_program* program)
+bool createProgram(cl_context context, cl_device_id device, const char* kernelString, const char* buildOptions, cl_program* program)
 {
     cl_int  errorNumber = 0;
 
@@ -155,7 +256,7 @@ bool createProgram(cl_context context, cl_device_id device, const char* kernelSt
 
     char options[128] = "-cl-strict-aliasing -cl-fast-relaxed-math";
 
-    bool buildSuccess = checkSuccess(clBuildProgram(*program, 0, NULL, NULL, NULL, NULL));
+    bool buildSuccess = checkSuccess(clBuildProgram(*program, 0, NULL, buildOptions, NULL, NULL));
 
     // Get the size of the build log
     size_t logSize = 0;
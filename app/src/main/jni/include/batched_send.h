@@ -0,0 +1,12 @@
+#ifndef OVERMINDCLIENT_BATCHED_SEND_H
+#define OVERMINDCLIENT_BATCHED_SEND_H
+
+#include <shared.h>
+#include <errno.h>
+#include <netinet/in.h>
+#include <sys/socket.h>
+
+// Maximum number of datagrams submitted with a single sendmmsg call
+#define MAX_BATCH_SIZE 64
+
+#endif //OVERMINDCLIENT_BATCHED_SEND_H
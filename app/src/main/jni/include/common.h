@@ -8,10 +8,13 @@
 #include <shared.h>
 
 bool printProfilingInfo(cl_event event);
+cl_event *profiledEvent(struct OpenCLObject *obj, int command, int layer);
+void profileEvent(struct OpenCLObject *obj, cl_event event, int command, int layer);
+bool collectProfilingInfo(struct OpenCLObject *obj);
 bool cleanUpOpenCL(cl_context context, cl_command_queue commandQueue, cl_program program, cl_kernel kernel, cl_mem* memoryObjects, int numberOfMemoryObjects);
 bool createContext(cl_context* context);
-bool createCommandQueue(cl_context context, cl_command_queue* commandQueue, cl_device_id* device);
-bool createProgram(cl_context context, cl_device_id device, const char* kernelString, cl_program* program);
+bool createCommandQueue(cl_context context, cl_command_queue* commandQueue, cl_device_id* device, bool profiling);
+bool createProgram(cl_context context, cl_device_id device, const char* kernelString, const char* buildOptions, cl_program* program);
 std::string errorNumberToString(cl_int errorNumber);
 bool checkSuccess(cl_int errorNumber);
 
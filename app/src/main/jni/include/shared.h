@@ -9,11 +9,44 @@
 #include <android/log.h>
 #include <jni.h>
 #include <math.h>
+#include <string.h>
 #include <sstream>
 
 #define SAMPLING_RATE 0.5 // milliSeconds
 #define SYNAPSE_FILTER_ORDER 16
 
+// Layout of the entries of the populations table used by the compact indexes (see CompactIndexes.java)
+#define POP_INFO_SIZE 5
+#define POP_FIRST_SYNAPSE 0
+#define POP_FIRST_NEURON 1
+#define POP_NUM_OF_NEURONS 2
+#define POP_TEMPLATE_OFFSET 3
+#define POP_TEMPLATE_LENGTH 4
+
+// Layout of the stats buffer filled by the profiling mode (see OpenCLProfile.java): a header followed by a record of
+// PROFILE_RECORD_SIZE longs for every command of the last tick
+#define PROFILE_HEADER_SIZE 2
+#define PROFILE_NUM_OF_RECORDS 0
+#define PROFILE_DROPPED_RECORDS 1 // Commands which did not fit in the buffer
+#define PROFILE_RECORD_SIZE 6
+#define PROFILE_COMMAND 0
+#define PROFILE_LAYER 1 // -1 for the commands which do not belong to a layer
+#define PROFILE_QUEUED 2
+#define PROFILE_SUBMIT 3
+#define PROFILE_START 4
+#define PROFILE_END 5
+
+// Commands told apart by the profiling mode
+#define PROFILE_SYNAPSES_KERNEL 0
+#define PROFILE_COLLECT_KERNEL 1
+#define PROFILE_NEURONS_KERNEL 2
+#define PROFILE_WRITE 3
+#define PROFILE_MAP 4
+#define PROFILE_UNMAP 5
+#define PROFILE_READ 6
+
+#define MAX_PROFILED_COMMANDS 256
+
 struct OpenCLObject {
     // OpenCL implementation
     cl_context context = 0;
@@ -21,12 +54,23 @@ struct OpenCLObject {
     cl_program program = 0;
     cl_device_id device = 0;
     cl_kernel kernel = 0;
+    cl_kernel compactKernel = 0; // Kernel which expands the compact indexes by itself
+    cl_kernel neuronsKernel = 0; // Kernel which computes the neuronal dynamics, 0 if they are computed by the host
+    cl_kernel collectKernel = 0; // Kernels of the event-driven synapses, all 0 if every synapse is computed
+    cl_kernel collectCompactKernel = 0;
+    cl_kernel sparseKernel = 0;
+    cl_kernel sparseCompactKernel = 0;
     cl_int errorNumber = 0;
-    int numberOfMemoryObjects = 12;
-    cl_mem memoryObjects[12] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    int numberOfMemoryObjects = 18;
+    cl_mem memoryObjects[18] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
     cl_uint floatVectorWidth;
     size_t maxWorkGroupSize;
 
+    // Whether the layers are executed by simulateLayersPipelined, and whether the arguments of the kernel in use have
+    // been set since the last change of the topology
+    bool pipelinedLayers = false;
+    bool kernelArgumentsSet = false;
+
     // Pointers to the memory buffers
     cl_float *synapseCoeff;
     cl_float *synapseWeights;
@@ -40,7 +84,29 @@ struct OpenCLObject {
     cl_int *globalIdOffset;
     cl_uint *weightsReservoir;
     cl_uint *numOfExcWeights;
+    cl_uint *populationsTable;
+    cl_ushort *templates;
     double *neuronalDynVar;
+
+    // Direct buffers registered by the Java side, through which the input and the output of the simulation are passed
+    jbyte *directSynapseInput = nullptr;
+    jfloat *directPresynFiringRates = nullptr;
+    jbyte *directOutputSpikes = nullptr;
+    jlong directSynapseInputCapacity = 0;
+    jlong directPresynFiringRatesCapacity = 0;
+    jlong directOutputSpikesCapacity = 0;
+
+    // Stats buffer registered by the Java side in the profiling mode, nullptr if the mode is off, and its capacity in
+    // records
+    jlong *profilingStats = nullptr;
+    jlong profilingStatsCapacity = 0;
+
+    // Events of the commands of the current tick in the profiling mode, with the command and the layer they belong to
+    cl_event profiledEvents[MAX_PROFILED_COMMANDS];
+    int profiledCommands[MAX_PROFILED_COMMANDS];
+    int profiledLayers[MAX_PROFILED_COMMANDS];
+    int numOfProfiledEvents = 0;
+    int numOfDroppedEvents = 0;
 };
 
 void buildSynapticInput(int neuronsComputed, char actionPotentials[], int numOfNeurons,
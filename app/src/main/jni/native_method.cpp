@@ -17,6 +17,21 @@ int numOfLayers = 0;
 
 int synapsesOffset = 0, neuronsOffset = 0;
 
+// Array whose elements tell which is the first population of each layer in the populations table
+int *layersFirstPopulation = nullptr;
+
+// Array whose elements contain the offset of the global id of the first work item of each layer, as read by the kernel
+// of the expanded indexes. The elements are written to the device without blocking, hence they must outlive the tick.
+cl_uint *layersGlobalIdOffset = nullptr;
+
+// Size of the buffers used by the kernel of the neuronal dynamics
+size_t dynamicVariablesBufferSize = 0;
+size_t actionPotentialsBufferSize = 0;
+
+// Whether the indexes have been sent using the compact encoding, in which case they are expanded by
+// the compact kernel
+bool compactIndexes = false;
+
 // Size of the buffers needed to store data
 size_t synapseCoeffBufferSize;
 size_t synapseInputBufferSize;
@@ -28,22 +43,136 @@ size_t presynFiringRatesBufferSize;
 size_t postsynFiringRatesBufferSize;
 size_t weightsReservoirBufferSize;
 size_t numOfExcWeightsBufferSize;
+size_t populationsTableBufferSize = 0;
+size_t templatesBufferSize = 0;
 
 // Debug variables
 int counter = 400;
 
+/**
+ * Create the buffers used only by the kernel of the neuronal dynamics: the variables of the neurons, which start from
+ * the same values used by the host, and the action potentials, one bit per neuron.
+ */
+
+static bool createNeuronsBuffers(struct OpenCLObject *obj) {
+    dynamicVariablesBufferSize = 2 * NUM_NEURONS * sizeof(cl_float);
+    actionPotentialsBufferSize = ((NUM_NEURONS + 31) / 32) * sizeof(cl_uint);
+
+    bool success = true;
+
+    obj->memoryObjects[14] = clCreateBuffer(obj->context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, dynamicVariablesBufferSize, NULL, &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    obj->memoryObjects[15] = clCreateBuffer(obj->context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, actionPotentialsBufferSize, NULL, &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    if (!success)
+        return false;
+
+    cl_float *dynamicVariables = (cl_float *) clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[14], CL_TRUE, CL_MAP_WRITE, 0, dynamicVariablesBufferSize, 0, NULL, NULL, &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    cl_uint *actionPotentials = (cl_uint *) clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[15], CL_TRUE, CL_MAP_WRITE, 0, actionPotentialsBufferSize, 0, NULL, NULL, &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    if (!success)
+        return false;
+
+    for (int index = 0; index < NUM_NEURONS; index++) {
+        dynamicVariables[2 * index] = -65.0f;
+        dynamicVariables[2 * index + 1] = 8.0f;
+    }
+
+    memset(actionPotentials, 0, actionPotentialsBufferSize);
+
+    success &= checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[14], dynamicVariables, 0, NULL, NULL));
+    success &= checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[15], actionPotentials, 0, NULL, NULL));
+
+    return success;
+}
+
+/**
+ * Create the event-driven kernels of the synapses, together with the list of the active work items of a layer, which can
+ * be as long as the layer, and its length.
+ */
+
+static bool createSparseKernels(struct OpenCLObject *obj) {
+    bool success = true;
+
+    obj->collectKernel = clCreateKernel(obj->program, "collect_active", &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    obj->collectCompactKernel = clCreateKernel(obj->program, "collect_active_compact", &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    obj->sparseKernel = clCreateKernel(obj->program, "simulate_dynamics_sparse", &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    obj->sparseCompactKernel = clCreateKernel(obj->program, "simulate_dynamics_compact_sparse", &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    if (!success)
+        return false;
+
+    size_t activeWorkItemsBufferSize = NUM_SYNAPSES * NUM_NEURONS / obj->floatVectorWidth * sizeof(cl_uint);
+
+    obj->memoryObjects[16] = clCreateBuffer(obj->context, CL_MEM_READ_WRITE, activeWorkItemsBufferSize, NULL, &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    obj->memoryObjects[17] = clCreateBuffer(obj->context, CL_MEM_READ_WRITE, sizeof(cl_uint), NULL, &obj->errorNumber);
+    success &= checkSuccess(obj->errorNumber);
+
+    return success;
+}
+
+static void releaseSparseKernels(struct OpenCLObject *obj) {
+    cl_kernel *kernels[] = {&obj->collectKernel, &obj->collectCompactKernel, &obj->sparseKernel,
+                            &obj->sparseCompactKernel};
+
+    for (cl_kernel *kernel : kernels) {
+        if (*kernel != 0 && !checkSuccess(clReleaseKernel(*kernel)))
+            LOGE("Releasing an event-driven kernel of the synapses failed");
+
+        *kernel = 0;
+    }
+}
+
 extern "C" jlong Java_com_example_overmind_SimulationService_initializeOpenCL (
-        JNIEnv *env, jobject thiz, jstring jKernel, jshort jNumOfNeurons, jint jFilterOrder, jshort jNumOfSynapses) {
+        JNIEnv *env, jobject thiz, jstring jKernel, jshort jNumOfNeurons, jint jFilterOrder, jshort jNumOfSynapses,
+        jobject jSynapseInputBuffer, jobject jPresynFiringRatesBuffer, jobject jOutputSpikesBuffer,
+        jboolean jPipelinedLayers, jboolean jDeviceDynamics, jboolean jSparseSynapses, jobject jProfilingBuffer) {
 
     // Reset sensible fields
     numOfLayers = 0;
+    compactIndexes = false;
+    populationsTableBufferSize = templatesBufferSize = 0;
 
     delete[] layersSynapses;
     layersSynapses = new int[1];
 
     // Create a new openCL object since the one created in the getNumOfSynapses function could not be returned
     struct OpenCLObject *obj;
-    obj = (struct OpenCLObject *)malloc(sizeof(struct OpenCLObject)); // TODO: perhaps the pointer can be stored in this file like the buffer size variables?
+    obj = new OpenCLObject(); // TODO: perhaps the pointer can be stored in this file like the buffer size variables?
+
+    // Register the direct buffers through which simulateDynamicsDirect exchanges data with the Java side. The
+    // buffers are kept alive by the Java object that owns the OpenCL object, hence no global reference is needed
+    if (jSynapseInputBuffer != NULL && jPresynFiringRatesBuffer != NULL && jOutputSpikesBuffer != NULL) {
+        obj->directSynapseInput = (jbyte *) env->GetDirectBufferAddress(jSynapseInputBuffer);
+        obj->directSynapseInputCapacity = env->GetDirectBufferCapacity(jSynapseInputBuffer);
+        obj->directPresynFiringRates = (jfloat *) env->GetDirectBufferAddress(jPresynFiringRatesBuffer);
+        obj->directPresynFiringRatesCapacity = env->GetDirectBufferCapacity(jPresynFiringRatesBuffer) / sizeof(jfloat);
+        obj->directOutputSpikes = (jbyte *) env->GetDirectBufferAddress(jOutputSpikesBuffer);
+        obj->directOutputSpikesCapacity = env->GetDirectBufferCapacity(jOutputSpikesBuffer);
+    }
+
+    obj->pipelinedLayers = jPipelinedLayers == JNI_TRUE;
+
+    // Register the stats buffer of the profiling mode, which is on only if the buffer has been passed
+    if (jProfilingBuffer != NULL) {
+        obj->profilingStats = (jlong *) env->GetDirectBufferAddress(jProfilingBuffer);
+        obj->profilingStatsCapacity = (env->GetDirectBufferCapacity(jProfilingBuffer) / (jlong) sizeof(jlong) -
+                                       PROFILE_HEADER_SIZE) / PROFILE_RECORD_SIZE;
+    }
 
     // Compute the size of the GPU buffers
     //SYNAPSE_FILTER_ORDER = jFilterOrder;
@@ -81,13 +210,17 @@ extern "C" jlong Java_com_example_overmind_SimulationService_initializeOpenCL (
         LOGE("Failed to create an OpenCL context");
     }
 
-    if (!createCommandQueue(obj->context, &obj->commandQueue, &obj->device))
+    if (!createCommandQueue(obj->context, &obj->commandQueue, &obj->device, obj->profilingStats != nullptr))
     {
         cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
         LOGE("Failed to create an OpenCL command queue");
     }
 
-    if (!createProgram(obj->context, obj->device, kernelString, &obj->program))
+    // The kernels check at compile time that their filter pipes have the length used by the host
+    char buildOptions[64];
+    snprintf(buildOptions, sizeof(buildOptions), "-DMAX_MULTIPLICATIONS=%d", maxMultiplications);
+
+    if (!createProgram(obj->context, obj->device, kernelString, buildOptions, &obj->program))
     {
         cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
         LOGE("Failed to create OpenCL program");
@@ -137,16 +270,45 @@ extern "C" jlong Java_com_example_overmind_SimulationService_initializeOpenCL (
         LOGE("Failed to create OpenCL kernel");
     }
 
+    obj->compactKernel = clCreateKernel(obj->program, "simulate_dynamics_compact", &obj->errorNumber);
+    if (!checkSuccess(obj->errorNumber))
+    {
+        cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
+        LOGE("Failed to create OpenCL kernel");
+    }
+
+    // The neuronal dynamics are computed on the device only by the pipelined layers. If the program does not have the
+    // kernel the host computes them as usual.
+    if (jDeviceDynamics == JNI_TRUE && obj->pipelinedLayers) {
+        obj->neuronsKernel = clCreateKernel(obj->program, "update_neurons", &obj->errorNumber);
+        if (!checkSuccess(obj->errorNumber))
+        {
+            obj->neuronsKernel = 0;
+            LOGD("Kernel of the neuronal dynamics not available, the host computes them");
+        }
+    }
+
+    // The same holds for the event-driven kernels of the synapses
+    if (jSparseSynapses == JNI_TRUE && obj->pipelinedLayers && !createSparseKernels(obj)) {
+        releaseSparseKernels(obj);
+        LOGD("Event-driven kernels of the synapses not available, every synapse is computed");
+    }
+
     // Release the string containing the kernel since it has been passed already to createProgram
     env->ReleaseStringUTFChars(jKernel, kernelString);
 
     bool createMemoryObjectsSuccess = true;
-    obj->numberOfMemoryObjects = 12;
+    obj->numberOfMemoryObjects = 18;
 
     // Allocate memory from the host
     double *neuronalDynVar = new double[2 * NUM_NEURONS];
     obj->neuronalDynVar = neuronalDynVar;
 
+    // The kernel of the neuronal dynamics writes the synaptic input and the firing rates, and reads and clears the
+    // currents, therefore those buffers can be accessed both ways by the kernels when it is used
+    cl_mem_flags inputFlags = obj->neuronsKernel != 0 ? CL_MEM_READ_WRITE : CL_MEM_READ_ONLY;
+    cl_mem_flags currentFlags = obj->neuronsKernel != 0 ? CL_MEM_READ_WRITE : CL_MEM_WRITE_ONLY;
+
     // Ask the OpenCL implementation to allocate buffers to pass data to and from the kernels
     obj->memoryObjects[0] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY| CL_MEM_ALLOC_HOST_PTR, synapseCoeffBufferSize, NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
@@ -154,27 +316,24 @@ extern "C" jlong Java_com_example_overmind_SimulationService_initializeOpenCL (
     obj->memoryObjects[1] = clCreateBuffer(obj->context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, synapseWeightsBufferSize, NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-    obj->memoryObjects[2] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, synapseInputBufferSize, NULL, &obj->errorNumber);
+    obj->memoryObjects[2] = clCreateBuffer(obj->context, inputFlags | CL_MEM_ALLOC_HOST_PTR, synapseInputBufferSize, NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-    obj->memoryObjects[3] = clCreateBuffer(obj->context, CL_MEM_WRITE_ONLY | CL_MEM_ALLOC_HOST_PTR, currentBufferSize, NULL, &obj->errorNumber);
+    obj->memoryObjects[3] = clCreateBuffer(obj->context, currentFlags | CL_MEM_ALLOC_HOST_PTR, currentBufferSize, NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-    obj->memoryObjects[4] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, neuronsIndexesBufferSize, NULL, &obj->errorNumber);
-    createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
+    // The buffers of the indexes, 4 and 8, are created the first time the expanded indexes are sent, whereas
+    // those of the compact indexes, 12 and 13, are created when the size of the encoding is known
 
-    obj->memoryObjects[5] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, presynFiringRatesBufferSize, NULL, &obj->errorNumber);
+    obj->memoryObjects[5] = clCreateBuffer(obj->context, inputFlags | CL_MEM_ALLOC_HOST_PTR, presynFiringRatesBufferSize, NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-    obj->memoryObjects[6] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, postsynFiringRatesBufferSize, NULL, &obj->errorNumber);
+    obj->memoryObjects[6] = clCreateBuffer(obj->context, inputFlags | CL_MEM_ALLOC_HOST_PTR, postsynFiringRatesBufferSize, NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
     obj->memoryObjects[7] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, synapseWeightsBufferSize, NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-    obj->memoryObjects[8] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, synapseIndexesBufferSize, NULL, &obj->errorNumber);
-    createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
-
     obj->memoryObjects[9] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, sizeof(cl_uint), NULL, &obj->errorNumber);
     createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
@@ -301,27 +460,511 @@ extern "C" jlong Java_com_example_overmind_SimulationService_initializeOpenCL (
         LOGE("Unmap memory objects failed");
     }
 
+    if (obj->neuronsKernel != 0 && !createNeuronsBuffers(obj)) {
+        clReleaseKernel(obj->neuronsKernel);
+        obj->neuronsKernel = 0;
+        LOGE("Failed to create the buffers of the neuronal dynamics, the host computes them");
+    }
+
     return (long) obj;
 }
 
-extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynamics(
-        JNIEnv *env, jobject thiz, jbyteArray jSynapseInput, jlong jOpenCLObject, jfloatArray jSimulationParameters,
-        jbyteArray jWeights, jintArray jWeightsIndexes, jfloatArray jPresynFiringRates, jbyteArray jUpdateWeightsFlags,
-        jobjectArray jIndexesMatrix, jobjectArray jNeuronsMatrix) {
-    struct OpenCLObject *obj;
-    obj = (struct OpenCLObject *)jOpenCLObject;
+/**
+ * Set the arguments of a kernel which uses the expanded indexes. They are the same for every layer, since the offset of
+ * the layer is passed through a buffer.
+ */
+
+bool setKernelArguments(struct OpenCLObject *obj, cl_kernel kernel) {
+    bool setKernelArgumentSuccess = true;
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 0, sizeof(cl_mem), &obj->memoryObjects[0]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 1, sizeof(cl_mem), &obj->memoryObjects[1]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 2, sizeof(cl_mem), &obj->memoryObjects[2]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 3, sizeof(cl_mem), &obj->memoryObjects[3]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 4, sizeof(cl_mem), &obj->memoryObjects[4]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 5, sizeof(cl_mem), &obj->memoryObjects[5]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 6, sizeof(cl_mem), &obj->memoryObjects[6]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 7, sizeof(cl_mem), &obj->memoryObjects[7]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 8, sizeof(cl_mem), &obj->memoryObjects[8]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 9, sizeof(cl_mem), &obj->memoryObjects[9]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 10, sizeof(cl_mem), &obj->memoryObjects[10]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 11, sizeof(cl_mem), &obj->memoryObjects[11]));
+
+    return setKernelArgumentSuccess;
+}
 
-    jbyte *synapseInput = env->GetByteArrayElements(jSynapseInput, JNI_FALSE);
+/**
+ * Set the arguments of a kernel which expands the compact indexes that do not change from layer to layer.
+ */
+
+bool setCompactKernelBuffers(struct OpenCLObject *obj, cl_kernel kernel) {
+    bool setKernelArgumentSuccess = true;
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 0, sizeof(cl_mem), &obj->memoryObjects[0]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 1, sizeof(cl_mem), &obj->memoryObjects[1]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 2, sizeof(cl_mem), &obj->memoryObjects[2]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 3, sizeof(cl_mem), &obj->memoryObjects[3]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 4, sizeof(cl_mem), &obj->memoryObjects[5]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 5, sizeof(cl_mem), &obj->memoryObjects[6]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 6, sizeof(cl_mem), &obj->memoryObjects[7]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 7, sizeof(cl_mem), &obj->memoryObjects[10]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 8, sizeof(cl_mem), &obj->memoryObjects[11]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 9, sizeof(cl_mem), &obj->memoryObjects[12]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 10, sizeof(cl_mem), &obj->memoryObjects[13]));
+
+    return setKernelArgumentSuccess;
+}
+
+/**
+ * Set the arguments of a kernel which expands the compact indexes that tell which layer is computed.
+ */
+
+bool setCompactKernelOffsets(struct OpenCLObject *obj, cl_kernel kernel, int layerSynapsesOffset,
+                             int layerNeuronsOffset, int firstPopulation, int lastPopulation) {
+    cl_uint synapsesOffsetArg = (cl_uint) layerSynapsesOffset;
+    cl_uint neuronsOffsetArg = (cl_uint) layerNeuronsOffset;
+    cl_uint firstPopulationArg = (cl_uint) firstPopulation;
+    cl_uint numOfPopulationsArg = (cl_uint) (lastPopulation - firstPopulation);
+
+    bool setKernelArgumentSuccess = true;
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 11, sizeof(cl_uint), &synapsesOffsetArg));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 12, sizeof(cl_uint), &neuronsOffsetArg));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 13, sizeof(cl_uint), &firstPopulationArg));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(kernel, 14, sizeof(cl_uint), &numOfPopulationsArg));
+
+    return setKernelArgumentSuccess;
+}
+
+/**
+ * Set the arguments of the kernel which expands the compact indexes. Besides the buffers the kernel needs to know
+ * where the synapses and the neurons of the layer begin and which populations of the table belong to the layer.
+ */
+
+bool setCompactKernelArguments(struct OpenCLObject *obj, int layerSynapsesOffset, int layerNeuronsOffset,
+                               int firstPopulation, int lastPopulation) {
+    return setCompactKernelBuffers(obj, obj->compactKernel) &&
+           setCompactKernelOffsets(obj, obj->compactKernel, layerSynapsesOffset, layerNeuronsOffset, firstPopulation,
+                                   lastPopulation);
+}
+
+/**
+ * Set the arguments of the kernel of the neuronal dynamics that do not change from layer to layer.
+ */
+
+bool setNeuronsKernelBuffers(struct OpenCLObject *obj) {
+    cl_uint maxMultiplicationsArg = (cl_uint) maxMultiplications;
+
+    bool setKernelArgumentSuccess = true;
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 0, sizeof(cl_mem), &obj->memoryObjects[3]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 1, sizeof(cl_mem), &obj->memoryObjects[14]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 2, sizeof(cl_mem), &obj->memoryObjects[6]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 3, sizeof(cl_mem), &obj->memoryObjects[5]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 4, sizeof(cl_mem), &obj->memoryObjects[2]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 5, sizeof(cl_mem), &obj->memoryObjects[15]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 9, sizeof(cl_uint), &maxMultiplicationsArg));
+
+    return setKernelArgumentSuccess;
+}
+
+/**
+ * Set the arguments of the kernel of the neuronal dynamics that tell which layer is computed, together with the
+ * parameters of the neuronal model.
+ */
+
+bool setNeuronsKernelOffsets(struct OpenCLObject *obj, int layerNeuronsOffset, int inputNeurons, bool buildInput,
+                             jfloat simulationParameters[]) {
+    cl_uint neuronsOffsetArg = (cl_uint) layerNeuronsOffset;
+    cl_uint inputNeuronsArg = (cl_uint) inputNeurons;
+    cl_uint buildInputArg = buildInput ? 1 : 0;
+    cl_float4 parametersArg;
+    cl_float IParArg = (cl_float) simulationParameters[4];
+
+    for (int i = 0; i < 4; i++)
+        parametersArg.s[i] = (cl_float) simulationParameters[i];
+
+    bool setKernelArgumentSuccess = true;
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 6, sizeof(cl_uint), &neuronsOffsetArg));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 7, sizeof(cl_uint), &inputNeuronsArg));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 8, sizeof(cl_uint), &buildInputArg));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 10, sizeof(cl_float4), &parametersArg));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(obj->neuronsKernel, 11, sizeof(cl_float), &IParArg));
+
+    return setKernelArgumentSuccess;
+}
+
+/**
+ * Set the arguments of the event-driven kernels of the synapses that do not change from layer to layer. Besides the
+ * arguments of the dense kernels they need the list of the active work items and its length.
+ */
+
+bool setSparseKernelsBuffers(struct OpenCLObject *obj) {
+    cl_kernel collectKernel = compactIndexes ? obj->collectCompactKernel : obj->collectKernel;
+    bool setKernelArgumentSuccess = true;
+
+    if (compactIndexes) {
+        setKernelArgumentSuccess &= setCompactKernelBuffers(obj, obj->sparseCompactKernel);
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(obj->sparseCompactKernel, 15, sizeof(cl_mem), &obj->memoryObjects[16]));
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(obj->sparseCompactKernel, 16, sizeof(cl_mem), &obj->memoryObjects[17]));
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(collectKernel, 2, sizeof(cl_mem), &obj->memoryObjects[12]));
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(collectKernel, 3, sizeof(cl_mem), &obj->memoryObjects[13]));
+    } else {
+        setKernelArgumentSuccess &= setKernelArguments(obj, obj->sparseKernel);
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(obj->sparseKernel, 12, sizeof(cl_mem), &obj->memoryObjects[16]));
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(obj->sparseKernel, 13, sizeof(cl_mem), &obj->memoryObjects[17]));
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(collectKernel, 2, sizeof(cl_mem), &obj->memoryObjects[8]));
+        setKernelArgumentSuccess &= checkSuccess(
+                clSetKernelArg(collectKernel, 3, sizeof(cl_mem), &obj->memoryObjects[9]));
+    }
+
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(collectKernel, 0, sizeof(cl_mem), &obj->memoryObjects[2]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(collectKernel, 1, sizeof(cl_mem), &obj->memoryObjects[7]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(collectKernel, 4, sizeof(cl_mem), &obj->memoryObjects[16]));
+    setKernelArgumentSuccess &= checkSuccess(
+            clSetKernelArg(collectKernel, 5, sizeof(cl_mem), &obj->memoryObjects[17]));
+
+    return setKernelArgumentSuccess;
+}
+
+/**
+ * Enqueue the event-driven kernels of the synapses of a layer: after the counter of the active work items is reset, the
+ * first kernel collects the work items whose synapses have to be computed and the second one serves them. Both are
+ * launched over the whole layer, but the work items of the second one beyond the active ones exit at once.
+ */
+
+static bool enqueueSparseSynapses(struct OpenCLObject *obj, int layer, int layerSynapsesOffset, int layerNeuronsOffset,
+                                  size_t globalWorksize[], cl_event waitEvents[], cl_uint numOfWaitEvents,
+                                  cl_event *kernelEvent) {
+    static const cl_uint noActiveWorkItems = 0;
+
+    cl_command_queue queue = obj->commandQueue;
+    cl_kernel collectKernel = compactIndexes ? obj->collectCompactKernel : obj->collectKernel;
+    cl_kernel sparseKernel = compactIndexes ? obj->sparseCompactKernel : obj->sparseKernel;
+    cl_event resetEvent = NULL, collectEvent = NULL;
+    bool success = true;
+
+    if (compactIndexes) {
+        cl_uint synapsesOffsetArg = (cl_uint) layerSynapsesOffset;
+        cl_uint firstPopulationArg = (cl_uint) layersFirstPopulation[layer];
+        cl_uint numOfPopulationsArg = (cl_uint) (layersFirstPopulation[layer + 1] - layersFirstPopulation[layer]);
+
+        success &= checkSuccess(clSetKernelArg(collectKernel, 6, sizeof(cl_uint), &synapsesOffsetArg));
+        success &= checkSuccess(clSetKernelArg(collectKernel, 7, sizeof(cl_uint), &firstPopulationArg));
+        success &= checkSuccess(clSetKernelArg(collectKernel, 8, sizeof(cl_uint), &numOfPopulationsArg));
+        success &= setCompactKernelOffsets(obj, sparseKernel, layerSynapsesOffset, layerNeuronsOffset,
+                                           layersFirstPopulation[layer], layersFirstPopulation[layer + 1]);
+    }
+
+    success &= checkSuccess(clEnqueueWriteBuffer(queue, obj->memoryObjects[17], CL_FALSE, 0, sizeof(cl_uint),
+                                                 &noActiveWorkItems, numOfWaitEvents,
+                                                 numOfWaitEvents != 0 ? waitEvents : NULL, &resetEvent));
+
+    if (success)
+        success &= checkSuccess(clEnqueueNDRangeKernel(queue, collectKernel, 1, NULL, globalWorksize, NULL, 1,
+                                                       &resetEvent, &collectEvent));
+
+    if (success)
+        success &= checkSuccess(clEnqueueNDRangeKernel(queue, sparseKernel, 1, NULL, globalWorksize, NULL, 1,
+                                                       &collectEvent, kernelEvent));
+
+    if (success) {
+        profileEvent(obj, resetEvent, PROFILE_WRITE, layer);
+        profileEvent(obj, collectEvent, PROFILE_COLLECT_KERNEL, layer);
+    }
+
+    if (resetEvent != NULL)
+        clReleaseEvent(resetEvent);
+
+    if (collectEvent != NULL)
+        clReleaseEvent(collectEvent);
+
+    return success;
+}
+
+/**
+ * Execute the layers like the loop of simulateNetwork does, but synchronize the host and the device only where the data
+ * demands it. The kernel arguments are set once per topology, only the regions of the buffers that the host step of a
+ * layer touches are mapped, and the commands are chained through events: the blocking map which precedes the neuronal
+ * dynamics of a layer is the only point where the host waits for the kernel of the layer.
+ *
+ * If the kernel of the neuronal dynamics is available no buffer is mapped at all: the kernels of the synapses and
+ * those of the neurons follow each other on the device and the action potentials are read once at the end of the tick.
+ */
+
+static bool simulateLayersPipelined(struct OpenCLObject *obj, const jbyte *synapseInput,
+                                    const jfloat *presynFiringRates, int inputNeurons,
+                                    jfloat simulationParameters[], char actionPotentials[]) {
+    cl_command_queue queue = obj->commandQueue;
+    bool success = true;
+
+    // Commands the next kernel must wait for and the last kernel enqueued
+    cl_event waitEvents[6];
+    cl_uint numOfWaitEvents = 0;
+    cl_event kernelEvent = NULL;
+
+    if (!obj->kernelArgumentsSet) {
+        obj->kernelArgumentsSet = compactIndexes ? setCompactKernelBuffers(obj, obj->compactKernel) :
+                                  setKernelArguments(obj, obj->kernel);
+        obj->kernelArgumentsSet &= obj->neuronsKernel == 0 || setNeuronsKernelBuffers(obj);
+        obj->kernelArgumentsSet &= obj->sparseKernel == 0 || setSparseKernelsBuffers(obj);
+
+        if (!obj->kernelArgumentsSet) {
+            LOGE("Failed to set OpenCL kernel arguments");
+            return false;
+        }
+    }
+
+    // Load the input coming from the presynaptic terminals. The writes do not block, the input is read by the device
+    // before the tick is over
+    if (inputNeurons > 0) {
+        success &= checkSuccess(clEnqueueWriteBuffer(queue, obj->memoryObjects[2], CL_FALSE, 0,
+                                                     inputNeurons * maxMultiplications * sizeof(cl_uchar), synapseInput,
+                                                     0, NULL, &waitEvents[numOfWaitEvents++]));
+        success &= checkSuccess(clEnqueueWriteBuffer(queue, obj->memoryObjects[5], CL_FALSE, 0,
+                                                     inputNeurons * sizeof(cl_float), presynFiringRates,
+                                                     0, NULL, &waitEvents[numOfWaitEvents++]));
+
+        if (success) {
+            profileEvent(obj, waitEvents[0], PROFILE_WRITE, -1);
+            profileEvent(obj, waitEvents[1], PROFILE_WRITE, -1);
+        }
+    }
+
+    // How many neurons and synapses have been considered up to this point
+    int neuronsComputed = 0, synapsesComputed = 0;
+
+    for (int i = 0; i <= numOfLayers && success; i++) {
+
+        /* Neuronal dynamics of the previous layer */
+
+        if (i != 0 && layersNeurons[i - 1] != 0 && obj->neuronsKernel != 0) {
+            cl_uint numOfKernelEvents = kernelEvent != NULL ? 1 : 0;
+            size_t neuronsWorksize[1] = {(size_t) layersNeurons[i - 1]};
+
+            // The kernel of the neurons waits for the kernel of the synapses of the layer, and the following kernel
+            // of the synapses waits for it in turn
+            success &= setNeuronsKernelOffsets(obj, neuronsComputed, inputNeurons, i != numOfLayers,
+                                               simulationParameters);
+            success &= checkSuccess(clEnqueueNDRangeKernel(queue, obj->neuronsKernel, 1, NULL, neuronsWorksize, NULL,
+                                                           numOfKernelEvents, numOfKernelEvents != 0 ? &kernelEvent : NULL,
+                                                           &waitEvents[numOfWaitEvents]));
+            if (success) {
+                profileEvent(obj, waitEvents[numOfWaitEvents], PROFILE_NEURONS_KERNEL, i - 1);
+                numOfWaitEvents++;
+            }
+        } else if (i != 0 && layersNeurons[i - 1] != 0) {
+            int layerNeurons = layersNeurons[i - 1];
+            cl_uint numOfKernelEvents = kernelEvent != NULL ? 1 : 0;
+
+            // Wait for the kernel of the previous layer, then map the currents and the firing rates of its neurons
+            cl_int *current = (cl_int *) clEnqueueMapBuffer(queue, obj->memoryObjects[3], CL_TRUE,
+                                                            CL_MAP_READ | CL_MAP_WRITE,
+                                                            2 * neuronsComputed * sizeof(cl_int),
+                                                            2 * layerNeurons * sizeof(cl_int), numOfKernelEvents,
+                                                            numOfKernelEvents != 0 ? &kernelEvent : NULL,
+                                                            profiledEvent(obj, PROFILE_MAP, i - 1), &obj->errorNumber);
+            success &= checkSuccess(obj->errorNumber);
+
+            cl_float *postsynFiringRates = (cl_float *) clEnqueueMapBuffer(queue, obj->memoryObjects[6], CL_TRUE,
+                                                                           CL_MAP_READ | CL_MAP_WRITE,
+                                                                           neuronsComputed * sizeof(cl_float),
+                                                                           layerNeurons * sizeof(cl_float), 0, NULL,
+                                                                           profiledEvent(obj, PROFILE_MAP, i - 1),
+                                                                           &obj->errorNumber);
+            success &= checkSuccess(obj->errorNumber);
+
+            if (!success)
+                break;
+
+            // The functions index the buffers with the number of the neuron, hence the pointers to the mapped regions
+            // are moved back. The weights reservoir is not used by the host step and it is not mapped.
+            computeNeuronalDynamics(neuronsComputed, layerNeurons, current - 2 * neuronsComputed,
+                                    simulationParameters, obj->neuronalDynVar,
+                                    postsynFiringRates - neuronsComputed, actionPotentials, NULL, NULL);
+
+            if (i != numOfLayers) {
+                int firstInput = inputNeurons + neuronsComputed;
+
+                cl_uchar *layerInput = (cl_uchar *) clEnqueueMapBuffer(queue, obj->memoryObjects[2], CL_TRUE,
+                                                                       CL_MAP_READ | CL_MAP_WRITE,
+                                                                       firstInput * maxMultiplications * sizeof(cl_uchar),
+                                                                       layerNeurons * maxMultiplications * sizeof(cl_uchar),
+                                                                       0, NULL, profiledEvent(obj, PROFILE_MAP, i - 1),
+                                                                       &obj->errorNumber);
+                success &= checkSuccess(obj->errorNumber);
+
+                cl_float *layerFiringRates = (cl_float *) clEnqueueMapBuffer(queue, obj->memoryObjects[5], CL_TRUE,
+                                                                             CL_MAP_WRITE, firstInput * sizeof(cl_float),
+                                                                             layerNeurons * sizeof(cl_float), 0, NULL,
+                                                                             profiledEvent(obj, PROFILE_MAP, i - 1),
+                                                                             &obj->errorNumber);
+                success &= checkSuccess(obj->errorNumber);
+
+                if (!success)
+                    break;
+
+                // Build the synaptic input of the following layers and copy the postsynaptic firing rates to the
+                // presynaptic buffer
+                buildSynapticInput(firstInput, actionPotentials, layerNeurons, maxMultiplications,
+                                   layerInput - firstInput * maxMultiplications);
+                memcpy(layerFiringRates, postsynFiringRates, layerNeurons * sizeof(cl_float));
+
+                success &= checkSuccess(clEnqueueUnmapMemObject(queue, obj->memoryObjects[2], layerInput, 0, NULL,
+                                                                &waitEvents[numOfWaitEvents++]));
+                success &= checkSuccess(clEnqueueUnmapMemObject(queue, obj->memoryObjects[5], layerFiringRates, 0, NULL,
+                                                                &waitEvents[numOfWaitEvents++]));
+            }
+
+            success &= checkSuccess(clEnqueueUnmapMemObject(queue, obj->memoryObjects[3], current, 0, NULL,
+                                                            &waitEvents[numOfWaitEvents++]));
+            success &= checkSuccess(clEnqueueUnmapMemObject(queue, obj->memoryObjects[6], postsynFiringRates, 0, NULL,
+                                                            &waitEvents[numOfWaitEvents++]));
+
+            // The events of the unmaps are the last ones of the list
+            for (cl_uint j = i != numOfLayers ? numOfWaitEvents - 4 : numOfWaitEvents - 2; j < numOfWaitEvents && success; j++)
+                profileEvent(obj, waitEvents[j], PROFILE_UNMAP, i - 1);
+        }
+
+        if (i != 0 && i != numOfLayers) {
+            synapsesComputed += layersSynapses[i - 1];
+            neuronsComputed += layersNeurons[i - 1];
+        }
+
+        /* Kernel of the layer */
+
+        // A layer whose populations have no inputs has no synapses to compute
+        if (i < numOfLayers && layersSynapses[i] != 0 && success) {
+            cl_kernel kernel = compactIndexes ? obj->compactKernel : obj->kernel;
+
+            if (compactIndexes && obj->sparseKernel == 0) {
+                success &= setCompactKernelOffsets(obj, kernel, synapsesComputed, neuronsComputed,
+                                                   layersFirstPopulation[i], layersFirstPopulation[i + 1]);
+            } else if (!compactIndexes) {
+                success &= checkSuccess(clEnqueueWriteBuffer(queue, obj->memoryObjects[9], CL_FALSE, 0, sizeof(cl_uint),
+                                                             &layersGlobalIdOffset[i], 0, NULL,
+                                                             &waitEvents[numOfWaitEvents++]));
+                if (success)
+                    profileEvent(obj, waitEvents[numOfWaitEvents - 1], PROFILE_WRITE, i);
+            }
+
+            if (kernelEvent != NULL) {
+                clReleaseEvent(kernelEvent);
+                kernelEvent = NULL;
+            }
+
+            // Number of kernel instances.
+            size_t globalWorksize[1] = {(size_t) layersSynapses[i] / obj->floatVectorWidth};
+
+            if (obj->sparseKernel != 0) {
+                success &= enqueueSparseSynapses(obj, i, synapsesComputed, neuronsComputed, globalWorksize, waitEvents,
+                                                 numOfWaitEvents, &kernelEvent);
+            } else {
+                success &= checkSuccess(clEnqueueNDRangeKernel(queue, kernel, 1, NULL, globalWorksize, NULL,
+                                                               numOfWaitEvents, numOfWaitEvents != 0 ? waitEvents : NULL,
+                                                               &kernelEvent));
+            }
+
+            if (success)
+                profileEvent(obj, kernelEvent, PROFILE_SYNAPSES_KERNEL, i);
+        }
+
+        // The queue executes the commands in order, hence if no kernel has been enqueued the commands do not need to
+        // be waited for explicitly by the following ones
+        for (cl_uint j = 0; j < numOfWaitEvents; j++)
+            clReleaseEvent(waitEvents[j]);
+        numOfWaitEvents = 0;
+    }
+
+    if (kernelEvent != NULL)
+        clReleaseEvent(kernelEvent);
+
+    // The spikes of the whole network, computed by the device, are read at once
+    if (obj->neuronsKernel != 0 && success) {
+        size_t dataBytes = (size_t) (neuronsOffset + 7) / 8;
+        dataBytes = dataBytes < actionPotentialsBufferSize ? dataBytes : actionPotentialsBufferSize;
+
+        success &= checkSuccess(clEnqueueReadBuffer(queue, obj->memoryObjects[15], CL_TRUE, 0, dataBytes,
+                                                    actionPotentials, 0, NULL, profiledEvent(obj, PROFILE_READ, -1)));
+    }
+
+    // The only synchronization of the tick that is not demanded by a host step: the input must not be released by the
+    // caller while it is still being read, and the buffers must be unmapped before the next tick
+    success &= checkSuccess(clFinish(queue));
+
+    if (!success) {
+        cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects,
+                      obj->numberOfMemoryObjects);
+        LOGE("Failed to execute the layers of the local network");
+    }
+
+    return success;
+}
+
+/**
+ * Simulate one time step of the local network, shared by the two entry points below. The input coming from the
+ * presynaptic terminals is read from synapseInput and presynFiringRates, the spikes of the local network are written
+ * to actionPotentials. The number of bytes of the spikes is returned, -1 if an error has occurred.
+ */
+
+static int simulateNetwork(JNIEnv *env, struct OpenCLObject *obj, const jbyte *synapseInput,
+                           const jfloat *presynFiringRates, int inputNeurons, jfloatArray jSimulationParameters,
+                           jbyteArray jWeights, jintArray jWeightsIndexes, jbyteArray jUpdateWeightsFlags,
+                           jobjectArray jIndexesMatrix, jobjectArray jNeuronsMatrix, char actionPotentials[],
+                           int actionPotentialsCapacity) {
     jfloat *simulationParameters = env->GetFloatArrayElements(jSimulationParameters, JNI_FALSE);
     jbyte *weights = env->GetByteArrayElements(jWeights, JNI_FALSE);
     jint *weightsIndexes = env->GetIntArrayElements(jWeightsIndexes, JNI_FALSE);
-    jfloat *presynFiringRates = env->GetFloatArrayElements(jPresynFiringRates, JNI_FALSE);
     jbyte *updateWeightsFlags = env->GetByteArrayElements(jUpdateWeightsFlags, JNI_FALSE);
 
     int numOfNewWeights = env->GetArrayLength(jWeights);
     int weightsFlagLength = env->GetArrayLength(jUpdateWeightsFlags);
     int matrixDepth = env->GetArrayLength(jIndexesMatrix);
-    int inputNeurons = (env->GetArrayLength(jSynapseInput)) / maxMultiplications;
 
     /*
      * If the weights have changed, initialize them.
@@ -417,6 +1060,25 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
 
     if (matrixDepth != 0) { // If the order of the matrix is 0 that means that no change has occurred
         neuronsOffset = synapsesOffset = 0;
+        compactIndexes = false;
+        obj->kernelArgumentsSet = false;
+
+        // Create the buffers of the expanded indexes if they are needed for the first time
+        if (obj->memoryObjects[8] == 0) {
+            bool createMemoryObjectsSuccess = true;
+
+            obj->memoryObjects[4] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, neuronsIndexesBufferSize, NULL, &obj->errorNumber);
+            createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
+
+            obj->memoryObjects[8] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, synapseIndexesBufferSize, NULL, &obj->errorNumber);
+            createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
+
+            if (!createMemoryObjectsSuccess)
+            {
+                cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
+                LOGE("Failed to create OpenCL buffer");
+            }
+        }
 
         // Dynamic memory allocation
         delete[] layersNeurons;
@@ -425,6 +1087,9 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
         delete[] layersSynapses;
         layersSynapses = new int[matrixDepth];
 
+        delete[] layersGlobalIdOffset;
+        layersGlobalIdOffset = new cl_uint[matrixDepth];
+
         // Map the memory buffers used to store the indexes
         obj->synapseIndexes = (cl_ushort *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[8], CL_TRUE, CL_MAP_WRITE | CL_MAP_READ, 0, synapseIndexesBufferSize, 0, NULL, NULL, &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
@@ -479,6 +1144,10 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
             // is incremented only when the neuron index changes
             layersNeurons[i]++;
 
+            // The kernel of a layer starts from the work items of the previous layers
+            layersGlobalIdOffset[i] = i == 0 ? (cl_uint) 0 :
+                                      layersGlobalIdOffset[i - 1] + (cl_uint) layersSynapses[i - 1] / maxMultiplications;
+
             synapsesOffset += layersSynapses[i];
             neuronsOffset += layersNeurons[i];
             env->ReleaseIntArrayElements(jIndexesArray, indexesArray, 0);
@@ -509,41 +1178,55 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
      * iteration are built.
      */
 
-    // How many neurons have been considered up to this point
-    int neuronsComputed = 0;
+    // How many neurons and synapses have been considered up to this point
+    int neuronsComputed = 0, synapsesComputed = 0;
 
     // The number of bytes needed to hold all the spikes
     short dataBytes = (neuronsOffset % 8) == 0 ? (short)(neuronsOffset / 8) :
                         (short)(neuronsOffset / 8 + 1);
 
-    // Array holding the spikes fired by the neurons. Each bit represents a spike if it is set.
-    char actionPotentials[dataBytes];
+    // The array holding the spikes fired by the neurons, one bit per neuron, must fit them all
+    if (dataBytes > actionPotentialsCapacity) {
+        LOGE("The buffer of the output spikes is too small");
+        env->ReleaseFloatArrayElements(jSimulationParameters, simulationParameters, JNI_ABORT);
+        return -1;
+    }
+
+    if (obj->pipelinedLayers) {
+        bool pipelineSuccess = simulateLayersPipelined(obj, synapseInput, presynFiringRates, inputNeurons,
+                                                       simulationParameters, actionPotentials);
+        pipelineSuccess &= collectProfilingInfo(obj);
+
+        env->ReleaseFloatArrayElements(jSimulationParameters, simulationParameters, 0);
+
+        return pipelineSuccess ? dataBytes : -1;
+    }
 
     // Iterate over the input layers
     for (int i = 0; i <= numOfLayers; i++) {
 
         /* Open the buffers */
 
-        obj->synapseInput = (cl_uchar *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[2], CL_TRUE, CL_MAP_READ| CL_MAP_WRITE, 0, synapseInputBufferSize, 0, NULL, NULL, &obj->errorNumber);
+        obj->synapseInput = (cl_uchar *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[2], CL_TRUE, CL_MAP_READ| CL_MAP_WRITE, 0, synapseInputBufferSize, 0, NULL, profiledEvent(obj, PROFILE_MAP, i), &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-        obj->presynFiringRates = (cl_float *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[5], CL_TRUE, CL_MAP_WRITE, 0, presynFiringRatesBufferSize, 0, NULL, NULL, &obj->errorNumber);
+        obj->presynFiringRates = (cl_float *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[5], CL_TRUE, CL_MAP_WRITE, 0, presynFiringRatesBufferSize, 0, NULL, profiledEvent(obj, PROFILE_MAP, i), &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-        obj->current = (cl_int *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[3], CL_TRUE, CL_MAP_READ | CL_MAP_WRITE, 0, currentBufferSize, 0, NULL, NULL, &obj->errorNumber);
+        obj->current = (cl_int *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[3], CL_TRUE, CL_MAP_READ | CL_MAP_WRITE, 0, currentBufferSize, 0, NULL, profiledEvent(obj, PROFILE_MAP, i), &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
         obj->postsynFiringRates = (cl_float *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[6],
-                                                                 CL_TRUE, CL_MAP_READ | CL_MAP_WRITE, 0, postsynFiringRatesBufferSize, 0, NULL, NULL, &obj->errorNumber);
+                                                                 CL_TRUE, CL_MAP_READ | CL_MAP_WRITE, 0, postsynFiringRatesBufferSize, 0, NULL, profiledEvent(obj, PROFILE_MAP, i), &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-        obj->globalIdOffset = (cl_int *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[9], CL_TRUE, CL_MAP_WRITE, 0, sizeof(cl_uint), 0, NULL, NULL, &obj->errorNumber);
+        obj->globalIdOffset = (cl_int *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[9], CL_TRUE, CL_MAP_WRITE, 0, sizeof(cl_uint), 0, NULL, profiledEvent(obj, PROFILE_MAP, i), &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-        obj->weightsReservoir = (cl_uint *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[10], CL_TRUE, CL_MAP_READ, 0, weightsReservoirBufferSize, 0, NULL, NULL, &obj->errorNumber);
+        obj->weightsReservoir = (cl_uint *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[10], CL_TRUE, CL_MAP_READ, 0, weightsReservoirBufferSize, 0, NULL, profiledEvent(obj, PROFILE_MAP, i), &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
-        obj->numOfExcWeights = (cl_uint *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[11], CL_TRUE, CL_MAP_WRITE, 0, numOfExcWeightsBufferSize, 0, NULL, NULL, &obj->errorNumber);
+        obj->numOfExcWeights = (cl_uint *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[11], CL_TRUE, CL_MAP_WRITE, 0, numOfExcWeightsBufferSize, 0, NULL, profiledEvent(obj, PROFILE_MAP, i), &obj->errorNumber);
         mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
 
         if (!mapMemoryObjectsSuccess)
@@ -564,6 +1247,7 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
 
             if (i != numOfLayers) {
                 obj->globalIdOffset[0] += (cl_uint) layersSynapses[i - 1] / maxMultiplications;
+                synapsesComputed += layersSynapses[i - 1];
 
                 // Build the synaptic input from the last action potentials. inputNeurons is passed because
                 // the synapseInput buffer also contains the inputs coming from the presynaptic terminals
@@ -582,60 +1266,51 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
 
             //LOGD("inputNeurons %d", inputNeurons);
 
-            for (int j = 0; j < inputNeurons; j++) {
-
-                // Load the presynaptic firing rates
-                obj->presynFiringRates[j] = (cl_float) presynFiringRates[j];
-
-                // Load the inputs of the synapses - the operation must be repeated for each multiplication/time step
-
-                for (int k = 0; k < maxMultiplications; k++) {
-                    obj->synapseInput[j * maxMultiplications +
-                                      k] = (cl_uchar) synapseInput[j * maxMultiplications + k];
-                }
-
-            }
+            // Load the presynaptic firing rates and the inputs of the synapses. The types on the two sides have the
+            // same size, hence the arrays are copied as they are
+            memcpy(obj->presynFiringRates, presynFiringRates, inputNeurons * sizeof(cl_float));
+            memcpy(obj->synapseInput, synapseInput, inputNeurons * maxMultiplications * sizeof(cl_uchar));
         }
 
         /* Un-map the buffers */
 
-        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[2], obj->synapseInput, 0, NULL, NULL)))
+        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[2], obj->synapseInput, 0, NULL, profiledEvent(obj, PROFILE_UNMAP, i))))
         {
             cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
             LOGE("Unmap memory objects failed");
         }
 
-        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[5], obj->presynFiringRates, 0, NULL, NULL)))
+        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[5], obj->presynFiringRates, 0, NULL, profiledEvent(obj, PROFILE_UNMAP, i))))
         {
             cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
             LOGE("Unmap memory objects failed");
         }
 
-        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[3], obj->current, 0, NULL, NULL)))
+        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[3], obj->current, 0, NULL, profiledEvent(obj, PROFILE_UNMAP, i))))
         {
             cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
             LOGE("Unmap memory objects failed");
         }
 
-        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[6], obj->postsynFiringRates, 0, NULL, NULL)))
+        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[6], obj->postsynFiringRates, 0, NULL, profiledEvent(obj, PROFILE_UNMAP, i))))
         {
             cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
             LOGE("Unmap memory objects failed");
         }
 
-        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[9], obj->globalIdOffset, 0, NULL, NULL)))
+        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[9], obj->globalIdOffset, 0, NULL, profiledEvent(obj, PROFILE_UNMAP, i))))
         {
             cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
             LOGE("Unmap memory objects failed");
         }
 
-        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[10], obj->weightsReservoir, 0, NULL, NULL)))
+        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[10], obj->weightsReservoir, 0, NULL, profiledEvent(obj, PROFILE_UNMAP, i))))
         {
             cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
             LOGE("Unmap memory objects failed");
         }
 
-        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[11], obj->numOfExcWeights, 0, NULL, NULL)))
+        if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[11], obj->numOfExcWeights, 0, NULL, profiledEvent(obj, PROFILE_UNMAP, i))))
         {
             cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
             LOGE("Unmap memory objects failed");
@@ -643,34 +1318,19 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
 
         /* Execute the kernels */
 
-        if (i < numOfLayers) {
+        // A layer whose populations have no inputs has no synapses to compute
+        if (i < numOfLayers && layersSynapses[i] != 0) {
 
-            // Tell the kernels which data to use before they are scheduled TODO: Maybe this operation can be done once before the for loop.
+            // Tell the kernels which data to use before they are scheduled. The pipelined mode does it once per topology
             bool setKernelArgumentSuccess = true;
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 0, sizeof(cl_mem), &obj->memoryObjects[0]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 1, sizeof(cl_mem), &obj->memoryObjects[1]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 2, sizeof(cl_mem), &obj->memoryObjects[2]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 3, sizeof(cl_mem), &obj->memoryObjects[3]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 4, sizeof(cl_mem), &obj->memoryObjects[4]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 5, sizeof(cl_mem), &obj->memoryObjects[5]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 6, sizeof(cl_mem), &obj->memoryObjects[6]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 7, sizeof(cl_mem), &obj->memoryObjects[7]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 8, sizeof(cl_mem), &obj->memoryObjects[8]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 9, sizeof(cl_mem), &obj->memoryObjects[9]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 10, sizeof(cl_mem), &obj->memoryObjects[10]));
-            setKernelArgumentSuccess &= checkSuccess(
-                    clSetKernelArg(obj->kernel, 11, sizeof(cl_mem), &obj->memoryObjects[11]));
+            cl_kernel kernel = compactIndexes ? obj->compactKernel : obj->kernel;
+
+            if (compactIndexes) {
+                setKernelArgumentSuccess = setCompactKernelArguments(obj, synapsesComputed, neuronsComputed,
+                                                                     layersFirstPopulation[i], layersFirstPopulation[i + 1]);
+            } else {
+                setKernelArgumentSuccess = setKernelArguments(obj, obj->kernel);
+            }
 
             // Catch eventual errors
             if (!setKernelArgumentSuccess) {
@@ -686,8 +1346,8 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
 
             // Enqueue the kernel
             if (!checkSuccess(
-                    clEnqueueNDRangeKernel(obj->commandQueue, obj->kernel, 1, NULL, globalWorksize,
-                                           NULL, 0, NULL, NULL))) {
+                    clEnqueueNDRangeKernel(obj->commandQueue, kernel, 1, NULL, globalWorksize,
+                                           NULL, 0, NULL, profiledEvent(obj, PROFILE_SYNAPSES_KERNEL, i)))) {
                 cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel,
                               obj->memoryObjects, obj->numberOfMemoryObjects);
                 LOGE("Failed to enqueue OpenCL kernel");
@@ -702,24 +1362,51 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
                 openCLFailed = true;
             }
 
-            // If an error occurred return an empty byte array
             if (openCLFailed) {
-                jbyteArray errorByte = env->NewByteArray(0);
-                return errorByte;
+                env->ReleaseFloatArrayElements(jSimulationParameters, simulationParameters, JNI_ABORT);
+                return -1;
             }
 
         }
     }
 
-    // The array used to move data from the java side to the native one can be released
-    env->ReleaseByteArrayElements(jSynapseInput, synapseInput, 0);
-    env->ReleaseFloatArrayElements(jPresynFiringRates, presynFiringRates, 0);
-
     counter = printSynapticMaps(counter, obj, synapseWeightsBufferSize, NUM_SYNAPSES);
 
     // Release the array storing the simulation parameters
     env->ReleaseFloatArrayElements(jSimulationParameters, simulationParameters, 0);
 
+    return collectProfilingInfo(obj) ? dataBytes : -1;
+}
+
+extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynamics(
+        JNIEnv *env, jobject thiz, jbyteArray jSynapseInput, jlong jOpenCLObject, jfloatArray jSimulationParameters,
+        jbyteArray jWeights, jintArray jWeightsIndexes, jfloatArray jPresynFiringRates, jbyteArray jUpdateWeightsFlags,
+        jobjectArray jIndexesMatrix, jobjectArray jNeuronsMatrix) {
+    struct OpenCLObject *obj;
+    obj = (struct OpenCLObject *)jOpenCLObject;
+
+    jbyte *synapseInput = env->GetByteArrayElements(jSynapseInput, JNI_FALSE);
+    jfloat *presynFiringRates = env->GetFloatArrayElements(jPresynFiringRates, JNI_FALSE);
+    int inputNeurons = (env->GetArrayLength(jSynapseInput)) / maxMultiplications;
+
+    // Array holding the spikes fired by the neurons. Each bit represents a spike if it is set.
+    int actionPotentialsCapacity = NUM_NEURONS / 8 + 1;
+    char actionPotentials[actionPotentialsCapacity];
+
+    int dataBytes = simulateNetwork(env, obj, synapseInput, presynFiringRates, inputNeurons, jSimulationParameters,
+                                    jWeights, jWeightsIndexes, jUpdateWeightsFlags, jIndexesMatrix, jNeuronsMatrix,
+                                    actionPotentials, actionPotentialsCapacity);
+
+    // The arrays used to move data from the java side to the native one can be released, they have not been modified
+    env->ReleaseByteArrayElements(jSynapseInput, synapseInput, JNI_ABORT);
+    env->ReleaseFloatArrayElements(jPresynFiringRates, presynFiringRates, JNI_ABORT);
+
+    // If an error occurred return an empty byte array
+    if (dataBytes < 0) {
+        jbyteArray errorByte = env->NewByteArray(0);
+        return errorByte;
+    }
+
     // Create the array where to store the output
     jbyteArray outputSpikes = env->NewByteArray(dataBytes);
     // Copy the content in the buffer to the java array, using the pointer created by the OpenCL implementation
@@ -728,11 +1415,268 @@ extern "C" jbyteArray Java_com_example_overmind_SimulationService_simulateDynami
     return outputSpikes;
 }
 
+/**
+ * Same as simulateDynamics, but the input and the output go through the direct buffers registered by initializeOpenCL:
+ * no Java array is pinned or copied and nothing is allocated. The number of bytes of the output spikes written to their
+ * buffer is returned, -1 if an error has occurred.
+ */
+
+extern "C" jint Java_com_example_overmind_SimulationService_simulateDynamicsDirect(
+        JNIEnv *env, jobject thiz, jlong jOpenCLObject, jint jInputNeurons, jfloatArray jSimulationParameters,
+        jbyteArray jWeights, jintArray jWeightsIndexes, jbyteArray jUpdateWeightsFlags,
+        jobjectArray jIndexesMatrix, jobjectArray jNeuronsMatrix) {
+    struct OpenCLObject *obj;
+    obj = (struct OpenCLObject *)jOpenCLObject;
+
+    if (obj->directSynapseInput == nullptr || obj->directPresynFiringRates == nullptr ||
+            obj->directOutputSpikes == nullptr) {
+        LOGE("The direct buffers have not been registered");
+        return -1;
+    }
+
+    if ((jlong) jInputNeurons * maxMultiplications > obj->directSynapseInputCapacity ||
+            (jlong) jInputNeurons > obj->directPresynFiringRatesCapacity) {
+        LOGE("The direct buffers are too small for %d input neurons", jInputNeurons);
+        return -1;
+    }
+
+    return simulateNetwork(env, obj, obj->directSynapseInput, obj->directPresynFiringRates, jInputNeurons,
+                           jSimulationParameters, jWeights, jWeightsIndexes, jUpdateWeightsFlags, jIndexesMatrix,
+                           jNeuronsMatrix, (char *) obj->directOutputSpikes, (int) obj->directOutputSpikesCapacity);
+}
+
+/**
+ * Load the compact encoding of the indexes: for every population the indexes of a single neuron (the template) and
+ * an entry of the populations table. The encoding is expanded by the compact kernel, hence the size of the buffers
+ * depends on the number of populations and not on the number of synapses.
+ */
+
+extern "C" jboolean Java_com_example_overmind_SimulationService_loadCompactIndexes(
+        JNIEnv *env, jobject thiz, jlong jOpenCLObject, jintArray jTemplates, jintArray jPopulationsTable,
+        jintArray jLayersPopulations) {
+    struct OpenCLObject *obj;
+    obj = (struct OpenCLObject *)jOpenCLObject;
+
+    int templatesLength = env->GetArrayLength(jTemplates);
+    int populationsTableLength = env->GetArrayLength(jPopulationsTable);
+    int matrixDepth = env->GetArrayLength(jLayersPopulations);
+
+    jint *templates = env->GetIntArrayElements(jTemplates, JNI_FALSE);
+    jint *populationsTable = env->GetIntArrayElements(jPopulationsTable, JNI_FALSE);
+    jint *layersPopulations = env->GetIntArrayElements(jLayersPopulations, JNI_FALSE);
+
+    neuronsOffset = synapsesOffset = 0;
+    numOfLayers = matrixDepth;
+
+    // Dynamic memory allocation
+    delete[] layersNeurons;
+    layersNeurons = new int[matrixDepth];
+
+    delete[] layersSynapses;
+    layersSynapses = new int[matrixDepth];
+
+    delete[] layersFirstPopulation;
+    layersFirstPopulation = new int[matrixDepth + 1];
+
+    // Compute how many neurons and synapses each layer has from the populations table
+    int population = 0;
+    for (int i = 0; i < matrixDepth; i++) {
+        layersFirstPopulation[i] = population;
+        layersNeurons[i] = layersSynapses[i] = 0;
+
+        for (int j = 0; j < layersPopulations[i]; j++, population++) {
+            jint *info = &populationsTable[POP_INFO_SIZE * population];
+            layersNeurons[i] += info[POP_NUM_OF_NEURONS];
+            layersSynapses[i] += info[POP_NUM_OF_NEURONS] * info[POP_TEMPLATE_LENGTH];
+        }
+
+        synapsesOffset += layersSynapses[i];
+        neuronsOffset += layersNeurons[i];
+    }
+    layersFirstPopulation[matrixDepth] = population;
+
+    /*
+     * The buffers are created anew only if the new encoding does not fit in the old ones. Buffers of size zero are
+     * not allowed, therefore at least one element is always allocated.
+     */
+
+    size_t newPopulationsTableSize = (populationsTableLength > 0 ? populationsTableLength : 1) * sizeof(cl_uint);
+    size_t newTemplatesSize = (templatesLength > 0 ? templatesLength : 1) * sizeof(cl_ushort);
+    bool createMemoryObjectsSuccess = true;
+
+    if (newPopulationsTableSize > populationsTableBufferSize) {
+        if (obj->memoryObjects[12] != 0)
+            clReleaseMemObject(obj->memoryObjects[12]);
+
+        obj->memoryObjects[12] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, newPopulationsTableSize, NULL, &obj->errorNumber);
+        createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
+        populationsTableBufferSize = newPopulationsTableSize;
+    }
+
+    if (newTemplatesSize > templatesBufferSize) {
+        if (obj->memoryObjects[13] != 0)
+            clReleaseMemObject(obj->memoryObjects[13]);
+
+        obj->memoryObjects[13] = clCreateBuffer(obj->context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, newTemplatesSize, NULL, &obj->errorNumber);
+        createMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
+        templatesBufferSize = newTemplatesSize;
+    }
+
+    if (!createMemoryObjectsSuccess)
+    {
+        cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
+        LOGE("Failed to create OpenCL buffer");
+        return JNI_FALSE;
+    }
+
+    // Map the memory buffers used to store the compact indexes
+    bool mapMemoryObjectsSuccess = true;
+
+    obj->populationsTable = (cl_uint *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[12], CL_TRUE, CL_MAP_WRITE, 0, newPopulationsTableSize, 0, NULL, NULL, &obj->errorNumber);
+    mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
+
+    obj->templates = (cl_ushort *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[13], CL_TRUE, CL_MAP_WRITE, 0, newTemplatesSize, 0, NULL, NULL, &obj->errorNumber);
+    mapMemoryObjectsSuccess &= checkSuccess(obj->errorNumber);
+
+    if (!mapMemoryObjectsSuccess)
+    {
+        cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
+        LOGE("Failed to map buffer");
+        return JNI_FALSE;
+    }
+
+    for (int i = 0; i < populationsTableLength; i++)
+        obj->populationsTable[i] = (cl_uint) populationsTable[i];
+
+    for (int i = 0; i < templatesLength; i++)
+        obj->templates[i] = (cl_ushort) templates[i];
+
+    bool unmapMemoryObjectsSuccess = true;
+
+    unmapMemoryObjectsSuccess &= checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[12], obj->populationsTable, 0, NULL, NULL));
+    unmapMemoryObjectsSuccess &= checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[13], obj->templates, 0, NULL, NULL));
+
+    if (!unmapMemoryObjectsSuccess)
+    {
+        cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
+        LOGE("Unmap memory objects failed");
+        return JNI_FALSE;
+    }
+
+    env->ReleaseIntArrayElements(jTemplates, templates, 0);
+    env->ReleaseIntArrayElements(jPopulationsTable, populationsTable, 0);
+    env->ReleaseIntArrayElements(jLayersPopulations, layersPopulations, 0);
+
+    compactIndexes = true;
+    obj->kernelArgumentsSet = false;
+
+    return JNI_TRUE;
+}
+
+/**
+ * Overwrite the weights of the runs of a delta sent by the server. Only the region of the weights buffer that goes from
+ * the first to the last synapse of the runs is mapped.
+ */
+
+extern "C" jboolean Java_com_example_overmind_SimulationService_applyWeightsDelta(
+        JNIEnv *env, jobject thiz, jlong jOpenCLObject, jintArray jRuns, jint numOfRuns, jbyteArray jWeights) {
+    struct OpenCLObject *obj;
+    obj = (struct OpenCLObject *)jOpenCLObject;
+
+    if (numOfRuns == 0)
+        return JNI_TRUE;
+
+    jint *runs = env->GetIntArrayElements(jRuns, JNI_FALSE);
+    jbyte *weights = env->GetByteArrayElements(jWeights, JNI_FALSE);
+
+    // Find the region spanned by the runs and check that it lies inside the buffer
+    size_t totalSynapses = synapseWeightsBufferSize / sizeof(cl_float);
+    size_t firstSynapse = totalSynapses, lastSynapse = 0;
+    bool runsValid = true;
+
+    for (int i = 0; i < numOfRuns; i++) {
+        size_t first = (size_t) runs[2 * i], length = (size_t) runs[2 * i + 1];
+
+        if (length == 0)
+            continue;
+
+        runsValid &= first + length <= totalSynapses;
+        firstSynapse = first < firstSynapse ? first : firstSynapse;
+        lastSynapse = first + length - 1 > lastSynapse ? first + length - 1 : lastSynapse;
+    }
+
+    if (!runsValid)
+    {
+        env->ReleaseIntArrayElements(jRuns, runs, JNI_ABORT);
+        env->ReleaseByteArrayElements(jWeights, weights, JNI_ABORT);
+        LOGE("Run of weights beyond synapse %d", (int) totalSynapses);
+        return JNI_FALSE;
+    }
+
+    // Every run was empty
+    if (firstSynapse > lastSynapse)
+    {
+        env->ReleaseIntArrayElements(jRuns, runs, JNI_ABORT);
+        env->ReleaseByteArrayElements(jWeights, weights, JNI_ABORT);
+        return JNI_TRUE;
+    }
+
+    cl_float *weightsRegion = (cl_float *)clEnqueueMapBuffer(obj->commandQueue, obj->memoryObjects[1], CL_TRUE, CL_MAP_WRITE,
+                                                             firstSynapse * sizeof(cl_float),
+                                                             (lastSynapse - firstSynapse + 1) * sizeof(cl_float),
+                                                             0, NULL, NULL, &obj->errorNumber);
+
+    if (!checkSuccess(obj->errorNumber))
+    {
+        env->ReleaseIntArrayElements(jRuns, runs, JNI_ABORT);
+        env->ReleaseByteArrayElements(jWeights, weights, JNI_ABORT);
+        cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
+        LOGE("Failed to map buffer");
+        return JNI_FALSE;
+    }
+
+    // Weights arrive from the server in the range [0, 1], spaced by DELTA_WEIGHT, as in simulateNetwork
+    float maxWeight = 1.0f,
+    factor = DELTA_WEIGHT * maxWeight;
+
+    int weight = 0;
+    for (int i = 0; i < numOfRuns; i++) {
+        cl_float *run = &weightsRegion[runs[2 * i] - firstSynapse];
+
+        for (int j = 0; j < runs[2 * i + 1]; j++, weight++)
+            run[j] = (cl_float) (factor * weights[weight]);
+    }
+
+    env->ReleaseIntArrayElements(jRuns, runs, JNI_ABORT);
+    env->ReleaseByteArrayElements(jWeights, weights, JNI_ABORT);
+
+    if (!checkSuccess(clEnqueueUnmapMemObject(obj->commandQueue, obj->memoryObjects[1], weightsRegion, 0, NULL, NULL)))
+    {
+        cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects);
+        LOGE("Unmap memory objects failed");
+        return JNI_FALSE;
+    }
+
+    return JNI_TRUE;
+}
+
 extern "C" void Java_com_example_overmind_SimulationService_closeOpenCL(
         JNIEnv *env, jobject thiz,  jlong jOpenCLObject) {
     struct OpenCLObject *obj;
     obj = (struct OpenCLObject *) jOpenCLObject;
 
+    if (obj->compactKernel != 0 && !checkSuccess(clReleaseKernel(obj->compactKernel)))
+    {
+        LOGE("Releasing the OpenCL compact kernel failed");
+    }
+
+    if (obj->neuronsKernel != 0 && !checkSuccess(clReleaseKernel(obj->neuronsKernel)))
+    {
+        LOGE("Releasing the OpenCL kernel of the neuronal dynamics failed");
+    }
+
+    releaseSparseKernels(obj);
+
     if (!cleanUpOpenCL(obj->context, obj->commandQueue, obj->program, obj->kernel, obj->memoryObjects, obj->numberOfMemoryObjects))
     {
         LOGE("Failed to clean-up OpenCL");
@@ -741,5 +1685,5 @@ extern "C" void Java_com_example_overmind_SimulationService_closeOpenCL(
     // Delete the memory allocated by the host
     delete obj->neuronalDynVar;
 
-    free(obj);
+    delete obj;
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.example.overmind;
+
+import java.util.Random;
+
+/**
+ * Helper that builds the terminals used by the benchmarks. The local network is made of layers of
+ * populations of NEURONS_X_POP neurons each: the populations of the first layer are stimulated by
+ * all the presynaptic terminals, those of the following layers by all the populations of the
+ * previous one.
+ */
+
+final class BenchmarkTopology {
+
+    // Same size of the populations assumed by kernel_vec4.cl
+    static final int NEURONS_X_POP = 8;
+
+    // Probability that a presynaptic neuron fires during a tick
+    private static final double FIRING_PROBABILITY = 0.1;
+
+    private BenchmarkTopology() {}
+
+    static Terminal presynapticTerminal(int index, int numOfNeurons) {
+        Terminal terminal = new Terminal();
+        terminal.ip = "10.0." + (index / 256) + "." + (index % 256);
+        terminal.natPort = Constants.UDP_PORT + index;
+        terminal.numOfNeurons = (short) numOfNeurons;
+        terminal.id = terminal.customHashCode();
+        return terminal;
+    }
+
+    /**
+     * @param numOfNeurons Total number of neurons of the local network
+     * @param numOfTerminals Number of presynaptic terminals, which share NUMBER_OF_SYNAPSES neurons
+     * @param numOfLayers Number of layers of the populations matrix
+     */
+
+    static Terminal localTerminal(int numOfNeurons, int numOfTerminals, int numOfLayers) {
+        Terminal terminal = new Terminal();
+        terminal.ip = "10.1.0.1";
+        terminal.natPort = Constants.UDP_PORT;
+
+        int presynNeurons = Math.max(1, Constants.NUMBER_OF_SYNAPSES / numOfTerminals);
+        for (int i = 0; i < numOfTerminals; i++)
+            terminal.presynapticTerminals.add(presynapticTerminal(i, presynNeurons));
+
+        int layerNeurons = Math.max(1, numOfNeurons / numOfLayers);
+        terminal.popsMatrix = new Population[numOfLayers][];
+
+        for (int i = 0; i < numOfLayers; i++) {
+            int numOfPops = (layerNeurons + NEURONS_X_POP - 1) / NEURONS_X_POP;
+            terminal.popsMatrix[i] = new Population[numOfPops];
+
+            for (int j = 0; j < numOfPops; j++) {
+                short popNeurons = (short) Math.min(NEURONS_X_POP, layerNeurons - j * NEURONS_X_POP);
+                Population pop = new Population(popNeurons, (short) 0, (short) 0);
+                pop.layer = i;
+
+                if (i == 0) {
+                    for (Terminal presynTerminal : terminal.presynapticTerminals)
+                        pop.inputIndexes.add(presynTerminal.id);
+                } else {
+                    for (Population input : terminal.popsMatrix[i - 1])
+                        pop.inputIndexes.add(input.id);
+                }
+
+                terminal.popsMatrix[i][j] = pop;
+                terminal.populations.add(pop);
+            }
+        }
+
+        terminal.numOfNeurons = (short) (layerNeurons * numOfLayers);
+        terminal.id = terminal.customHashCode();
+        return terminal;
+    }
+
+    /**
+     * Build a collection of packets holding the spikes of a terminal, one bit per neuron.
+     */
+
+    static byte[][] spikePackets(int numOfPackets, int numOfNeurons, long seed) {
+        Random random = new Random(seed);
+        int dataBytes = (numOfNeurons % 8) == 0 ? numOfNeurons / 8 : numOfNeurons / 8 + 1;
+        byte[][] packets = new byte[numOfPackets][dataBytes];
+
+        for (byte[] packet : packets)
+            for (int i = 0; i < numOfNeurons; i++)
+                if (random.nextDouble() < FIRING_PROBABILITY)
+                    packet[i / 8] |= (1 << (i % 8));
+
+        return packets;
+    }
+}
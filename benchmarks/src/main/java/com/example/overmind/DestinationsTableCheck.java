@@ -0,0 +1,173 @@
+package com.example.overmind;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Check that the slices of the output spikes built by DestinationsTable hold, bit by bit, the
+ * spikes of the populations connected to each postsynaptic terminal, as a loop over the single
+ * neurons would copy them. The populations have random sizes, so that the runs start and end at
+ * every offset inside the bytes and cross their boundaries, and random subsets of them are
+ * connected, so that adjacent populations are joined in a single run. copyBits is also checked on
+ * its own against random destinations, whose bits outside of the run must be left as they are.
+ *
+ * Run with: ./gradlew :benchmarks:checkDestinationsTable
+ */
+
+final class DestinationsTableCheck {
+
+    private static final int NUM_OF_TERMINALS = 500;
+    private static final int NUM_OF_COPIES = 100000;
+    private static final int MAX_DESTINATIONS = 6;
+    private static final int NUM_OF_TICKS = 4;
+
+    private DestinationsTableCheck() {}
+
+    public static void main(String[] args) {
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 0);
+        Constants.SLICE_OUTPUT_SPIKES = true;
+
+        for (int i = 0; i < NUM_OF_COPIES; i++)
+            checkCopyBits(i, random);
+
+        for (int i = 0; i < NUM_OF_TERMINALS; i++)
+            checkSlices(i, random);
+
+        System.out.println(NUM_OF_COPIES + " runs of bits and " + NUM_OF_TERMINALS + " terminals checked");
+    }
+
+    private static void checkCopyBits(int copy, Random random) {
+        byte[] source = randomBytes(random, 1 + random.nextInt(8));
+        byte[] destination = randomBytes(random, 1 + random.nextInt(8));
+        int sourceBit = random.nextInt(source.length * 8);
+        int destinationBit = random.nextInt(destination.length * 8);
+
+        // The run may go beyond the end of the source, whose bits are read as zeros
+        int numOfBits = random.nextInt(destination.length * 8 - destinationBit + 1);
+
+        byte[] expected = destination.clone();
+        referenceCopyBits(source, sourceBit, expected, destinationBit, numOfBits);
+        DestinationsTable.copyBits(source, sourceBit, destination, destinationBit, numOfBits);
+
+        if (!Arrays.equals(expected, destination))
+            throw new IllegalStateException("Run " + copy + " of " + numOfBits + " bits from bit " + sourceBit +
+                    " to bit " + destinationBit + ": " + Arrays.toString(destination) + " instead of " +
+                    Arrays.toString(expected));
+    }
+
+    /**
+     * Build a terminal with random layers of populations and postsynaptic terminals connected to
+     * random subsets of the populations of the last layer, then compare the slices of some random
+     * output spikes with the reference. The buffers of the slices are reused by the table, hence
+     * several ticks are checked.
+     */
+
+    private static void checkSlices(int index, Random random) {
+        Terminal terminal = new Terminal();
+        int numOfLayers = 1 + random.nextInt(3);
+        int numOfNeurons = 0;
+        terminal.popsMatrix = new Population[numOfLayers][];
+
+        for (int i = 0; i < numOfLayers; i++) {
+            terminal.popsMatrix[i] = new Population[1 + random.nextInt(6)];
+
+            for (int j = 0; j < terminal.popsMatrix[i].length; j++) {
+                Population pop = new Population((short) (1 + random.nextInt(20)), (short) 0, (short) 0);
+                pop.layer = i;
+                terminal.popsMatrix[i][j] = pop;
+                numOfNeurons += pop.numOfNeurons;
+            }
+        }
+
+        Population[] lastLayer = terminal.popsMatrix[numOfLayers - 1];
+        int numOfDestinations = 1 + random.nextInt(MAX_DESTINATIONS);
+
+        for (int i = 0; i < numOfDestinations; i++) {
+            Terminal postsynapticTerminal = BenchmarkTopology.presynapticTerminal(i, 1);
+            terminal.postsynapticTerminals.add(postsynapticTerminal);
+
+            // Some terminals are not connected to the populations at all and receive every spike
+            if (random.nextInt(4) == 0)
+                continue;
+
+            ArrayList<Integer> popsIdxs = new ArrayList<>();
+            for (Population pop : lastLayer)
+                if (random.nextBoolean())
+                    popsIdxs.add(pop.id);
+            terminal.outputsToPopulations.put(postsynapticTerminal.id, popsIdxs);
+        }
+
+        DestinationsTable destinationsTable = DestinationsTable.build(terminal);
+
+        for (int tick = 0; tick < NUM_OF_TICKS; tick++) {
+            byte[] outputSpikes = randomBytes(random, (numOfNeurons + 7) / 8);
+
+            for (int i = 0; i < numOfDestinations; i++) {
+                byte[] expected = referenceSlice(terminal, i, outputSpikes);
+                byte[] actual = destinationsTable.slice(outputSpikes, i);
+
+                if (!Arrays.equals(expected, actual))
+                    throw new IllegalStateException("Slice of destination " + i + " of terminal " + index +
+                            " at tick " + tick + ": " + Arrays.toString(actual) + " instead of " +
+                            Arrays.toString(expected));
+            }
+        }
+    }
+
+    /**
+     * @return The spikes of the populations of the last layer connected to the destination, one
+     * neuron after the other, or all the spikes if none of them is connected
+     */
+
+    private static byte[] referenceSlice(Terminal terminal, int destination, byte[] outputSpikes) {
+        ArrayList<Integer> popsIdxs =
+                terminal.outputsToPopulations.get(terminal.postsynapticTerminals.get(destination).id);
+        int lastLayer = terminal.popsMatrix.length - 1;
+
+        int offset = 0;
+        for (int i = 0; i < lastLayer; i++)
+            for (Population pop : terminal.popsMatrix[i])
+                offset += pop.numOfNeurons;
+
+        ArrayList<Boolean> bits = new ArrayList<>();
+        for (Population pop : terminal.popsMatrix[lastLayer]) {
+            if (popsIdxs != null && popsIdxs.contains(pop.id))
+                for (int k = 0; k < pop.numOfNeurons; k++)
+                    bits.add(getBit(outputSpikes, offset + k));
+            offset += pop.numOfNeurons;
+        }
+
+        if (bits.isEmpty())
+            return outputSpikes;
+
+        byte[] slice = new byte[(bits.size() + 7) / 8];
+        for (int k = 0; k < bits.size(); k++)
+            setBit(slice, k, bits.get(k));
+
+        return slice;
+    }
+
+    private static void referenceCopyBits(byte[] source, int sourceBit, byte[] destination, int destinationBit,
+                                          int numOfBits) {
+        for (int k = 0; k < numOfBits; k++)
+            setBit(destination, destinationBit + k, getBit(source, sourceBit + k));
+    }
+
+    private static boolean getBit(byte[] bytes, int bit) {
+        return (bit >>> 3) < bytes.length && (bytes[bit >>> 3] & (1 << (bit & 7))) != 0;
+    }
+
+    private static void setBit(byte[] bytes, int bit, boolean value) {
+        if (value)
+            bytes[bit >>> 3] |= 1 << (bit & 7);
+        else
+            bytes[bit >>> 3] &= ~(1 << (bit & 7));
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
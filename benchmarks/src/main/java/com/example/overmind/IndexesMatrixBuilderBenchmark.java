@@ -0,0 +1,58 @@
+package com.example.overmind;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the construction of the indexes matrices and of their compact encoding, which
+ * happens whenever the server sends a new terminal.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexesMatrixBuilderBenchmark {
+
+    // Neurons of the local network
+    @Param({"1", "64", "1024"})
+    public int numOfNeurons;
+
+    @Param({"1", "8", "64"})
+    public int numOfTerminals;
+
+    @Param({"1", "4", "10"})
+    public int numOfLayers;
+
+    private Terminal terminal;
+    private IndexesMatrixBuilder indexesMatrixBuilder = new IndexesMatrixBuilder();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        terminal = BenchmarkTopology.localTerminal(numOfNeurons, numOfTerminals, numOfLayers);
+    }
+
+    @Benchmark
+    public IndexesMatrices buildIndexesMatrix() {
+        return indexesMatrixBuilder.buildIndexesMatrix(terminal);
+    }
+
+    @Benchmark
+    public CompactIndexes buildCompactIndexes() {
+        return indexesMatrixBuilder.buildCompactIndexes(terminal);
+    }
+}
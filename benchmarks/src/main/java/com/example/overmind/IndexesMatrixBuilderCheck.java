@@ -0,0 +1,213 @@
+package com.example.overmind;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Check that IndexesMatrixBuilder produces the same matrices as the straightforward construction
+ * it replaced, on random topologies. The reference scans the presynaptic terminals and the
+ * populations of the previous layers in the order they are stored in the memory buffer, and
+ * appends the indexes of every input to those of every neuron.
+ *
+ * The compact encoding of the same topologies is expanded the way the simulation backends do and
+ * compared with the matrices as well.
+ *
+ * Run with: ./gradlew :benchmarks:checkIndexesMatrixBuilder
+ */
+
+final class IndexesMatrixBuilderCheck {
+
+    private static final int NUM_OF_TOPOLOGIES = 1000;
+
+    private IndexesMatrixBuilderCheck() {}
+
+    public static void main(String[] args) {
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 0);
+        IndexesMatrixBuilder indexesMatrixBuilder = new IndexesMatrixBuilder();
+
+        for (int i = 0; i < NUM_OF_TOPOLOGIES; i++) {
+            Terminal terminal = randomTerminal(random);
+
+            IndexesMatrices expected = referenceIndexesMatrix(terminal);
+            IndexesMatrices actual = indexesMatrixBuilder.buildIndexesMatrix(terminal);
+
+            compare("synaptic indexes", i, expected.indexesMatrix, actual.indexesMatrix);
+            compare("neurons indexes", i, expected.neuronsMatrix, actual.neuronsMatrix);
+
+            IndexesMatrices expanded = expandCompactIndexes(indexesMatrixBuilder.buildCompactIndexes(terminal));
+
+            compare("expanded synaptic indexes", i, expected.indexesMatrix, expanded.indexesMatrix);
+            compare("expanded neurons indexes", i, expected.neuronsMatrix, expanded.neuronsMatrix);
+        }
+
+        System.out.println(NUM_OF_TOPOLOGIES + " topologies checked");
+    }
+
+    /**
+     * Build a terminal with a random number of presynaptic terminals, layers and populations. Each
+     * population lists a random subset of the presynaptic terminals and of the populations of the
+     * whole matrix as inputs, some of them more than once, so that the inputs which must be ignored
+     * are exercised as well.
+     */
+
+    static Terminal randomTerminal(Random random) {
+        Terminal terminal = new Terminal();
+
+        int numOfTerminals = random.nextInt(5);
+        for (int i = 0; i < numOfTerminals; i++)
+            terminal.presynapticTerminals.add(BenchmarkTopology.presynapticTerminal(i, 1 + random.nextInt(64)));
+
+        int numOfLayers = 1 + random.nextInt(4);
+        terminal.popsMatrix = new Population[numOfLayers][];
+
+        for (int i = 0; i < numOfLayers; i++) {
+            terminal.popsMatrix[i] = new Population[random.nextInt(5)];
+
+            for (int j = 0; j < terminal.popsMatrix[i].length; j++) {
+                Population pop = new Population((short) (1 + random.nextInt(16)), (short) 0, (short) 0);
+                pop.layer = i;
+                terminal.popsMatrix[i][j] = pop;
+                terminal.populations.add(pop);
+            }
+        }
+
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (Terminal presynTerminal : terminal.presynapticTerminals)
+            ids.add(presynTerminal.id);
+        for (Population pop : terminal.populations)
+            ids.add(pop.id);
+
+        for (Population pop : terminal.populations) {
+            if (ids.isEmpty())
+                break;
+
+            int numOfInputs = random.nextInt(ids.size() + 1);
+            for (int i = 0; i < numOfInputs; i++)
+                pop.inputIndexes.add(ids.get(random.nextInt(ids.size())));
+        }
+
+        return terminal;
+    }
+
+    private static IndexesMatrices referenceIndexesMatrix(Terminal terminal) {
+        Population[][] popsMatrix = terminal.popsMatrix;
+        int[][] indexesMatrix = new int[popsMatrix.length][];
+        int[][] neuronsMatrix = new int[popsMatrix.length][];
+
+        for (int i = 0; i < popsMatrix.length; i++) {
+            ArrayList<Integer> indexes = new ArrayList<>();
+            ArrayList<Integer> neurons = new ArrayList<>();
+
+            for (Population pop : popsMatrix[i]) {
+                ArrayList<Integer> template = referenceTemplate(terminal, i, pop);
+
+                for (int neuron = 0; neuron < pop.numOfNeurons; neuron++) {
+                    indexes.addAll(template);
+                    for (int k = 0; k < template.size(); k++)
+                        neurons.add(neuron);
+                }
+            }
+
+            indexesMatrix[i] = toArray(indexes);
+            neuronsMatrix[i] = toArray(neurons);
+        }
+
+        return new IndexesMatrices(indexesMatrix, neuronsMatrix);
+    }
+
+    /**
+     * @return The indexes of the inputs of a single neuron of the population
+     */
+
+    static ArrayList<Integer> referenceTemplate(Terminal terminal, int row, Population pop) {
+        ArrayList<Integer> template = new ArrayList<>();
+        int offset = 0;
+
+        for (Terminal presynTerminal : terminal.presynapticTerminals) {
+            if (pop.inputIndexes.contains(presynTerminal.id))
+                for (int k = 0; k < presynTerminal.numOfNeurons; k++)
+                    template.add(offset + k);
+
+            offset += presynTerminal.numOfNeurons;
+        }
+
+        for (int i = 0; i < row; i++) {
+            for (Population input : terminal.popsMatrix[i]) {
+                if (pop.inputIndexes.contains(input.id))
+                    for (int k = 0; k < input.numOfNeurons; k++)
+                        template.add(offset + k);
+
+                offset += input.numOfNeurons;
+            }
+        }
+
+        return template;
+    }
+
+    /**
+     * Expand the templates into per-synapse indexes, as loadCompactIndexes does. The neurons are
+     * numbered inside their population, like in the expanded matrices, and the table is checked
+     * to be consistent with the sizes of the populations.
+     */
+
+    private static IndexesMatrices expandCompactIndexes(CompactIndexes compactIndexes) {
+        int[] table = compactIndexes.populationsTable;
+        int numOfLayers = compactIndexes.layersPopulations.length;
+        int[][] indexesMatrix = new int[numOfLayers][];
+        int[][] neuronsMatrix = new int[numOfLayers][];
+        int population = 0;
+
+        for (int i = 0; i < numOfLayers; i++) {
+            ArrayList<Integer> indexes = new ArrayList<>();
+            ArrayList<Integer> neurons = new ArrayList<>();
+            int firstNeuron = 0;
+
+            for (int j = 0; j < compactIndexes.layersPopulations[i]; j++, population++) {
+                int info = CompactIndexes.POP_INFO_SIZE * population;
+                int numOfNeurons = table[info + CompactIndexes.NUM_OF_NEURONS];
+                int templateOffset = table[info + CompactIndexes.TEMPLATE_OFFSET];
+                int templateLength = table[info + CompactIndexes.TEMPLATE_LENGTH];
+
+                if (table[info + CompactIndexes.FIRST_SYNAPSE] != indexes.size() ||
+                        table[info + CompactIndexes.FIRST_NEURON] != firstNeuron)
+                    throw new IllegalStateException("Wrong table entry for population " + j + " of layer " + i);
+
+                for (int k = 0; k < numOfNeurons; k++) {
+                    for (int l = 0; l < templateLength; l++) {
+                        indexes.add(compactIndexes.templates[templateOffset + l]);
+                        neurons.add(k);
+                    }
+                }
+
+                firstNeuron += numOfNeurons;
+            }
+
+            indexesMatrix[i] = toArray(indexes);
+            neuronsMatrix[i] = toArray(neurons);
+        }
+
+        return new IndexesMatrices(indexesMatrix, neuronsMatrix);
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+
+        return array;
+    }
+
+    static void compare(String what, int topology, int[][] expected, int[][] actual) {
+        if (expected.length != actual.length)
+            throw new IllegalStateException(what + " of topology " + topology + ": " + actual.length +
+                    " layers instead of " + expected.length);
+
+        for (int i = 0; i < expected.length; i++) {
+            if (!Arrays.equals(expected[i], actual[i]))
+                throw new IllegalStateException(what + " of topology " + topology + " differ at layer " + i +
+                        ": " + Arrays.toString(actual[i]) + " instead of " + Arrays.toString(expected[i]));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.overmind;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the assembly of the total input done by InputCreator at every tick, when the inputs
+ * are collected from the queue (TICK_INPUT_ASSEMBLY not set). See TotalInputBenchmark for the
+ * double-buffered total input.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputCreatorBenchmark {
+
+    // Neurons of each presynaptic terminal
+    @Param({"1", "64", "1024"})
+    public int numOfNeurons;
+
+    @Param({"1", "8", "64"})
+    public int numOfTerminals;
+
+    private InputCreator inputCreator;
+    private Input[] inputs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Constants.TICK_INPUT_ASSEMBLY = false;
+
+        inputCreator = new InputCreator(new LinkedBlockingQueue<Input>(), new LinkedBlockingQueue<InputCreatorOutput>(),
+                new LinkedBlockingQueue<Object>(), new SpikesBufferPool(1, 1));
+        inputCreator.resizeArrays(numOfTerminals);
+
+        // Same layout built by KernelInitializer
+        int[] connectionsSize = new int[numOfTerminals];
+        int[] connectionsOffset = new int[numOfTerminals];
+        int totalOffset = 0;
+        for (int i = 0; i < numOfTerminals; i++) {
+            connectionsSize[i] = numOfNeurons;
+            totalOffset += numOfNeurons;
+            connectionsOffset[i] = totalOffset;
+        }
+
+        inputs = new Input[numOfTerminals];
+        for (int i = 0; i < numOfTerminals; i++)
+            inputs[i] = new Input(new byte[numOfNeurons * Constants.MAX_MULTIPLICATIONS], i,
+                    connectionsSize, connectionsOffset, new float[numOfNeurons], null);
+    }
+
+    /**
+     * One tick: an input is collected for every connection and then copied into the total input.
+     */
+
+    @Benchmark
+    public void assembleInputs() {
+        for (Input input : inputs)
+            inputCreator.collect(input);
+
+        inputCreator.assembleInputs(numOfTerminals);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.overmind;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the conversion of the incoming spikes into synaptic inputs done by KernelInitializer.
+ * The inputs are put in the queue of InputCreator (TICK_INPUT_ASSEMBLY not set), see
+ * TotalInputBenchmark for the double-buffered total input.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelInitializerBenchmark {
+
+    // Neurons of each presynaptic terminal, that is to say the size of the packets
+    @Param({"1", "64", "1024"})
+    public int numOfNeurons;
+
+    @Param({"1", "8", "64"})
+    public int numOfTerminals;
+
+    private static final int NUM_OF_PACKETS = 64;
+
+    private Terminal[] presynapticTerminals;
+    private byte[][] packets;
+    private BlockingQueue<Input> kernelInitQueue = new ArrayBlockingQueue<>(4);
+    private BlockingQueue<Object> clockSignalsQueue = new ArrayBlockingQueue<>(4);
+    private SpikesBufferPool spikesBufferPool;
+    private byte[] synapticInput;
+    private float[] firingRates;
+    private long[] activeNeurons;
+    private int tick = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Constants.TICK_INPUT_ASSEMBLY = false;
+
+        Terminal thisTerminal = new Terminal();
+        presynapticTerminals = new Terminal[numOfTerminals];
+
+        for (int i = 0; i < numOfTerminals; i++) {
+            presynapticTerminals[i] = BenchmarkTopology.presynapticTerminal(i, numOfNeurons);
+            thisTerminal.presynapticTerminals.add(presynapticTerminals[i]);
+        }
+
+        packets = BenchmarkTopology.spikePackets(NUM_OF_PACKETS, numOfNeurons, 42);
+        spikesBufferPool = new SpikesBufferPool(4, packets[0].length);
+        synapticInput = new byte[numOfNeurons * Constants.MAX_MULTIPLICATIONS];
+        firingRates = new float[numOfNeurons];
+        activeNeurons = new long[(numOfNeurons + 63) / 64];
+
+        // The first packet carries the terminal, which initializes the state shared by the
+        // KernelInitializer instances
+        new KernelInitializer(kernelInitQueue, presynapticTerminals[0].ip, presynapticTerminals[0].natPort,
+                packets[0], thisTerminal, clockSignalsQueue, spikesBufferPool).call();
+        kernelInitQueue.clear();
+        clockSignalsQueue.clear();
+    }
+
+    /**
+     * The filter loop alone.
+     */
+
+    @Benchmark
+    public byte[] updateSynapticInput() {
+        KernelInitializer.updateSynapticInput(packets[tick++ % NUM_OF_PACKETS], numOfNeurons, synapticInput, firingRates);
+        return synapticInput;
+    }
+
+    /**
+     * The filter loop serving 64 neurons at a time.
+     */
+
+    @Benchmark
+    public byte[] updateSynapticInputWordParallel() {
+        KernelInitializer.updateSynapticInput(packets[tick++ % NUM_OF_PACKETS], numOfNeurons, synapticInput, firingRates,
+                activeNeurons);
+        return synapticInput;
+    }
+
+    /**
+     * A whole packet going through KernelInitializer, sender identification included. The packets
+     * come from the presynaptic terminals in turn.
+     */
+
+    @Benchmark
+    public Input call() {
+        Terminal presynTerminal = presynapticTerminals[tick % numOfTerminals];
+        new KernelInitializer(kernelInitQueue, presynTerminal.ip, presynTerminal.natPort,
+                packets[tick++ % NUM_OF_PACKETS], null, clockSignalsQueue, spikesBufferPool).call();
+        clockSignalsQueue.poll();
+        return kernelInitQueue.poll();
+    }
+}
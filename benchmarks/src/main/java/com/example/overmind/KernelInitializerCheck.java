@@ -0,0 +1,87 @@
+package com.example.overmind;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Check that the word-parallel updateSynapticInput of KernelInitializer gives the same synaptic
+ * inputs and firing rates, bit by bit, as the loop over the single neurons, on random spike trains.
+ * Both the in place update and the out of place one, with the old and the new values swapping
+ * between two buffers at every packet, are checked.
+ *
+ * Run with: ./gradlew :benchmarks:checkKernelInitializer
+ */
+
+final class KernelInitializerCheck {
+
+    private static final int NUM_OF_TRAINS = 500;
+    private static final int MAX_PACKETS = 64;
+
+    private KernelInitializerCheck() {}
+
+    public static void main(String[] args) {
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 0);
+
+        for (int i = 0; i < NUM_OF_TRAINS; i++) {
+            int numOfNeurons = 1 + random.nextInt(300);
+            byte[][] packets = BenchmarkTopology.spikePackets(1 + random.nextInt(MAX_PACKETS), numOfNeurons,
+                    random.nextLong());
+
+            checkInPlace(i, numOfNeurons, packets);
+            checkOutOfPlace(i, numOfNeurons, random.nextInt(128), packets);
+        }
+
+        System.out.println(NUM_OF_TRAINS + " spike trains checked");
+    }
+
+    private static void checkInPlace(int train, int numOfNeurons, byte[][] packets) {
+        byte[] expectedInput = new byte[numOfNeurons * Constants.MAX_MULTIPLICATIONS];
+        float[] expectedRates = new float[numOfNeurons];
+        byte[] synapticInput = new byte[expectedInput.length];
+        float[] firingRates = new float[numOfNeurons];
+        long[] activeNeurons = new long[(numOfNeurons + 63) / 64];
+
+        for (int packet = 0; packet < packets.length; packet++) {
+            KernelInitializer.updateSynapticInput(packets[packet], numOfNeurons, expectedInput, expectedRates);
+            KernelInitializer.updateSynapticInput(packets[packet], numOfNeurons, synapticInput, firingRates, activeNeurons);
+
+            compare("in place", train, packet, expectedInput, synapticInput, expectedRates, firingRates);
+        }
+    }
+
+    /**
+     * The neurons of the terminal start after neuronsOffset others, as in the buffers of TotalInput.
+     */
+
+    private static void checkOutOfPlace(int train, int numOfNeurons, int neuronsOffset, byte[][] packets) {
+        int arraysNeurons = neuronsOffset + numOfNeurons;
+        byte[][] expectedInputs = new byte[2][arraysNeurons * Constants.MAX_MULTIPLICATIONS];
+        float[][] expectedRates = new float[2][arraysNeurons];
+        byte[][] synapticInputs = new byte[2][arraysNeurons * Constants.MAX_MULTIPLICATIONS];
+        float[][] firingRates = new float[2][arraysNeurons];
+        long[][] activeNeurons = new long[2][(numOfNeurons + 63) / 64];
+
+        for (int packet = 0; packet < packets.length; packet++) {
+            int source = packet % 2, destination = 1 - source;
+
+            KernelInitializer.updateSynapticInput(packets[packet], numOfNeurons, expectedInputs[source],
+                    expectedInputs[destination], expectedRates[source], expectedRates[destination], neuronsOffset);
+            KernelInitializer.updateSynapticInput(packets[packet], numOfNeurons, synapticInputs[source],
+                    synapticInputs[destination], firingRates[source], firingRates[destination], neuronsOffset,
+                    activeNeurons[source], activeNeurons[destination]);
+
+            compare("out of place", train, packet, expectedInputs[destination], synapticInputs[destination],
+                    expectedRates[destination], firingRates[destination]);
+        }
+    }
+
+    private static void compare(String what, int train, int packet, byte[] expectedInput, byte[] synapticInput,
+                                float[] expectedRates, float[] firingRates) {
+        if (!Arrays.equals(expectedInput, synapticInput))
+            throw new IllegalStateException("Synaptic inputs differ, " + what + ", train " + train + " packet " + packet);
+
+        // Arrays.equals compares the floats bit by bit
+        if (!Arrays.equals(expectedRates, firingRates))
+            throw new IllegalStateException("Firing rates differ, " + what + ", train " + train + " packet " + packet);
+    }
+}
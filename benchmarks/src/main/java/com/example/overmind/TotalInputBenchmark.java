@@ -0,0 +1,93 @@
+package com.example.overmind;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a tick of the double-buffered total input used when TICK_INPUT_ASSEMBLY is set: the
+ * connections write their inputs into the write buffer, which is then swapped and released as
+ * KernelExecutor would do.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TotalInputBenchmark {
+
+    // Neurons of each presynaptic terminal
+    @Param({"1", "64", "1024"})
+    public int numOfNeurons;
+
+    @Param({"1", "8", "64"})
+    public int numOfTerminals;
+
+    private static final int NUM_OF_PACKETS = 64;
+
+    private TotalInput totalInput;
+    private byte[][] packets;
+    private int tick = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Constants.TICK_INPUT_ASSEMBLY = true;
+
+        // Same layout built by KernelInitializer
+        int[] connectionsSize = new int[numOfTerminals];
+        int[] connectionsOffset = new int[numOfTerminals];
+        int totalOffset = 0;
+        for (int i = 0; i < numOfTerminals; i++) {
+            connectionsSize[i] = numOfNeurons;
+            totalOffset += numOfNeurons;
+            connectionsOffset[i] = totalOffset;
+        }
+
+        totalInput = new TotalInput(connectionsSize, connectionsOffset);
+        packets = BenchmarkTopology.spikePackets(NUM_OF_PACKETS, numOfNeurons, 42);
+    }
+
+    /**
+     * One tick during which every connection fires.
+     */
+
+    @Benchmark
+    public InputCreatorOutput update() {
+        for (int i = 0; i < numOfTerminals; i++)
+            totalInput.update(i, packets[(tick + i) % NUM_OF_PACKETS]);
+        tick++;
+
+        return swap();
+    }
+
+    /**
+     * One tick during which only the first connection fires, so that the inputs of the others are
+     * copied by the swap.
+     */
+
+    @Benchmark
+    public InputCreatorOutput updateOneConnection() {
+        totalInput.update(0, packets[tick++ % NUM_OF_PACKETS]);
+
+        return swap();
+    }
+
+    private InputCreatorOutput swap() {
+        InputCreatorOutput output = totalInput.swap();
+        output.released = true;
+        return output;
+    }
+}